@@ -2,10 +2,12 @@ package main
 
 import (
 	"context"
+	"io"
 	"log"
 	"net"
 	"net/http"
 	"os"
+	"strconv"
 	"strings"
 	"time"
 
@@ -15,25 +17,42 @@ import (
 	"google.golang.org/grpc"
 	"google.golang.org/grpc/codes"
 	"google.golang.org/grpc/health/grpc_health_v1"
+	"google.golang.org/grpc/metadata"
 	"google.golang.org/grpc/status"
 	"google.golang.org/protobuf/encoding/protojson"
 
 	"sample/pb"
 )
 
+// The time spent in the handler, in microseconds, returned with each unary
+// call and /local response, so that the load generator can tell it apart
+// from the time spent in the proxies.
+const handlerTimeHeader = "x-handler-time-us"
+
+// The largest response payload. The default 4 MiB limit on received messages
+// is raised to match, so that request payloads can be as large.
+const maxPayloadSize = 16 << 20
+
 type server struct {
 	pb.UnimplementedTimeServer
 
 	format   string
 	loc      *time.Location
 	hostname string
+	payload  []byte
 
 	grpcServer *grpc.Server
 	httpServer http.Handler
 }
 
 func (s *server) init() error {
-	s.grpcServer = grpc.NewServer()
+	// Allocated once and sliced per response, so that the server side does
+	// not add allocation noise to the payload measurements.
+	s.payload = make([]byte, maxPayloadSize)
+
+	s.grpcServer = grpc.NewServer(
+		grpc.MaxRecvMsgSize(maxPayloadSize + 1024),
+		grpc.UnaryInterceptor(handlerTime))
 	pb.RegisterTimeServer(s.grpcServer, s)
 	grpc_health_v1.RegisterHealthServer(s.grpcServer, s)
 
@@ -45,12 +64,76 @@ func (s *server) init() error {
 	return nil
 }
 
+// handlerTime adds the time spent in the handler to the response headers,
+// which a unary call only sends along with its response.
+func handlerTime(ctx context.Context, req interface{}, info *grpc.UnaryServerInfo, handler grpc.UnaryHandler) (interface{}, error) {
+	start := time.Now()
+	resp, err := handler(ctx, req)
+	grpc.SetHeader(ctx, metadata.Pairs(handlerTimeHeader, strconv.FormatInt(time.Since(start).Microseconds(), 10)))
+	return resp, err
+}
+
 func (s *server) LocalTime(ctx context.Context, in *pb.LocalTimeRequest) (*pb.LocalTimeResponse, error) {
 	return &pb.LocalTimeResponse{
 		LocalTime: formattedTime(s.format, s.loc),
 	}, nil
 }
 
+func (s *server) Payload(ctx context.Context, in *pb.PayloadRequest) (*pb.PayloadResponse, error) {
+	if in.ResponseSize < 0 || in.ResponseSize > maxPayloadSize {
+		return nil, status.Errorf(codes.InvalidArgument, "invalid response size: %d", in.ResponseSize)
+	}
+	return &pb.PayloadResponse{
+		Payload: s.payload[:in.ResponseSize],
+	}, nil
+}
+
+func (s *server) ServerStream(in *pb.StreamRequest, stream pb.Time_ServerStreamServer) error {
+	if in.ResponseSize < 0 || in.ResponseSize > maxPayloadSize {
+		return status.Errorf(codes.InvalidArgument, "invalid response size: %d", in.ResponseSize)
+	}
+	response := &pb.PayloadResponse{
+		Payload: s.payload[:in.ResponseSize],
+	}
+
+	// Keep to the schedule from the start of the stream, rather than sleep
+	// for the interval after each send, so that a slow send is caught up on
+	start := time.Now()
+	interval := time.Duration(in.IntervalMicros) * time.Microsecond
+	for i := int32(0); i < in.Count; i++ {
+		if delay := time.Until(start.Add(time.Duration(i) * interval)); delay > 0 {
+			time.Sleep(delay)
+		}
+		if err := stream.Send(response); err != nil {
+			return err
+		}
+	}
+	return nil
+}
+
+// BidiStream echoes a response of response_size bytes for every request,
+// until the client closes its side of the stream.
+func (s *server) BidiStream(stream pb.Time_BidiStreamServer) error {
+	for {
+		in, err := stream.Recv()
+		if err == io.EOF {
+			return nil
+		}
+		if err != nil {
+			return err
+		}
+		if in.ResponseSize < 0 || in.ResponseSize > maxPayloadSize {
+			return status.Errorf(codes.InvalidArgument, "invalid response size: %d", in.ResponseSize)
+		}
+		err = stream.Send(&pb.PayloadResponse{
+			Payload: s.payload[:in.ResponseSize],
+		})
+		if err != nil {
+			return err
+		}
+	}
+}
+
 func (s *server) Check(ctx context.Context, in *grpc_health_v1.HealthCheckRequest) (*grpc_health_v1.HealthCheckResponse, error) {
 	return &grpc_health_v1.HealthCheckResponse{Status: grpc_health_v1.HealthCheckResponse_SERVING}, nil
 }
@@ -60,10 +143,12 @@ func (s *server) Watch(in *grpc_health_v1.HealthCheckRequest, _ grpc_health_v1.H
 }
 
 func (s *server) localHandler(w http.ResponseWriter, r *http.Request) {
+	start := time.Now()
 	jsonString := protojson.Format(&pb.LocalTimeResponse{
 		LocalTime: formattedTime(s.format, s.loc),
 	})
 	w.Header().Set("Content-Type", "application/json")
+	w.Header().Set(handlerTimeHeader, strconv.FormatInt(time.Since(start).Microseconds(), 10))
 	w.Write([]byte(jsonString + "\n"))
 }
 
@@ -0,0 +1,3 @@
+package pb
+
+//go:generate protoc --go_out=.. --go-grpc_out=.. time.proto
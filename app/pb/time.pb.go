@@ -105,14 +105,19 @@ func (x *LocalTimeResponse) GetLocalTime() string {
 	return ""
 }
 
-type RemoteTimeRequest struct {
+// Carries a request payload of any size, and asks for a response payload
+// of response_size bytes, to measure bytes/sec rather than only ops/sec.
+type PayloadRequest struct {
 	state         protoimpl.MessageState
 	sizeCache     protoimpl.SizeCache
 	unknownFields protoimpl.UnknownFields
+
+	Payload      []byte `protobuf:"bytes,1,opt,name=payload,proto3" json:"payload,omitempty"`
+	ResponseSize int32  `protobuf:"varint,2,opt,name=response_size,json=responseSize,proto3" json:"response_size,omitempty"`
 }
 
-func (x *RemoteTimeRequest) Reset() {
-	*x = RemoteTimeRequest{}
+func (x *PayloadRequest) Reset() {
+	*x = PayloadRequest{}
 	if protoimpl.UnsafeEnabled {
 		mi := &file_time_proto_msgTypes[2]
 		ms := protoimpl.X.MessageStateOf(protoimpl.Pointer(x))
@@ -120,13 +125,13 @@ func (x *RemoteTimeRequest) Reset() {
 	}
 }
 
-func (x *RemoteTimeRequest) String() string {
+func (x *PayloadRequest) String() string {
 	return protoimpl.X.MessageStringOf(x)
 }
 
-func (*RemoteTimeRequest) ProtoMessage() {}
+func (*PayloadRequest) ProtoMessage() {}
 
-func (x *RemoteTimeRequest) ProtoReflect() protoreflect.Message {
+func (x *PayloadRequest) ProtoReflect() protoreflect.Message {
 	mi := &file_time_proto_msgTypes[2]
 	if protoimpl.UnsafeEnabled && x != nil {
 		ms := protoimpl.X.MessageStateOf(protoimpl.Pointer(x))
@@ -138,22 +143,35 @@ func (x *RemoteTimeRequest) ProtoReflect() protoreflect.Message {
 	return mi.MessageOf(x)
 }
 
-// Deprecated: Use RemoteTimeRequest.ProtoReflect.Descriptor instead.
-func (*RemoteTimeRequest) Descriptor() ([]byte, []int) {
+// Deprecated: Use PayloadRequest.ProtoReflect.Descriptor instead.
+func (*PayloadRequest) Descriptor() ([]byte, []int) {
 	return file_time_proto_rawDescGZIP(), []int{2}
 }
 
-type RemoteTimeResponse struct {
+func (x *PayloadRequest) GetPayload() []byte {
+	if x != nil {
+		return x.Payload
+	}
+	return nil
+}
+
+func (x *PayloadRequest) GetResponseSize() int32 {
+	if x != nil {
+		return x.ResponseSize
+	}
+	return 0
+}
+
+type PayloadResponse struct {
 	state         protoimpl.MessageState
 	sizeCache     protoimpl.SizeCache
 	unknownFields protoimpl.UnknownFields
 
-	LocalTime  string `protobuf:"bytes,1,opt,name=local_time,json=localTime,proto3" json:"local_time,omitempty"`
-	RemoteTime string `protobuf:"bytes,2,opt,name=remote_time,json=remoteTime,proto3" json:"remote_time,omitempty"`
+	Payload []byte `protobuf:"bytes,1,opt,name=payload,proto3" json:"payload,omitempty"`
 }
 
-func (x *RemoteTimeResponse) Reset() {
-	*x = RemoteTimeResponse{}
+func (x *PayloadResponse) Reset() {
+	*x = PayloadResponse{}
 	if protoimpl.UnsafeEnabled {
 		mi := &file_time_proto_msgTypes[3]
 		ms := protoimpl.X.MessageStateOf(protoimpl.Pointer(x))
@@ -161,13 +179,13 @@ func (x *RemoteTimeResponse) Reset() {
 	}
 }
 
-func (x *RemoteTimeResponse) String() string {
+func (x *PayloadResponse) String() string {
 	return protoimpl.X.MessageStringOf(x)
 }
 
-func (*RemoteTimeResponse) ProtoMessage() {}
+func (*PayloadResponse) ProtoMessage() {}
 
-func (x *RemoteTimeResponse) ProtoReflect() protoreflect.Message {
+func (x *PayloadResponse) ProtoReflect() protoreflect.Message {
 	mi := &file_time_proto_msgTypes[3]
 	if protoimpl.UnsafeEnabled && x != nil {
 		ms := protoimpl.X.MessageStateOf(protoimpl.Pointer(x))
@@ -179,23 +197,81 @@ func (x *RemoteTimeResponse) ProtoReflect() protoreflect.Message {
 	return mi.MessageOf(x)
 }
 
-// Deprecated: Use RemoteTimeResponse.ProtoReflect.Descriptor instead.
-func (*RemoteTimeResponse) Descriptor() ([]byte, []int) {
+// Deprecated: Use PayloadResponse.ProtoReflect.Descriptor instead.
+func (*PayloadResponse) Descriptor() ([]byte, []int) {
 	return file_time_proto_rawDescGZIP(), []int{3}
 }
 
-func (x *RemoteTimeResponse) GetLocalTime() string {
+func (x *PayloadResponse) GetPayload() []byte {
 	if x != nil {
-		return x.LocalTime
+		return x.Payload
+	}
+	return nil
+}
+
+// Asks for count responses of response_size bytes, interval_micros apart, on
+// a server stream.
+type StreamRequest struct {
+	state         protoimpl.MessageState
+	sizeCache     protoimpl.SizeCache
+	unknownFields protoimpl.UnknownFields
+
+	Count          int32 `protobuf:"varint,1,opt,name=count,proto3" json:"count,omitempty"`
+	IntervalMicros int64 `protobuf:"varint,2,opt,name=interval_micros,json=intervalMicros,proto3" json:"interval_micros,omitempty"`
+	ResponseSize   int32 `protobuf:"varint,3,opt,name=response_size,json=responseSize,proto3" json:"response_size,omitempty"`
+}
+
+func (x *StreamRequest) Reset() {
+	*x = StreamRequest{}
+	if protoimpl.UnsafeEnabled {
+		mi := &file_time_proto_msgTypes[4]
+		ms := protoimpl.X.MessageStateOf(protoimpl.Pointer(x))
+		ms.StoreMessageInfo(mi)
 	}
-	return ""
 }
 
-func (x *RemoteTimeResponse) GetRemoteTime() string {
+func (x *StreamRequest) String() string {
+	return protoimpl.X.MessageStringOf(x)
+}
+
+func (*StreamRequest) ProtoMessage() {}
+
+func (x *StreamRequest) ProtoReflect() protoreflect.Message {
+	mi := &file_time_proto_msgTypes[4]
+	if protoimpl.UnsafeEnabled && x != nil {
+		ms := protoimpl.X.MessageStateOf(protoimpl.Pointer(x))
+		if ms.LoadMessageInfo() == nil {
+			ms.StoreMessageInfo(mi)
+		}
+		return ms
+	}
+	return mi.MessageOf(x)
+}
+
+// Deprecated: Use StreamRequest.ProtoReflect.Descriptor instead.
+func (*StreamRequest) Descriptor() ([]byte, []int) {
+	return file_time_proto_rawDescGZIP(), []int{4}
+}
+
+func (x *StreamRequest) GetCount() int32 {
 	if x != nil {
-		return x.RemoteTime
+		return x.Count
 	}
-	return ""
+	return 0
+}
+
+func (x *StreamRequest) GetIntervalMicros() int64 {
+	if x != nil {
+		return x.IntervalMicros
+	}
+	return 0
+}
+
+func (x *StreamRequest) GetResponseSize() int32 {
+	if x != nil {
+		return x.ResponseSize
+	}
+	return 0
 }
 
 var File_time_proto protoreflect.FileDescriptor
@@ -206,22 +282,37 @@ var file_time_proto_rawDesc = []byte{
 	0x22, 0x32, 0x0a, 0x11, 0x4c, 0x6f, 0x63, 0x61, 0x6c, 0x54, 0x69, 0x6d, 0x65, 0x52, 0x65, 0x73,
 	0x70, 0x6f, 0x6e, 0x73, 0x65, 0x12, 0x1d, 0x0a, 0x0a, 0x6c, 0x6f, 0x63, 0x61, 0x6c, 0x5f, 0x74,
 	0x69, 0x6d, 0x65, 0x18, 0x01, 0x20, 0x01, 0x28, 0x09, 0x52, 0x09, 0x6c, 0x6f, 0x63, 0x61, 0x6c,
-	0x54, 0x69, 0x6d, 0x65, 0x22, 0x13, 0x0a, 0x11, 0x52, 0x65, 0x6d, 0x6f, 0x74, 0x65, 0x54, 0x69,
-	0x6d, 0x65, 0x52, 0x65, 0x71, 0x75, 0x65, 0x73, 0x74, 0x22, 0x54, 0x0a, 0x12, 0x52, 0x65, 0x6d,
-	0x6f, 0x74, 0x65, 0x54, 0x69, 0x6d, 0x65, 0x52, 0x65, 0x73, 0x70, 0x6f, 0x6e, 0x73, 0x65, 0x12,
-	0x1d, 0x0a, 0x0a, 0x6c, 0x6f, 0x63, 0x61, 0x6c, 0x5f, 0x74, 0x69, 0x6d, 0x65, 0x18, 0x01, 0x20,
-	0x01, 0x28, 0x09, 0x52, 0x09, 0x6c, 0x6f, 0x63, 0x61, 0x6c, 0x54, 0x69, 0x6d, 0x65, 0x12, 0x1f,
-	0x0a, 0x0b, 0x72, 0x65, 0x6d, 0x6f, 0x74, 0x65, 0x5f, 0x74, 0x69, 0x6d, 0x65, 0x18, 0x02, 0x20,
-	0x01, 0x28, 0x09, 0x52, 0x0a, 0x72, 0x65, 0x6d, 0x6f, 0x74, 0x65, 0x54, 0x69, 0x6d, 0x65, 0x32,
-	0x75, 0x0a, 0x04, 0x54, 0x69, 0x6d, 0x65, 0x12, 0x34, 0x0a, 0x09, 0x4c, 0x6f, 0x63, 0x61, 0x6c,
-	0x54, 0x69, 0x6d, 0x65, 0x12, 0x11, 0x2e, 0x4c, 0x6f, 0x63, 0x61, 0x6c, 0x54, 0x69, 0x6d, 0x65,
-	0x52, 0x65, 0x71, 0x75, 0x65, 0x73, 0x74, 0x1a, 0x12, 0x2e, 0x4c, 0x6f, 0x63, 0x61, 0x6c, 0x54,
-	0x69, 0x6d, 0x65, 0x52, 0x65, 0x73, 0x70, 0x6f, 0x6e, 0x73, 0x65, 0x22, 0x00, 0x12, 0x37, 0x0a,
-	0x0a, 0x52, 0x65, 0x6d, 0x6f, 0x74, 0x65, 0x54, 0x69, 0x6d, 0x65, 0x12, 0x12, 0x2e, 0x52, 0x65,
-	0x6d, 0x6f, 0x74, 0x65, 0x54, 0x69, 0x6d, 0x65, 0x52, 0x65, 0x71, 0x75, 0x65, 0x73, 0x74, 0x1a,
-	0x13, 0x2e, 0x52, 0x65, 0x6d, 0x6f, 0x74, 0x65, 0x54, 0x69, 0x6d, 0x65, 0x52, 0x65, 0x73, 0x70,
-	0x6f, 0x6e, 0x73, 0x65, 0x22, 0x00, 0x42, 0x06, 0x5a, 0x04, 0x2e, 0x2f, 0x70, 0x62, 0x62, 0x06,
-	0x70, 0x72, 0x6f, 0x74, 0x6f, 0x33,
+	0x54, 0x69, 0x6d, 0x65, 0x22, 0x4f, 0x0a, 0x0e, 0x50, 0x61, 0x79, 0x6c, 0x6f, 0x61, 0x64, 0x52,
+	0x65, 0x71, 0x75, 0x65, 0x73, 0x74, 0x12, 0x18, 0x0a, 0x07, 0x70, 0x61, 0x79, 0x6c, 0x6f, 0x61,
+	0x64, 0x18, 0x01, 0x20, 0x01, 0x28, 0x0c, 0x52, 0x07, 0x70, 0x61, 0x79, 0x6c, 0x6f, 0x61, 0x64,
+	0x12, 0x23, 0x0a, 0x0d, 0x72, 0x65, 0x73, 0x70, 0x6f, 0x6e, 0x73, 0x65, 0x5f, 0x73, 0x69, 0x7a,
+	0x65, 0x18, 0x02, 0x20, 0x01, 0x28, 0x05, 0x52, 0x0c, 0x72, 0x65, 0x73, 0x70, 0x6f, 0x6e, 0x73,
+	0x65, 0x53, 0x69, 0x7a, 0x65, 0x22, 0x2b, 0x0a, 0x0f, 0x50, 0x61, 0x79, 0x6c, 0x6f, 0x61, 0x64,
+	0x52, 0x65, 0x73, 0x70, 0x6f, 0x6e, 0x73, 0x65, 0x12, 0x18, 0x0a, 0x07, 0x70, 0x61, 0x79, 0x6c,
+	0x6f, 0x61, 0x64, 0x18, 0x01, 0x20, 0x01, 0x28, 0x0c, 0x52, 0x07, 0x70, 0x61, 0x79, 0x6c, 0x6f,
+	0x61, 0x64, 0x22, 0x73, 0x0a, 0x0d, 0x53, 0x74, 0x72, 0x65, 0x61, 0x6d, 0x52, 0x65, 0x71, 0x75,
+	0x65, 0x73, 0x74, 0x12, 0x14, 0x0a, 0x05, 0x63, 0x6f, 0x75, 0x6e, 0x74, 0x18, 0x01, 0x20, 0x01,
+	0x28, 0x05, 0x52, 0x05, 0x63, 0x6f, 0x75, 0x6e, 0x74, 0x12, 0x27, 0x0a, 0x0f, 0x69, 0x6e, 0x74,
+	0x65, 0x72, 0x76, 0x61, 0x6c, 0x5f, 0x6d, 0x69, 0x63, 0x72, 0x6f, 0x73, 0x18, 0x02, 0x20, 0x01,
+	0x28, 0x03, 0x52, 0x0e, 0x69, 0x6e, 0x74, 0x65, 0x72, 0x76, 0x61, 0x6c, 0x4d, 0x69, 0x63, 0x72,
+	0x6f, 0x73, 0x12, 0x23, 0x0a, 0x0d, 0x72, 0x65, 0x73, 0x70, 0x6f, 0x6e, 0x73, 0x65, 0x5f, 0x73,
+	0x69, 0x7a, 0x65, 0x18, 0x03, 0x20, 0x01, 0x28, 0x05, 0x52, 0x0c, 0x72, 0x65, 0x73, 0x70, 0x6f,
+	0x6e, 0x73, 0x65, 0x53, 0x69, 0x7a, 0x65, 0x32, 0xd9, 0x01, 0x0a, 0x04, 0x54, 0x69, 0x6d, 0x65,
+	0x12, 0x34, 0x0a, 0x09, 0x4c, 0x6f, 0x63, 0x61, 0x6c, 0x54, 0x69, 0x6d, 0x65, 0x12, 0x11, 0x2e,
+	0x4c, 0x6f, 0x63, 0x61, 0x6c, 0x54, 0x69, 0x6d, 0x65, 0x52, 0x65, 0x71, 0x75, 0x65, 0x73, 0x74,
+	0x1a, 0x12, 0x2e, 0x4c, 0x6f, 0x63, 0x61, 0x6c, 0x54, 0x69, 0x6d, 0x65, 0x52, 0x65, 0x73, 0x70,
+	0x6f, 0x6e, 0x73, 0x65, 0x22, 0x00, 0x12, 0x2e, 0x0a, 0x07, 0x50, 0x61, 0x79, 0x6c, 0x6f, 0x61,
+	0x64, 0x12, 0x0f, 0x2e, 0x50, 0x61, 0x79, 0x6c, 0x6f, 0x61, 0x64, 0x52, 0x65, 0x71, 0x75, 0x65,
+	0x73, 0x74, 0x1a, 0x10, 0x2e, 0x50, 0x61, 0x79, 0x6c, 0x6f, 0x61, 0x64, 0x52, 0x65, 0x73, 0x70,
+	0x6f, 0x6e, 0x73, 0x65, 0x22, 0x00, 0x12, 0x34, 0x0a, 0x0c, 0x53, 0x65, 0x72, 0x76, 0x65, 0x72,
+	0x53, 0x74, 0x72, 0x65, 0x61, 0x6d, 0x12, 0x0e, 0x2e, 0x53, 0x74, 0x72, 0x65, 0x61, 0x6d, 0x52,
+	0x65, 0x71, 0x75, 0x65, 0x73, 0x74, 0x1a, 0x10, 0x2e, 0x50, 0x61, 0x79, 0x6c, 0x6f, 0x61, 0x64,
+	0x52, 0x65, 0x73, 0x70, 0x6f, 0x6e, 0x73, 0x65, 0x22, 0x00, 0x30, 0x01, 0x12, 0x35, 0x0a, 0x0a,
+	0x42, 0x69, 0x64, 0x69, 0x53, 0x74, 0x72, 0x65, 0x61, 0x6d, 0x12, 0x0f, 0x2e, 0x50, 0x61, 0x79,
+	0x6c, 0x6f, 0x61, 0x64, 0x52, 0x65, 0x71, 0x75, 0x65, 0x73, 0x74, 0x1a, 0x10, 0x2e, 0x50, 0x61,
+	0x79, 0x6c, 0x6f, 0x61, 0x64, 0x52, 0x65, 0x73, 0x70, 0x6f, 0x6e, 0x73, 0x65, 0x22, 0x00, 0x28,
+	0x01, 0x30, 0x01, 0x42, 0x06, 0x5a, 0x04, 0x2e, 0x2f, 0x70, 0x62, 0x62, 0x06, 0x70, 0x72, 0x6f,
+	0x74, 0x6f, 0x33,
 }
 
 var (
@@ -236,20 +327,25 @@ func file_time_proto_rawDescGZIP() []byte {
 	return file_time_proto_rawDescData
 }
 
-var file_time_proto_msgTypes = make([]protoimpl.MessageInfo, 4)
+var file_time_proto_msgTypes = make([]protoimpl.MessageInfo, 5)
 var file_time_proto_goTypes = []interface{}{
-	(*LocalTimeRequest)(nil),   // 0: LocalTimeRequest
-	(*LocalTimeResponse)(nil),  // 1: LocalTimeResponse
-	(*RemoteTimeRequest)(nil),  // 2: RemoteTimeRequest
-	(*RemoteTimeResponse)(nil), // 3: RemoteTimeResponse
+	(*LocalTimeRequest)(nil),  // 0: LocalTimeRequest
+	(*LocalTimeResponse)(nil), // 1: LocalTimeResponse
+	(*PayloadRequest)(nil),    // 2: PayloadRequest
+	(*PayloadResponse)(nil),   // 3: PayloadResponse
+	(*StreamRequest)(nil),     // 4: StreamRequest
 }
 var file_time_proto_depIdxs = []int32{
 	0, // 0: Time.LocalTime:input_type -> LocalTimeRequest
-	2, // 1: Time.RemoteTime:input_type -> RemoteTimeRequest
-	1, // 2: Time.LocalTime:output_type -> LocalTimeResponse
-	3, // 3: Time.RemoteTime:output_type -> RemoteTimeResponse
-	2, // [2:4] is the sub-list for method output_type
-	0, // [0:2] is the sub-list for method input_type
+	2, // 1: Time.Payload:input_type -> PayloadRequest
+	4, // 2: Time.ServerStream:input_type -> StreamRequest
+	2, // 3: Time.BidiStream:input_type -> PayloadRequest
+	1, // 4: Time.LocalTime:output_type -> LocalTimeResponse
+	3, // 5: Time.Payload:output_type -> PayloadResponse
+	3, // 6: Time.ServerStream:output_type -> PayloadResponse
+	3, // 7: Time.BidiStream:output_type -> PayloadResponse
+	4, // [4:8] is the sub-list for method output_type
+	0, // [0:4] is the sub-list for method input_type
 	0, // [0:0] is the sub-list for extension type_name
 	0, // [0:0] is the sub-list for extension extendee
 	0, // [0:0] is the sub-list for field type_name
@@ -286,7 +382,7 @@ func file_time_proto_init() {
 			}
 		}
 		file_time_proto_msgTypes[2].Exporter = func(v interface{}, i int) interface{} {
-			switch v := v.(*RemoteTimeRequest); i {
+			switch v := v.(*PayloadRequest); i {
 			case 0:
 				return &v.state
 			case 1:
@@ -298,7 +394,19 @@ func file_time_proto_init() {
 			}
 		}
 		file_time_proto_msgTypes[3].Exporter = func(v interface{}, i int) interface{} {
-			switch v := v.(*RemoteTimeResponse); i {
+			switch v := v.(*PayloadResponse); i {
+			case 0:
+				return &v.state
+			case 1:
+				return &v.sizeCache
+			case 2:
+				return &v.unknownFields
+			default:
+				return nil
+			}
+		}
+		file_time_proto_msgTypes[4].Exporter = func(v interface{}, i int) interface{} {
+			switch v := v.(*StreamRequest); i {
 			case 0:
 				return &v.state
 			case 1:
@@ -316,7 +424,7 @@ func file_time_proto_init() {
 			GoPackagePath: reflect.TypeOf(x{}).PkgPath(),
 			RawDescriptor: file_time_proto_rawDesc,
 			NumEnums:      0,
-			NumMessages:   4,
+			NumMessages:   5,
 			NumExtensions: 0,
 			NumServices:   1,
 		},
@@ -19,7 +19,9 @@ const _ = grpc.SupportPackageIsVersion7
 // For semantics around ctx use and closing/ending streaming RPCs, please refer to https://pkg.go.dev/google.golang.org/grpc/?tab=doc#ClientConn.NewStream.
 type TimeClient interface {
 	LocalTime(ctx context.Context, in *LocalTimeRequest, opts ...grpc.CallOption) (*LocalTimeResponse, error)
-	RemoteTime(ctx context.Context, in *RemoteTimeRequest, opts ...grpc.CallOption) (*RemoteTimeResponse, error)
+	Payload(ctx context.Context, in *PayloadRequest, opts ...grpc.CallOption) (*PayloadResponse, error)
+	ServerStream(ctx context.Context, in *StreamRequest, opts ...grpc.CallOption) (Time_ServerStreamClient, error)
+	BidiStream(ctx context.Context, opts ...grpc.CallOption) (Time_BidiStreamClient, error)
 }
 
 type timeClient struct {
@@ -39,21 +41,86 @@ func (c *timeClient) LocalTime(ctx context.Context, in *LocalTimeRequest, opts .
 	return out, nil
 }
 
-func (c *timeClient) RemoteTime(ctx context.Context, in *RemoteTimeRequest, opts ...grpc.CallOption) (*RemoteTimeResponse, error) {
-	out := new(RemoteTimeResponse)
-	err := c.cc.Invoke(ctx, "/Time/RemoteTime", in, out, opts...)
+func (c *timeClient) Payload(ctx context.Context, in *PayloadRequest, opts ...grpc.CallOption) (*PayloadResponse, error) {
+	out := new(PayloadResponse)
+	err := c.cc.Invoke(ctx, "/Time/Payload", in, out, opts...)
 	if err != nil {
 		return nil, err
 	}
 	return out, nil
 }
 
+func (c *timeClient) ServerStream(ctx context.Context, in *StreamRequest, opts ...grpc.CallOption) (Time_ServerStreamClient, error) {
+	stream, err := c.cc.NewStream(ctx, &Time_ServiceDesc.Streams[0], "/Time/ServerStream", opts...)
+	if err != nil {
+		return nil, err
+	}
+	x := &timeServerStreamClient{stream}
+	if err := x.ClientStream.SendMsg(in); err != nil {
+		return nil, err
+	}
+	if err := x.ClientStream.CloseSend(); err != nil {
+		return nil, err
+	}
+	return x, nil
+}
+
+type Time_ServerStreamClient interface {
+	Recv() (*PayloadResponse, error)
+	grpc.ClientStream
+}
+
+type timeServerStreamClient struct {
+	grpc.ClientStream
+}
+
+func (x *timeServerStreamClient) Recv() (*PayloadResponse, error) {
+	m := new(PayloadResponse)
+	if err := x.ClientStream.RecvMsg(m); err != nil {
+		return nil, err
+	}
+	return m, nil
+}
+
+func (c *timeClient) BidiStream(ctx context.Context, opts ...grpc.CallOption) (Time_BidiStreamClient, error) {
+	stream, err := c.cc.NewStream(ctx, &Time_ServiceDesc.Streams[1], "/Time/BidiStream", opts...)
+	if err != nil {
+		return nil, err
+	}
+	x := &timeBidiStreamClient{stream}
+	return x, nil
+}
+
+type Time_BidiStreamClient interface {
+	Send(*PayloadRequest) error
+	Recv() (*PayloadResponse, error)
+	grpc.ClientStream
+}
+
+type timeBidiStreamClient struct {
+	grpc.ClientStream
+}
+
+func (x *timeBidiStreamClient) Send(m *PayloadRequest) error {
+	return x.ClientStream.SendMsg(m)
+}
+
+func (x *timeBidiStreamClient) Recv() (*PayloadResponse, error) {
+	m := new(PayloadResponse)
+	if err := x.ClientStream.RecvMsg(m); err != nil {
+		return nil, err
+	}
+	return m, nil
+}
+
 // TimeServer is the server API for Time service.
 // All implementations must embed UnimplementedTimeServer
 // for forward compatibility
 type TimeServer interface {
 	LocalTime(context.Context, *LocalTimeRequest) (*LocalTimeResponse, error)
-	RemoteTime(context.Context, *RemoteTimeRequest) (*RemoteTimeResponse, error)
+	Payload(context.Context, *PayloadRequest) (*PayloadResponse, error)
+	ServerStream(*StreamRequest, Time_ServerStreamServer) error
+	BidiStream(Time_BidiStreamServer) error
 	mustEmbedUnimplementedTimeServer()
 }
 
@@ -64,8 +131,14 @@ type UnimplementedTimeServer struct {
 func (UnimplementedTimeServer) LocalTime(context.Context, *LocalTimeRequest) (*LocalTimeResponse, error) {
 	return nil, status.Errorf(codes.Unimplemented, "method LocalTime not implemented")
 }
-func (UnimplementedTimeServer) RemoteTime(context.Context, *RemoteTimeRequest) (*RemoteTimeResponse, error) {
-	return nil, status.Errorf(codes.Unimplemented, "method RemoteTime not implemented")
+func (UnimplementedTimeServer) Payload(context.Context, *PayloadRequest) (*PayloadResponse, error) {
+	return nil, status.Errorf(codes.Unimplemented, "method Payload not implemented")
+}
+func (UnimplementedTimeServer) ServerStream(*StreamRequest, Time_ServerStreamServer) error {
+	return status.Errorf(codes.Unimplemented, "method ServerStream not implemented")
+}
+func (UnimplementedTimeServer) BidiStream(Time_BidiStreamServer) error {
+	return status.Errorf(codes.Unimplemented, "method BidiStream not implemented")
 }
 func (UnimplementedTimeServer) mustEmbedUnimplementedTimeServer() {}
 
@@ -98,24 +171,71 @@ func _Time_LocalTime_Handler(srv interface{}, ctx context.Context, dec func(inte
 	return interceptor(ctx, in, info, handler)
 }
 
-func _Time_RemoteTime_Handler(srv interface{}, ctx context.Context, dec func(interface{}) error, interceptor grpc.UnaryServerInterceptor) (interface{}, error) {
-	in := new(RemoteTimeRequest)
+func _Time_Payload_Handler(srv interface{}, ctx context.Context, dec func(interface{}) error, interceptor grpc.UnaryServerInterceptor) (interface{}, error) {
+	in := new(PayloadRequest)
 	if err := dec(in); err != nil {
 		return nil, err
 	}
 	if interceptor == nil {
-		return srv.(TimeServer).RemoteTime(ctx, in)
+		return srv.(TimeServer).Payload(ctx, in)
 	}
 	info := &grpc.UnaryServerInfo{
 		Server:     srv,
-		FullMethod: "/Time/RemoteTime",
+		FullMethod: "/Time/Payload",
 	}
 	handler := func(ctx context.Context, req interface{}) (interface{}, error) {
-		return srv.(TimeServer).RemoteTime(ctx, req.(*RemoteTimeRequest))
+		return srv.(TimeServer).Payload(ctx, req.(*PayloadRequest))
 	}
 	return interceptor(ctx, in, info, handler)
 }
 
+func _Time_ServerStream_Handler(srv interface{}, stream grpc.ServerStream) error {
+	m := new(StreamRequest)
+	if err := stream.RecvMsg(m); err != nil {
+		return err
+	}
+	return srv.(TimeServer).ServerStream(m, &timeServerStreamServer{stream})
+}
+
+type Time_ServerStreamServer interface {
+	Send(*PayloadResponse) error
+	grpc.ServerStream
+}
+
+type timeServerStreamServer struct {
+	grpc.ServerStream
+}
+
+func (x *timeServerStreamServer) Send(m *PayloadResponse) error {
+	return x.ServerStream.SendMsg(m)
+}
+
+func _Time_BidiStream_Handler(srv interface{}, stream grpc.ServerStream) error {
+	return srv.(TimeServer).BidiStream(&timeBidiStreamServer{stream})
+}
+
+type Time_BidiStreamServer interface {
+	Send(*PayloadResponse) error
+	Recv() (*PayloadRequest, error)
+	grpc.ServerStream
+}
+
+type timeBidiStreamServer struct {
+	grpc.ServerStream
+}
+
+func (x *timeBidiStreamServer) Send(m *PayloadResponse) error {
+	return x.ServerStream.SendMsg(m)
+}
+
+func (x *timeBidiStreamServer) Recv() (*PayloadRequest, error) {
+	m := new(PayloadRequest)
+	if err := x.ServerStream.RecvMsg(m); err != nil {
+		return nil, err
+	}
+	return m, nil
+}
+
 // Time_ServiceDesc is the grpc.ServiceDesc for Time service.
 // It's only intended for direct use with grpc.RegisterService,
 // and not to be introspected or modified (even as a copy)
@@ -128,10 +248,22 @@ var Time_ServiceDesc = grpc.ServiceDesc{
 			Handler:    _Time_LocalTime_Handler,
 		},
 		{
-			MethodName: "RemoteTime",
-			Handler:    _Time_RemoteTime_Handler,
+			MethodName: "Payload",
+			Handler:    _Time_Payload_Handler,
+		},
+	},
+	Streams: []grpc.StreamDesc{
+		{
+			StreamName:    "ServerStream",
+			Handler:       _Time_ServerStream_Handler,
+			ServerStreams: true,
+		},
+		{
+			StreamName:    "BidiStream",
+			Handler:       _Time_BidiStream_Handler,
+			ServerStreams: true,
+			ClientStreams: true,
 		},
 	},
-	Streams:  []grpc.StreamDesc{},
 	Metadata: "time.proto",
 }
@@ -0,0 +1,17 @@
+package id.lokal;
+
+import java.util.Arrays;
+
+/**
+ * Entry point of the benchmarks jar. Same as the JMH main, e.g. -h for the
+ * options or a regex to pick benchmarks, except that the gc profiler is
+ * always on, since allocations per op matter as much as the time per op on
+ * the hot path.
+ */
+public class Benchmarks {
+    public static void main(String[] args) throws Exception {
+        final String[] withProfiler = Arrays.copyOf(new String[] {"-prof", "gc"}, args.length + 2);
+        System.arraycopy(args, 0, withProfiler, 2, args.length);
+        org.openjdk.jmh.Main.main(withProfiler);
+    }
+}
@@ -0,0 +1,98 @@
+package id.lokal;
+
+import java.lang.reflect.Field;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Submitting a new GrpcTask to the worker pool, as the blocking engine does
+ * for every op, and running it through a MultiChannel against a channel
+ * that answers right away. So this is the max rate of the blocking engine
+ * with a target of zero latency.
+ *
+ * Each invocation submits a batch and waits for all of it, which keeps the
+ * queue from growing without bound when the dispatchers outpace the pool.
+ * The contended variant has several dispatchers sharing the pool.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ExecutorBenchmark {
+    private static final int BATCH = 1000;
+
+    @Param({"fixed", "virtual"})
+    public String executorType;
+
+    @Param({"4"})
+    public int threadPoolSize;
+
+    private ExecutorService executor;
+    private GrpcGet.Shard shard;
+
+    @State(Scope.Thread)
+    public static class Batch {
+        final Future<?>[] futures = new Future<?>[BATCH];
+    }
+
+    @Setup
+    public void setUp() throws ReflectiveOperationException {
+        // GrpcTask takes its requests from GrpcGet, which main sets up
+        final Field payloads = GrpcGet.class.getDeclaredField("payloads");
+        payloads.setAccessible(true);
+        payloads.set(null, Payloads.localTime());
+
+        executor = executorType.equals("virtual")
+                ? Executors.newVirtualThreadPerTaskExecutor()
+                : Executors.newFixedThreadPool(threadPoolSize);
+        shard = new GrpcGet.Shard(new StubChannel(), executor, Integer.MAX_VALUE, 1);
+    }
+
+    @TearDown
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    private void submitBatch(Batch batch) throws InterruptedException, ExecutionException {
+        for (int i = 0; i < BATCH; i++) {
+            batch.futures[i] = executor.submit(new GrpcGet.GrpcTask(shard, System.nanoTime()));
+        }
+        for (Future<?> future : batch.futures) {
+            future.get();
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    @OperationsPerInvocation(BATCH)
+    public void submitGrpcTask(Batch batch) throws InterruptedException, ExecutionException {
+        submitBatch(batch);
+    }
+
+    @Benchmark
+    @Threads(RecorderBenchmark.CONTENDED_THREADS)
+    @OperationsPerInvocation(BATCH)
+    public void submitGrpcTaskContended(Batch batch) throws InterruptedException, ExecutionException {
+        submitBatch(batch);
+    }
+}
@@ -0,0 +1,79 @@
+package id.lokal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import io.grpc.CallOptions;
+import io.grpc.Channel;
+import io.grpc.ClientCall;
+import io.grpc.stub.ClientCalls;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Picking a connection and wrapping the call for the per-connection stats,
+ * i.e. MultiChannel.newCall, and a whole blocking unary call through it
+ * against a channel that answers right away.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MultiChannelBenchmark {
+    @Param({"round-robin", "least-outstanding", "power-of-two"})
+    public String picker;
+
+    @Param({"1", "8"})
+    public int connections;
+
+    private final Payloads payloads = Payloads.localTime();
+    private GrpcGet.MultiChannel channel;
+
+    @Setup
+    public void setUp() {
+        final List<Channel> channels = new ArrayList<Channel>();
+        final List<GrpcGet.ChannelStats> stats = new ArrayList<GrpcGet.ChannelStats>();
+        for (int i = 0; i < connections; i++) {
+            channels.add(new StubChannel());
+            stats.add(new GrpcGet.ChannelStats(i));
+        }
+        channel = new GrpcGet.MultiChannel(channels, stats, picker, null, 0);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public ClientCall<byte[], Integer> newCall() {
+        return channel.newCall(payloads.method, CallOptions.DEFAULT);
+    }
+
+    @Benchmark
+    @Threads(RecorderBenchmark.CONTENDED_THREADS)
+    public ClientCall<byte[], Integer> newCallContended() {
+        return channel.newCall(payloads.method, CallOptions.DEFAULT);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Integer blockingUnaryCall() {
+        return ClientCalls.blockingUnaryCall(channel, payloads.method, CallOptions.DEFAULT, payloads.next());
+    }
+
+    @Benchmark
+    @Threads(RecorderBenchmark.CONTENDED_THREADS)
+    public Integer blockingUnaryCallContended() {
+        return ClientCalls.blockingUnaryCall(channel, payloads.method, CallOptions.DEFAULT, payloads.next());
+    }
+}
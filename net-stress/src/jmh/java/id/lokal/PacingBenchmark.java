@@ -0,0 +1,79 @@
+package id.lokal;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+import io.github.bucket4j.Bandwidth;
+import io.github.bucket4j.Bucket;
+import io.github.bucket4j.Bucket4j;
+import org.HdrHistogram.Recorder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The cost of pacing one op, at a rate so high that neither pacer ever
+ * waits, i.e. the upper bound on the dispatch rate of one dispatcher.
+ *
+ * ArrivalScheduler is what the dispatchers use. Bucket4j is what they used
+ * before, and is kept as the baseline. The Bucket4j bucket is shared, as it
+ * was by all the ops, while each thread gets its own ArrivalScheduler, as
+ * each dispatcher shard does.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PacingBenchmark {
+    @State(Scope.Benchmark)
+    public static class SharedBucket {
+        // A token per ns, the highest rate Bucket4j allows, which is still
+        // more than a benchmark thread can use up
+        final Bucket bucket = Bucket4j.builder()
+                .addLimit(Bandwidth.simple(1_000_000_000L, Duration.ofSeconds(1)))
+                .build();
+    }
+
+    @State(Scope.Thread)
+    public static class Scheduler {
+        ArrivalScheduler scheduler;
+
+        @Setup
+        public void setUp() {
+            scheduler = new ArrivalScheduler("uniform", Integer.MAX_VALUE, 0, System.nanoTime(), new Recorder(2));
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void bucket4jConsumeUninterruptibly(SharedBucket state) {
+        state.bucket.asScheduler().consumeUninterruptibly(1);
+    }
+
+    @Benchmark
+    @Threads(RecorderBenchmark.CONTENDED_THREADS)
+    public void bucket4jConsumeUninterruptiblyContended(SharedBucket state) {
+        state.bucket.asScheduler().consumeUninterruptibly(1);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public long arrivalSchedulerNext(Scheduler state) {
+        return state.scheduler.next();
+    }
+
+    @Benchmark
+    @Threads(RecorderBenchmark.CONTENDED_THREADS)
+    public long arrivalSchedulerNextContended(Scheduler state) {
+        return state.scheduler.next();
+    }
+}
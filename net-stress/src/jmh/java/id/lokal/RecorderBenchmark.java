@@ -0,0 +1,52 @@
+package id.lokal;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.HdrHistogram.Recorder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Recording a latency, which every op does twice (service and response time)
+ * into the Recorders of its shard. The contended variant is a shard whose
+ * ops complete on several threads at once, e.g. the worker pool or the
+ * transport threads in async mode.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RecorderBenchmark {
+    static final int CONTENDED_THREADS = 4;
+
+    private final Recorder recorder = new Recorder(2);
+
+    private static long latency() {
+        // 100us to 100ms in ns, so that the values spread over the buckets
+        // like real latencies do
+        return ThreadLocalRandom.current().nextLong(100_000, 100_000_000);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void recordValue() {
+        recorder.recordValue(latency());
+    }
+
+    @Benchmark
+    @Threads(CONTENDED_THREADS)
+    public void recordValueContended() {
+        recorder.recordValue(latency());
+    }
+}
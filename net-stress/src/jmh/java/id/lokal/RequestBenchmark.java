@@ -0,0 +1,82 @@
+package id.lokal;
+
+import id.lokal.time.TimeOuterClass;
+
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.api.Request;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Building the request of an op. The gRPC op used to build and serialize a
+ * LocalTimeRequest per call, where it now picks one of the pre-serialized
+ * Payloads. The HTTP op builds a new Jetty request per call.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RequestBenchmark {
+    private final Payloads payloads = Payloads.localTime();
+    private final HttpClient httpClient = new HttpClient();
+
+    @Setup
+    public void setUp() throws Exception {
+        httpClient.start();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        httpClient.stop();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public byte[] localTimeRequest() {
+        return TimeOuterClass.LocalTimeRequest.newBuilder().build().toByteArray();
+    }
+
+    @Benchmark
+    @Threads(RecorderBenchmark.CONTENDED_THREADS)
+    public byte[] localTimeRequestContended() {
+        return TimeOuterClass.LocalTimeRequest.newBuilder().build().toByteArray();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public byte[] payloadsNext() {
+        return payloads.next();
+    }
+
+    @Benchmark
+    @Threads(RecorderBenchmark.CONTENDED_THREADS)
+    public byte[] payloadsNextContended() {
+        return payloads.next();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Request jettyNewRequest() {
+        return httpClient.newRequest("http://127.0.0.1:60000/local");
+    }
+
+    @Benchmark
+    @Threads(RecorderBenchmark.CONTENDED_THREADS)
+    public Request jettyNewRequestContended() {
+        return httpClient.newRequest("http://127.0.0.1:60000/local");
+    }
+}
@@ -0,0 +1,126 @@
+package id.lokal;
+
+import java.lang.reflect.Field;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Handing ops over to a pool of workers, through the ring of --executor ring
+ * or the queue of a fixed pool, as the blocking engine does for every op.
+ * With op=noop, this is the cost of the handoff alone, which allocates
+ * nothing per op through the ring, while the fixed pool allocates a task, a
+ * FutureTask and a queue node. With op=grpc-task, the op is a GrpcTask
+ * against a channel that answers right away, same as ExecutorBenchmark, and
+ * the rest of the allocations are gRPC's own.
+ *
+ * Each invocation hands over a batch and waits for all of it. The contended
+ * variant has several dispatchers sharing the pool.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RingPoolBenchmark {
+    private static final int BATCH = 1000;
+
+    @Param({"ring", "fixed"})
+    public String executorType;
+
+    @Param({"noop", "grpc-task"})
+    public String op;
+
+    @Param({"4"})
+    public int threadPoolSize;
+
+    private RingPool ring;
+    private ExecutorService executor;
+    private RingPool.Op task;
+    private final AtomicLong offered = new AtomicLong();
+    private final AtomicLong done = new AtomicLong();
+
+    @Setup
+    public void setUp() throws ReflectiveOperationException {
+        // GrpcTask takes its requests from GrpcGet, which main sets up
+        final Field payloads = GrpcGet.class.getDeclaredField("payloads");
+        payloads.setAccessible(true);
+        payloads.set(null, Payloads.localTime());
+
+        final GrpcGet.Shard shard = new GrpcGet.Shard(new StubChannel(), null, Integer.MAX_VALUE, 1);
+        task = op.equals("noop")
+                ? createdAt -> done.incrementAndGet()
+                : createdAt -> {
+                    GrpcGet.GrpcTask.call(shard, createdAt);
+                    done.incrementAndGet();
+                };
+
+        if (executorType.equals("ring")) {
+            // Room for the batches of all the contended dispatchers
+            ring = new RingPool("ring-worker", threadPoolSize, BATCH * RecorderBenchmark.CONTENDED_THREADS, task,
+                    GrpcGet.GrpcTask::fail);
+        }
+        else {
+            executor = Executors.newFixedThreadPool(threadPoolSize);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (ring != null) {
+            ring.shutdown();
+        }
+        else {
+            executor.shutdown();
+        }
+    }
+
+    private void handOverBatch() {
+        for (int i = 0; i < BATCH; i++) {
+            final long createdAt = System.nanoTime();
+            if (ring != null) {
+                while (!ring.offer(createdAt)) {
+                    Thread.onSpinWait();
+                }
+            }
+            else {
+                executor.submit(() -> task.run(createdAt));
+            }
+        }
+        final long target = offered.addAndGet(BATCH);
+        while (done.get() < target) {
+            Thread.onSpinWait();
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    @OperationsPerInvocation(BATCH)
+    public void handOver() {
+        handOverBatch();
+    }
+
+    @Benchmark
+    @Threads(RecorderBenchmark.CONTENDED_THREADS)
+    @OperationsPerInvocation(BATCH)
+    public void handOverContended() {
+        handOverBatch();
+    }
+}
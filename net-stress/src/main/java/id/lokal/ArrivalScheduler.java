@@ -0,0 +1,84 @@
+package id.lokal;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.locks.LockSupport;
+
+import org.HdrHistogram.Recorder;
+
+/**
+ * Open-loop arrival schedule for a fixed RPS.
+ *
+ * The intended send time of every op is computed from the start time and the
+ * op index, and never from the time the previous op was actually sent. The
+ * intended time is used as the op's creation time, so any delay in sending it
+ * shows up in the response time, to avoid coordinated omission. The delay
+ * itself is recorded as the dispatch lag, to tell whether the requested load
+ * was actually offered.
+ *
+ * Currently, these arrival modes are supported, i.e.
+ * - brutal: Simulate the worst case where all ops arrive at the beginning of
+ *           each second.
+ * - burst: Same as brutal, but with a shorter period, e.g. all ops for each
+ *          10ms arrive at the beginning of the 10ms.
+ * - uniform: Simulate the best case where ops arrive at fixed rate.
+ * - poisson: Ops arrive with exponentially distributed inter-arrival times,
+ *            i.e. independently of each other, like real users.
+ */
+class ArrivalScheduler {
+    // Below this, parking overshoots more than it saves, so spin instead.
+    private static final long SPIN_THRESHOLD_NANOS = 100_000;
+
+    private final String mode;
+    private final double intervalNanos;
+    private final double opsPerPeriod;
+    private final long periodNanos;
+    private final long startTime;
+    private final Recorder lagRecorder;
+
+    private final SplittableRandom random = new SplittableRandom();
+    private double poissonOffset = 0;
+    private long count = 0;
+
+    ArrivalScheduler(final String mode, final int rps, final int burstPeriodMillis,
+                     final long startTime, final Recorder lagRecorder) {
+        this.mode = mode;
+        this.intervalNanos = 1_000_000_000.0 / rps;
+        this.periodNanos = mode.equals("brutal") ? 1_000_000_000L : burstPeriodMillis * 1_000_000L;
+        this.opsPerPeriod = (double) rps * periodNanos / 1_000_000_000L;
+        this.startTime = startTime;
+        this.lagRecorder = lagRecorder;
+    }
+
+    /**
+     * Waits until the intended send time of the next op, and returns it.
+     */
+    long next() {
+        final long intendedAt = startTime + offset(count++);
+
+        long remaining;
+        while ((remaining = intendedAt - System.nanoTime()) > 0) {
+            if (remaining > SPIN_THRESHOLD_NANOS) {
+                LockSupport.parkNanos(remaining - SPIN_THRESHOLD_NANOS);
+            }
+            else {
+                Thread.onSpinWait();
+            }
+        }
+
+        lagRecorder.recordValue(-remaining);
+        return intendedAt;
+    }
+
+    private long offset(final long i) {
+        switch (mode) {
+            case "brutal":
+            case "burst":
+                return (long) (i / opsPerPeriod) * periodNanos;
+            case "poisson":
+                poissonOffset += -Math.log(1.0 - random.nextDouble()) * intervalNanos;
+                return (long) poissonOffset;
+            default:
+                return (long) (i * intervalNanos);
+        }
+    }
+}
@@ -0,0 +1,398 @@
+package id.lokal;
+
+import id.lokal.time.TimeGrpc;
+import id.lokal.time.TimeOuterClass;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.protobuf.ByteString;
+import io.grpc.ForwardingServerCall;
+import io.grpc.Grpc;
+import io.grpc.InsecureServerCredentials;
+import io.grpc.Metadata;
+import io.grpc.Server;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.ServerInterceptors;
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import net.sourceforge.argparse4j.ArgumentParsers;
+import net.sourceforge.argparse4j.inf.ArgumentParser;
+import net.sourceforge.argparse4j.inf.ArgumentParserException;
+import net.sourceforge.argparse4j.inf.Namespace;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+import org.eclipse.jetty.http2.server.HTTP2CServerConnectionFactory;
+import org.eclipse.jetty.server.HttpConfiguration;
+import org.eclipse.jetty.server.HttpConnectionFactory;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+
+/**
+ * An in-process stand-in for the Go app, i.e. the Time service over gRPC
+ * (on the Netty transport) and /local over HTTP/1.1 and h2c (on Jetty), with
+ * an optional injected delay per response.
+ *
+ * Run against it over loopback, the latencies and the max RPS are those of
+ * the load generator alone, plus the injected delay. That is the baseline to
+ * subtract from a run through the proxies, with the same engine, connections
+ * and RPS.
+ *
+ * The delay is either a fixed number of ms, or drawn per response from a
+ * Distribution.
+ * Delayed responses are sent from a scheduler rather than by sleeping, so
+ * that the server threads are never the bottleneck. The scheduler has a
+ * thread per core, and only times the /local responses, which are written
+ * from Jetty's own pool. Only the unary calls and /local are delayed. The
+ * streams keep to the schedule they ask for.
+ *
+ * Same as the Go app, the unary calls and /local return the time spent on
+ * them in an x-handler-time-us header, for --upstream-times.
+ */
+class CalibrationServer {
+    // Same as the Go app
+    private static final int MAX_PAYLOAD_SIZE = 16 << 20;
+    private static final ByteString PAYLOAD = ByteString.copyFrom(new byte[MAX_PAYLOAD_SIZE]);
+
+    private final Distribution delay;
+    private final AtomicInteger schedulerThreads = new AtomicInteger();
+    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(
+            Runtime.getRuntime().availableProcessors(), (Runnable r) -> {
+                final Thread thread = new Thread(r, "calibration-delay-" + schedulerThreads.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            });
+    // The delays actually injected, in ns
+    private final Recorder injected = new Recorder(2);
+
+    private Server grpcServer;
+    private org.eclipse.jetty.server.Server httpServer;
+
+    CalibrationServer(Distribution delay) {
+        this.delay = delay;
+    }
+
+    /**
+     * Starts the gRPC server, on all interfaces, and returns its port, e.g.
+     * the one picked for port 0.
+     */
+    int startGrpc(int port) throws IOException {
+        grpcServer = Grpc.newServerBuilderForPort(port, InsecureServerCredentials.create())
+                .addService(ServerInterceptors.intercept(new TimeService(), new HandlerTime()))
+                // None of the calls block, so skip the hop to an executor
+                .directExecutor()
+                .maxInboundMessageSize(MAX_PAYLOAD_SIZE + 1024)
+                .build()
+                .start();
+        return grpcServer.getPort();
+    }
+
+    /**
+     * Starts the HTTP server, on all interfaces, and returns its port. Both
+     * HTTP/1.1 and h2c with prior knowledge are served on it.
+     */
+    int startHttp(int port) throws Exception {
+        httpServer = new org.eclipse.jetty.server.Server();
+        final HttpConfiguration config = new HttpConfiguration();
+        final ServerConnector connector = new ServerConnector(
+                httpServer, new HttpConnectionFactory(config), new HTTP2CServerConnectionFactory(config));
+        connector.setPort(port);
+        connector.setAcceptQueueSize(1024);
+        httpServer.addConnector(connector);
+        httpServer.setHandler(new LocalHandler());
+        httpServer.start();
+        return connector.getLocalPort();
+    }
+
+    void close() {
+        if (grpcServer != null) {
+            grpcServer.shutdownNow();
+        }
+        if (httpServer != null) {
+            try {
+                httpServer.stop();
+            }
+            catch (Exception ex) {
+                // Only ever closed on the way out
+            }
+        }
+        scheduler.shutdownNow();
+    }
+
+    void reset() {
+        injected.reset();
+    }
+
+    /**
+     * Logs the latencies of the load generator alone, i.e. the given response
+     * times minus the injected delays, as of the last reset.
+     */
+    void logOverall(Logger logger, Histogram responseTimes, double rps) {
+        final Histogram delays = injected.getIntervalHistogram();
+        logger.printf(
+                Level.INFO,
+                "%30s delay: %s, served: %d, p50: %8.2f, p99: %8.2f, max: %8.2f",
+                "(calibration injected in ms)",
+                delay.spec,
+                delays.getTotalCount(),
+                delays.getValueAtPercentile(50) / 1_000_000.0,
+                delays.getValueAtPercentile(99) / 1_000_000.0,
+                delays.getMaxValue() / 1_000_000.0);
+        logger.printf(
+                Level.INFO,
+                "%30s rps: %9.2f, p50: %8.2f, p90: %8.2f, p99: %8.2f, p99.9: %8.2f",
+                "(generator baseline in ms)",
+                rps,
+                overhead(responseTimes, delays, 50),
+                overhead(responseTimes, delays, 90),
+                overhead(responseTimes, delays, 99),
+                overhead(responseTimes, delays, 99.9));
+    }
+
+    private static double overhead(Histogram responseTimes, Histogram delays, double percentile) {
+        // Exact for a fixed delay, and close enough for the others as long as
+        // the delay dominates neither side
+        return Math.max(0, responseTimes.getValueAtPercentile(percentile) - delays.getValueAtPercentile(percentile))
+            / 1_000_000.0;
+    }
+
+    private void respond(Runnable response) {
+        final long nanos = delay.nextNanos();
+        injected.recordValue(nanos);
+        if (nanos == 0) {
+            response.run();
+        }
+        else {
+            scheduler.schedule(response, nanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private static String formattedTime() {
+        // RFC 3339, as formatted by the Go app
+        return OffsetDateTime.now().truncatedTo(ChronoUnit.SECONDS).format(DateTimeFormatter.ISO_OFFSET_DATE_TIME);
+    }
+
+    /**
+     * Adds the time from the start of each call until its response headers,
+     * which a unary call sends along with its response.
+     */
+    private static class HandlerTime implements ServerInterceptor {
+        private static final Metadata.Key<String> HANDLER_TIME =
+                Metadata.Key.of(UpstreamTimes.HANDLER_TIME, Metadata.ASCII_STRING_MARSHALLER);
+
+        @Override
+        public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(
+                ServerCall<ReqT, RespT> call, Metadata headers, ServerCallHandler<ReqT, RespT> next) {
+            final long startedAt = System.nanoTime();
+            return next.startCall(new ForwardingServerCall.SimpleForwardingServerCall<ReqT, RespT>(call) {
+                @Override
+                public void sendHeaders(Metadata headers) {
+                    headers.put(HANDLER_TIME, Long.toString((System.nanoTime() - startedAt) / 1_000));
+                    super.sendHeaders(headers);
+                }
+            }, headers);
+        }
+    }
+
+    private class TimeService extends TimeGrpc.TimeImplBase {
+        @Override
+        public void localTime(TimeOuterClass.LocalTimeRequest request,
+                              StreamObserver<TimeOuterClass.LocalTimeResponse> responseObserver) {
+            respond(() -> {
+                responseObserver.onNext(TimeOuterClass.LocalTimeResponse.newBuilder()
+                        .setLocalTime(formattedTime())
+                        .build());
+                responseObserver.onCompleted();
+            });
+        }
+
+        @Override
+        public void payload(TimeOuterClass.PayloadRequest request,
+                            StreamObserver<TimeOuterClass.PayloadResponse> responseObserver) {
+            if (request.getResponseSize() < 0 || request.getResponseSize() > MAX_PAYLOAD_SIZE) {
+                responseObserver.onError(Status.INVALID_ARGUMENT
+                        .withDescription("invalid response size: " + request.getResponseSize())
+                        .asRuntimeException());
+                return;
+            }
+            respond(() -> {
+                responseObserver.onNext(TimeOuterClass.PayloadResponse.newBuilder()
+                        .setPayload(PAYLOAD.substring(0, request.getResponseSize()))
+                        .build());
+                responseObserver.onCompleted();
+            });
+        }
+
+        @Override
+        public void serverStream(TimeOuterClass.StreamRequest request,
+                                 StreamObserver<TimeOuterClass.PayloadResponse> responseObserver) {
+            if (request.getResponseSize() < 0 || request.getResponseSize() > MAX_PAYLOAD_SIZE) {
+                responseObserver.onError(Status.INVALID_ARGUMENT
+                        .withDescription("invalid response size: " + request.getResponseSize())
+                        .asRuntimeException());
+                return;
+            }
+            final TimeOuterClass.PayloadResponse response = TimeOuterClass.PayloadResponse.newBuilder()
+                    .setPayload(PAYLOAD.substring(0, request.getResponseSize()))
+                    .build();
+
+            // Each send schedules the next one, at its time from the start
+            // of the stream, so that a slow send is caught up on
+            final long start = System.nanoTime();
+            final Runnable send = new Runnable() {
+                private int sent = 0;
+
+                @Override
+                public void run() {
+                    if (sent == request.getCount()) {
+                        responseObserver.onCompleted();
+                        return;
+                    }
+                    try {
+                        responseObserver.onNext(response);
+                    }
+                    catch (RuntimeException ex) {
+                        // Cancelled by the client
+                        return;
+                    }
+                    sent++;
+                    final long next = start + sent * request.getIntervalMicros() * 1000 - System.nanoTime();
+                    scheduler.schedule(this, Math.max(0, next), TimeUnit.NANOSECONDS);
+                }
+            };
+            scheduler.execute(send);
+        }
+
+        @Override
+        public StreamObserver<TimeOuterClass.PayloadRequest> bidiStream(
+                StreamObserver<TimeOuterClass.PayloadResponse> responseObserver) {
+            return new StreamObserver<TimeOuterClass.PayloadRequest>() {
+                @Override
+                public void onNext(TimeOuterClass.PayloadRequest request) {
+                    if (request.getResponseSize() < 0 || request.getResponseSize() > MAX_PAYLOAD_SIZE) {
+                        responseObserver.onError(Status.INVALID_ARGUMENT
+                                .withDescription("invalid response size: " + request.getResponseSize())
+                                .asRuntimeException());
+                        return;
+                    }
+                    responseObserver.onNext(TimeOuterClass.PayloadResponse.newBuilder()
+                            .setPayload(PAYLOAD.substring(0, request.getResponseSize()))
+                            .build());
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                }
+
+                @Override
+                public void onCompleted() {
+                    responseObserver.onCompleted();
+                }
+            };
+        }
+    }
+
+    private class LocalHandler extends AbstractHandler {
+        @Override
+        public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response)
+                throws IOException {
+            baseRequest.setHandled(true);
+            if (target.equals("/health")) {
+                return;
+            }
+            if (!target.equals("/local")) {
+                response.sendError(404);
+                return;
+            }
+
+            final long startedAt = System.nanoTime();
+            final AsyncContext context = request.startAsync();
+            context.setTimeout(0);
+            // The write may block, so only the timing is left to the
+            // scheduler
+            respond(() -> context.start(() -> {
+                final byte[] body = ("{\"localTime\":\"" + formattedTime() + "\"}\n").getBytes(StandardCharsets.UTF_8);
+                response.setHeader(UpstreamTimes.HANDLER_TIME, Long.toString((System.nanoTime() - startedAt) / 1_000));
+                response.setContentType("application/json");
+                response.setContentLength(body.length);
+                try {
+                    response.getOutputStream().write(body);
+                }
+                catch (IOException ex) {
+                    // The client is gone, nothing to tell it
+                }
+                context.complete();
+            }));
+        }
+    }
+
+    /**
+     * Runs the server on its own, e.g. in place of the Go app behind the
+     * Envoys, for a target whose latency is known.
+     */
+    public static void main(String[] args) {
+        final Logger logger = LogManager.getLogger(CalibrationServer.class);
+
+        ArgumentParser parser = ArgumentParsers.newFor("calibration-server").build()
+                .defaultHelp(true)
+                .description("Time service with an injected delay");
+
+        parser.addArgument("--grpc-port")
+                .type(Integer.class)
+                .setDefault(60000)
+                .help("Port to serve gRPC on");
+
+        parser.addArgument("--http-port")
+                .type(Integer.class)
+                .setDefault(60001)
+                .help("Port to serve HTTP/1.1 and h2c on");
+
+        parser.addArgument("--delay")
+                .type(String.class)
+                .setDefault("0")
+                .help("Delay in ms to inject per response, i.e. fixed:MS, "
+                      + "uniform:MIN,MAX or exponential:MEAN");
+
+        Namespace ns = null;
+        Distribution delay = null;
+        try {
+            ns = parser.parseArgs(args);
+            delay = Distribution.parse(ns.getString("delay"));
+        } catch (ArgumentParserException e) {
+            parser.handleError(e);
+            System.exit(1);
+        } catch (IllegalArgumentException e) {
+            parser.handleError(new ArgumentParserException(e.getMessage(), parser));
+            System.exit(1);
+        }
+
+        final CalibrationServer server = new CalibrationServer(delay);
+        try {
+            logger.info("Serving gRPC on port {}, HTTP on port {}, with delay {}",
+                    server.startGrpc(ns.getInt("grpc_port").intValue()),
+                    server.startHttp(ns.getInt("http_port").intValue()),
+                    delay.spec);
+        } catch (Exception ex) {
+            logger.error("error starting calibration server: {}", ex.getMessage());
+            System.exit(1);
+        }
+
+        Runtime.getRuntime().addShutdownHook(new Thread(server::close, "last"));
+    }
+}
@@ -0,0 +1,179 @@
+package id.lokal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+import org.HdrHistogram.Histogram;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Closed-loop load, from a fixed number of virtual users, each of which sends
+ * its next op as soon as the previous one completes, after an optional think
+ * time. Unlike the open-loop modes, the offered load adapts to the latency,
+ * so there is never a backlog, and the achieved throughput at enough users
+ * is the capacity of the target.
+ *
+ * The users are swept over a list of levels, e.g. 1,2,4,8,16,32, each held
+ * for a fixed duration, and each level is reported with Little's law, i.e.
+ * - in flight: X * R, the mean number of ops at the target, where X is the
+ *   throughput and R the mean response time.
+ * - users: X * (R + Z), where Z is the mean think time, which falls short of
+ *   the actual users by the time they spend in the load generator itself.
+ * - saturation: X max * (R at the first level + Z), the number of users
+ *   beyond which more users only add latency.
+ */
+class ClosedLoop {
+    interface Op {
+        void run(long createdAt);
+    }
+
+    interface Levels {
+        Result run(int users);
+    }
+
+    static class Result {
+        final int users;
+        final double achieved;
+        final Histogram responseTimes;
+        final long failed;
+
+        Result(int users, double achieved, Histogram responseTimes, long failed) {
+            this.users = users;
+            this.achieved = achieved;
+            this.responseTimes = responseTimes;
+            this.failed = failed;
+        }
+
+        double failedPercent() {
+            final long ops = responseTimes.getTotalCount() + failed;
+            return ops == 0 ? 0 : 100.0 * failed / ops;
+        }
+    }
+
+    private final Logger logger;
+    final List<Integer> levels;
+    private final Distribution thinkTime;
+    private final Op[] ops;
+
+    private final List<Thread> threads = new ArrayList<Thread>();
+    // Users with an id of this or more stop after their op in progress
+    private volatile int users = 0;
+
+    /**
+     * The ops are spread over the users round-robin, e.g. one per shard.
+     */
+    ClosedLoop(Logger logger, List<Integer> levels, Distribution thinkTime, Op... ops) {
+        this.logger = logger;
+        this.levels = levels;
+        this.thinkTime = thinkTime;
+        this.ops = ops;
+    }
+
+    /**
+     * Parses a comma-separated list of positive numbers of users.
+     */
+    static List<Integer> parseLevels(String levels) {
+        final List<Integer> parsed = new ArrayList<Integer>();
+        for (String level : levels.split(",")) {
+            final int users = Integer.parseInt(level.trim());
+            if (users <= 0) {
+                throw new NumberFormatException("not a positive number: " + level);
+            }
+            parsed.add(users);
+        }
+        return parsed;
+    }
+
+    /**
+     * The label of the level in progress, for the interval logs.
+     */
+    String phase() {
+        return "users-" + users;
+    }
+
+    /**
+     * Starts or stops users until there are the given number of them.
+     */
+    void setUsers(int users) {
+        this.users = users;
+        for (int id = threads.size(); id < users; id++) {
+            final int user = id;
+            threads.add(Thread.ofVirtual().name("user-" + id).start(() -> run(user)));
+        }
+        while (threads.size() > users) {
+            final Thread thread = threads.remove(threads.size() - 1);
+            // Only as long as the op in progress takes, which is what it
+            // would have taken anyway
+            try {
+                thread.join();
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private void run(int user) {
+        final Op op = ops[user % ops.length];
+        while (user < users) {
+            op.run(System.nanoTime());
+            if (thinkTime != null) {
+                LockSupport.parkNanos(thinkTime.nextNanos());
+            }
+        }
+    }
+
+    /**
+     * Runs every level in turn, and logs the curve of throughput and latency
+     * over the users, with the max throughput.
+     */
+    List<Result> run(Levels run) {
+        final List<Result> curve = new ArrayList<Result>();
+        for (int level : levels) {
+            setUsers(level);
+            final Result result = run.run(level);
+            curve.add(result);
+            log(result);
+        }
+        setUsers(0);
+
+        final double think = thinkTime == null ? 0 : thinkTime.meanNanos() / 1_000_000.0;
+        logger.info("closed loop, throughput vs users{}:", thinkTime == null ? "" : ", think time " + thinkTime.spec);
+        Result best = curve.get(0);
+        for (Result result : curve) {
+            log(result);
+            if (result.achieved > best.achieved) {
+                best = result;
+            }
+        }
+        final double first = curve.get(0).responseTimes.getMean() / 1_000_000.0;
+        logger.printf(
+                Level.INFO,
+                "max throughput: %.2f rps at %d users, saturation at about %.1f users",
+                best.achieved,
+                best.users,
+                best.achieved * (first + think) / 1_000);
+        return curve;
+    }
+
+    private void log(Result result) {
+        final double mean = result.responseTimes.getMean() / 1_000_000.0;
+        final double think = thinkTime == null ? 0 : thinkTime.meanNanos() / 1_000_000.0;
+        logger.printf(
+                Level.INFO,
+                "%30s users: %5d, achieved: %9.2f, mean: %8.2f, p50: %8.2f, p99: %8.2f, p99.9: %8.2f, failed: %6.2f%%, in flight: %8.1f, X(R+Z): %8.1f",
+                "(level)",
+                result.users,
+                result.achieved,
+                mean,
+                result.responseTimes.getValueAtPercentile(50) / 1_000_000.0,
+                result.responseTimes.getValueAtPercentile(99) / 1_000_000.0,
+                result.responseTimes.getValueAtPercentile(99.9) / 1_000_000.0,
+                result.failedPercent(),
+                result.achieved * mean / 1_000,
+                result.achieved * (mean + think) / 1_000);
+    }
+}
@@ -0,0 +1,504 @@
+package id.lokal;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.Function;
+
+import javax.imageio.ImageIO;
+
+import net.sourceforge.argparse4j.ArgumentParsers;
+import net.sourceforge.argparse4j.impl.Arguments;
+import net.sourceforge.argparse4j.inf.ArgumentParser;
+import net.sourceforge.argparse4j.inf.ArgumentParserException;
+import net.sourceforge.argparse4j.inf.Namespace;
+import org.HdrHistogram.Histogram;
+import org.apache.commons.math3.distribution.TDistribution;
+import org.apache.commons.math3.stat.descriptive.SummaryStatistics;
+import org.apache.commons.math3.stat.inference.TTest;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+/**
+ * Compares the runs saved by RunArchive, grouped by two of their labels, e.g.
+ * machine type by Envoy concurrency, into
+ * - a markdown table of the mean of a metric over the repeated runs of each
+ *   group, with its confidence interval,
+ * - a markdown table of each row against a baseline row, i.e. the relative
+ *   difference of the means, its confidence interval, and the p-value of
+ *   Welch's t-test, so that a difference can be told from run-to-run noise,
+ * - optionally a PNG chart of the throughput and the p99 response time of
+ *   each row across the columns, with their confidence intervals.
+ *
+ * Runs that were generator-bound are left out, since they measure the load
+ * generator rather than the target.
+ */
+class Compare {
+    private static final Logger logger = LogManager.getLogger(Compare.class);
+
+    private static final Color[] PALETTE = {
+        new Color(0x1f77b4), new Color(0xff7f0e), new Color(0x2ca02c), new Color(0xd62728),
+        new Color(0x9467bd), new Color(0x8c564b), new Color(0xe377c2), new Color(0x7f7f7f),
+    };
+
+    /**
+     * Orders label values as numbers where they are numbers, e.g. a
+     * concurrency of 10 after 2.
+     */
+    private static final Comparator<String> NATURAL = (String a, String b) -> {
+        try {
+            return Double.compare(Double.parseDouble(a), Double.parseDouble(b));
+        }
+        catch (NumberFormatException ex) {
+            return a.compareTo(b);
+        }
+    };
+
+    private static class Run {
+        final String row;
+        final String column;
+        final Map<?, ?> result;
+        // Null for a search, which has no single one
+        final Histogram responseTimes;
+
+        Run(String row, String column, Map<?, ?> result, Histogram responseTimes) {
+            this.row = row;
+            this.column = column;
+            this.result = result;
+            this.responseTimes = responseTimes;
+        }
+    }
+
+    /**
+     * The values of a metric over the repeated runs of a group.
+     */
+    private static class Cell {
+        final SummaryStatistics stats = new SummaryStatistics();
+        private final List<Double> values = new ArrayList<Double>();
+
+        void add(double value) {
+            values.add(value);
+            stats.addValue(value);
+        }
+
+        double[] values() {
+            return values.stream().mapToDouble(Double::doubleValue).toArray();
+        }
+
+        /**
+         * The half-width of the confidence interval of the mean, or NaN with
+         * fewer than 2 runs.
+         */
+        double halfWidth(double confidence) {
+            if (stats.getN() < 2) {
+                return Double.NaN;
+            }
+            final double t = new TDistribution(stats.getN() - 1).inverseCumulativeProbability(1 - (1 - confidence) / 2);
+            return t * stats.getStandardDeviation() / Math.sqrt(stats.getN());
+        }
+    }
+
+    public static void main(String[] args) {
+        ArgumentParser parser = ArgumentParsers.newFor("compare").build()
+                .defaultHelp(true)
+                .description("Compare archived runs");
+
+        parser.addArgument("runs")
+                .nargs("+")
+                .help("Run records, or directories of them, as saved with --archive");
+
+        parser.addArgument("--rows")
+                .type(String.class)
+                .required(true)
+                .help("The label to group the runs into rows by, e.g. machine");
+
+        parser.addArgument("--columns")
+                .type(String.class)
+                .help("The label to group the runs into columns by, e.g. "
+                      + "concurrency (a single column if omitted)");
+
+        parser.addArgument("--metric")
+                .choices("rps", "p50", "p90", "p99", "p99.9", "p99.99")
+                .setDefault("rps")
+                .help("The metric of the tables, i.e. the achieved (or max "
+                      + "sustainable) rps, or a response time percentile in ms, "
+                      + "from the archived histogram where there is one");
+
+        parser.addArgument("--baseline")
+                .type(String.class)
+                .help("The row to compare the other rows against (the first "
+                      + "row if omitted)");
+
+        parser.addArgument("--confidence")
+                .type(Double.class)
+                .setDefault(0.95)
+                .help("The confidence level of the intervals, and 1 minus the "
+                      + "significance level of the tests");
+
+        parser.addArgument("--include-generator-bound")
+                .action(Arguments.storeTrue())
+                .help("Also include the runs where the load generator was the "
+                      + "bottleneck");
+
+        parser.addArgument("--markdown")
+                .type(String.class)
+                .help("File to write the tables to (stdout if omitted)");
+
+        parser.addArgument("--chart")
+                .type(String.class)
+                .help("PNG file to draw the throughput and p99 of each row "
+                      + "across the columns to");
+
+        Namespace ns = null;
+        try {
+            ns = parser.parseArgs(args);
+        } catch (ArgumentParserException e) {
+            parser.handleError(e);
+            System.exit(1);
+        }
+
+        final String rowLabel = ns.getString("rows");
+        final String columnLabel = ns.getString("columns");
+        final double confidence = ns.getDouble("confidence").doubleValue();
+        if (confidence <= 0 || confidence >= 1) {
+            parser.handleError(new ArgumentParserException(
+                    "argument --confidence must be between 0 and 1", parser));
+            System.exit(1);
+        }
+
+        final List<Run> runs = new ArrayList<Run>();
+        for (String path : ns.<String>getList("runs")) {
+            final File file = new File(path);
+            final File[] files = file.isDirectory()
+                    ? file.listFiles((File dir, String name) -> name.endsWith(".yaml"))
+                    : new File[] {file};
+            Arrays.sort(files);
+            for (File record : files) {
+                try {
+                    final Run run = load(record, rowLabel, columnLabel, ns.getBoolean("include_generator_bound").booleanValue());
+                    if (run != null) {
+                        runs.add(run);
+                    }
+                } catch (IOException | IllegalArgumentException ex) {
+                    logger.error("error reading {}: {}", record, ex.getMessage());
+                    System.exit(1);
+                }
+            }
+        }
+        if (runs.isEmpty()) {
+            logger.error("no runs to compare");
+            System.exit(1);
+        }
+
+        final Map<String, Map<String, Cell>> cells = group(runs, metric(ns.getString("metric")));
+        if (cells.isEmpty()) {
+            // e.g. a response time percentile of searches only
+            logger.error("no runs with a {} to compare", ns.getString("metric"));
+            System.exit(1);
+        }
+        final List<String> rows = new ArrayList<String>(cells.keySet());
+        final TreeSet<String> columnSet = new TreeSet<String>(NATURAL);
+        for (Map<String, Cell> row : cells.values()) {
+            columnSet.addAll(row.keySet());
+        }
+        final List<String> columns = new ArrayList<String>(columnSet);
+
+        final String baseline = ns.getString("baseline") != null ? ns.getString("baseline") : rows.get(0);
+        if (!cells.containsKey(baseline)) {
+            logger.error("no runs with {}={}", rowLabel, baseline);
+            System.exit(1);
+        }
+
+        try (PrintWriter out = ns.getString("markdown") != null
+                ? new PrintWriter(new FileWriter(ns.getString("markdown"), StandardCharsets.UTF_8))
+                : new PrintWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8))) {
+            writeTables(out, rowLabel, columnLabel, ns.getString("metric"), rows, columns, cells, baseline, confidence);
+        } catch (IOException ex) {
+            logger.error("error writing tables: {}", ex.getMessage());
+            System.exit(1);
+        }
+
+        if (ns.getString("chart") != null) {
+            try {
+                drawChart(new File(ns.getString("chart")), columnLabel, rows, columns,
+                          group(runs, metric("rps")), group(runs, metric("p99")), confidence);
+            } catch (IOException ex) {
+                logger.error("error drawing chart: {}", ex.getMessage());
+                System.exit(1);
+            }
+        }
+    }
+
+    private static Run load(File file, String rowLabel, String columnLabel, boolean includeGeneratorBound)
+            throws IOException {
+        final Map<?, ?> record = RunArchive.read(file);
+        final Map<?, ?> labels = record.get("labels") instanceof Map ? (Map<?, ?>) record.get("labels") : Map.of();
+        final Map<?, ?> result = (Map<?, ?>) record.get("result");
+
+        if (labels.get(rowLabel) == null || (columnLabel != null && labels.get(columnLabel) == null)) {
+            logger.warn("skipping {}, which has no {} label", file, labels.get(rowLabel) == null ? rowLabel : columnLabel);
+            return null;
+        }
+        if (!includeGeneratorBound && GeneratorHealth.GENERATOR_BOUND.equals(result.get("verdict"))) {
+            logger.warn("skipping {}, which was generator-bound", file);
+            return null;
+        }
+        return new Run(labels.get(rowLabel).toString(), columnLabel == null ? "" : labels.get(columnLabel).toString(), result,
+                       result.get("response_times") instanceof String ? RunArchive.decode((String) result.get("response_times")) : null);
+    }
+
+    private static Function<Run, Number> metric(String metric) {
+        switch (metric) {
+            case "p50":
+                return percentile(50, "response_p50_ms");
+            case "p90":
+                return percentile(90, null);
+            case "p99":
+                return percentile(99, "response_p99_ms");
+            case "p99.9":
+                return percentile(99.9, "response_p999_ms");
+            case "p99.99":
+                return percentile(99.99, null);
+            default:
+                return (Run run) -> (Number) run.result.get("rps");
+        }
+    }
+
+    /**
+     * A response time percentile in ms, from the archived histogram, or else
+     * from the rounded value saved alongside it, if any.
+     */
+    private static Function<Run, Number> percentile(double percentile, String field) {
+        return (Run run) -> {
+            if (run.responseTimes != null) {
+                return run.responseTimes.getValueAtPercentile(percentile) / 1_000_000.0;
+            }
+            return field == null ? null : (Number) run.result.get(field);
+        };
+    }
+
+    private static Map<String, Map<String, Cell>> group(List<Run> runs, Function<Run, Number> metric) {
+        final Map<String, Map<String, Cell>> cells = new TreeMap<String, Map<String, Cell>>(NATURAL);
+        for (Run run : runs) {
+            // e.g. no latencies for a search
+            final Number value = metric.apply(run);
+            if (value != null) {
+                cells.computeIfAbsent(run.row, (String row) -> new TreeMap<String, Cell>(NATURAL))
+                     .computeIfAbsent(run.column, (String column) -> new Cell())
+                     .add(value.doubleValue());
+            }
+        }
+        return cells;
+    }
+
+    private static void writeTables(PrintWriter out, String rowLabel, String columnLabel, String metric,
+                                    List<String> rows, List<String> columns, Map<String, Map<String, Cell>> cells,
+                                    String baseline, double confidence) {
+        final String percent = String.format("%.0f%%", confidence * 100);
+
+        out.printf("Mean %s over the repeated runs, ± the %s confidence interval:%n%n", metric, percent);
+        header(out, rowLabel, columnLabel, columns);
+        for (String row : rows) {
+            out.print("| " + row + " |");
+            for (String column : columns) {
+                final Cell cell = cells.get(row).get(column);
+                if (cell == null) {
+                    out.print(" |");
+                }
+                else if (cell.stats.getN() < 2) {
+                    out.printf(" %s (n=1) |", format(cell.stats.getMean()));
+                }
+                else {
+                    out.printf(" %s ± %s (n=%d) |",
+                            format(cell.stats.getMean()), format(cell.halfWidth(confidence)), cell.stats.getN());
+                }
+            }
+            out.println();
+        }
+
+        if (rows.size() < 2) {
+            return;
+        }
+
+        out.printf("%nDifference in mean %s from %s, ± the %s confidence interval, and the p-value of Welch's "
+                   + "t-test (* if significant at %s):%n%n",
+                   metric, baseline, percent, String.format("%.2g", 1 - confidence));
+        header(out, rowLabel, columnLabel, columns);
+        for (String row : rows) {
+            if (row.equals(baseline)) {
+                continue;
+            }
+            out.print("| " + row + " |");
+            for (String column : columns) {
+                out.print(" " + difference(cells.get(row).get(column), cells.get(baseline).get(column), confidence) + " |");
+            }
+            out.println();
+        }
+    }
+
+    private static void header(PrintWriter out, String rowLabel, String columnLabel, List<String> columns) {
+        final StringBuilder header = new StringBuilder("| " + rowLabel + " |");
+        final StringBuilder rule = new StringBuilder("| --- |");
+        for (String column : columns) {
+            header.append(' ').append(columnLabel == null ? "all runs" : columnLabel + " " + column).append(" |");
+            rule.append(" --- |");
+        }
+        out.println(header);
+        out.println(rule);
+    }
+
+    private static String difference(Cell cell, Cell baseline, double confidence) {
+        if (cell == null || baseline == null) {
+            return "";
+        }
+
+        final double mean = cell.stats.getMean();
+        final double baselineMean = baseline.stats.getMean();
+        final String relative = String.format("%+.1f%%", 100 * (mean - baselineMean) / baselineMean);
+        if (cell.stats.getN() < 2 || baseline.stats.getN() < 2) {
+            return relative + " (too few runs to test)";
+        }
+
+        // Welch's interval of the difference, relative to the baseline mean,
+        // which ignores the uncertainty of the baseline mean itself as the
+        // divisor
+        final double a = cell.stats.getVariance() / cell.stats.getN();
+        final double b = baseline.stats.getVariance() / baseline.stats.getN();
+        final double se = Math.sqrt(a + b);
+        final double df = (a + b) * (a + b)
+            / (a * a / (cell.stats.getN() - 1) + b * b / (baseline.stats.getN() - 1));
+        final double p = new TTest().tTest(cell.values(), baseline.values());
+        if (se == 0 || Double.isNaN(p)) {
+            return relative + " (no variance to test)";
+        }
+        final double halfWidth = new TDistribution(df).inverseCumulativeProbability(1 - (1 - confidence) / 2) * se;
+
+        return String.format("%s ± %.1f%% (p=%.3g)%s",
+                relative, 100 * halfWidth / baselineMean, p, p < 1 - confidence ? " *" : "");
+    }
+
+    private static String format(double value) {
+        return value >= 100 ? String.format("%.0f", value) : String.format("%.2f", value);
+    }
+
+    private static void drawChart(File file, String columnLabel, List<String> rows, List<String> columns,
+                                  Map<String, Map<String, Cell>> throughput, Map<String, Map<String, Cell>> latency,
+                                  double confidence) throws IOException {
+        final int panelWidth = 640;
+        final int height = 480;
+        final BufferedImage image = new BufferedImage(panelWidth * 2, height, BufferedImage.TYPE_INT_RGB);
+        final Graphics2D g = image.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g.setColor(Color.WHITE);
+        g.fillRect(0, 0, image.getWidth(), image.getHeight());
+        g.setFont(new Font(Font.SANS_SERIF, Font.PLAIN, 12));
+
+        drawPanel(g, 0, panelWidth, height, "rps", columnLabel, rows, columns, throughput, confidence);
+        drawPanel(g, panelWidth, panelWidth, height, "p99 response time (ms)", columnLabel, rows, columns, latency, confidence);
+
+        g.dispose();
+        ImageIO.write(image, "png", file);
+    }
+
+    private static void drawPanel(Graphics2D g, int x0, int width, int height, String title, String columnLabel,
+                                  List<String> rows, List<String> columns, Map<String, Map<String, Cell>> cells,
+                                  double confidence) {
+        final int left = x0 + 70;
+        final int right = x0 + width - 20;
+        final int top = 40;
+        final int bottom = height - 50;
+
+        // The y axis from 0 to a round number above the highest interval
+        double max = 0;
+        for (Map<String, Cell> row : cells.values()) {
+            for (Cell cell : row.values()) {
+                final double halfWidth = cell.halfWidth(confidence);
+                max = Math.max(max, cell.stats.getMean() + (Double.isNaN(halfWidth) ? 0 : halfWidth));
+            }
+        }
+        final double magnitude = Math.pow(10, Math.floor(Math.log10(Math.max(max, 1e-9))));
+        double yMax = magnitude;
+        for (double step : new double[] {1, 2, 5, 10}) {
+            yMax = step * magnitude;
+            if (yMax >= max) {
+                break;
+            }
+        }
+
+        g.setColor(Color.BLACK);
+        g.drawString(title, left, top - 15);
+        for (int i = 0; i <= 5; i++) {
+            final int y = bottom - (bottom - top) * i / 5;
+            g.setColor(new Color(0xe0e0e0));
+            g.drawLine(left, y, right, y);
+            g.setColor(Color.BLACK);
+            final double value = yMax * i / 5;
+            final String label = value == Math.rint(value) ? String.format("%.0f", value) : String.format("%.2f", value);
+            g.drawString(label, left - 8 - g.getFontMetrics().stringWidth(label), y + 4);
+        }
+        g.drawLine(left, top, left, bottom);
+        g.drawLine(left, bottom, right, bottom);
+
+        final int slot = (right - left) / Math.max(1, columns.size());
+        for (int i = 0; i < columns.size(); i++) {
+            final String label = columnLabel == null ? "all runs" : columnLabel + " " + columns.get(i);
+            g.drawString(label, left + slot * i + slot / 2 - g.getFontMetrics().stringWidth(label) / 2, bottom + 20);
+        }
+
+        for (int r = 0; r < rows.size(); r++) {
+            final Map<String, Cell> row = cells.get(rows.get(r));
+            final Color color = PALETTE[r % PALETTE.length];
+            g.setColor(color);
+            g.fillRect(left + 10, top + 8 + r * 16, 10, 10);
+            g.drawString(rows.get(r), left + 26, top + 18 + r * 16);
+            if (row == null) {
+                continue;
+            }
+
+            int prevX = -1;
+            int prevY = -1;
+            for (int i = 0; i < columns.size(); i++) {
+                final Cell cell = row.get(columns.get(i));
+                if (cell == null) {
+                    prevX = -1;
+                    continue;
+                }
+                final int x = left + slot * i + slot / 2;
+                final int y = bottom - (int) ((bottom - top) * cell.stats.getMean() / yMax);
+                g.setStroke(new BasicStroke(2));
+                if (prevX != -1) {
+                    g.drawLine(prevX, prevY, x, y);
+                }
+                g.fillOval(x - 4, y - 4, 8, 8);
+
+                final double halfWidth = cell.halfWidth(confidence);
+                if (!Double.isNaN(halfWidth)) {
+                    final int yLow = bottom - (int) ((bottom - top) * Math.max(0, cell.stats.getMean() - halfWidth) / yMax);
+                    final int yHigh = bottom - (int) ((bottom - top) * (cell.stats.getMean() + halfWidth) / yMax);
+                    g.setStroke(new BasicStroke(1));
+                    g.drawLine(x, yLow, x, yHigh);
+                    g.drawLine(x - 5, yLow, x + 5, yLow);
+                    g.drawLine(x - 5, yHigh, x + 5, yHigh);
+                }
+                prevX = x;
+                prevY = y;
+            }
+        }
+    }
+}
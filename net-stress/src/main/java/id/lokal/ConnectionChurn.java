@@ -0,0 +1,164 @@
+package id.lokal;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SNIHostName;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Opens new connections to the target at a fixed rate, alongside the
+ * requests, and closes them right after, to measure the cost of setting up
+ * connections rather than of requests, e.g. the TLS handshake on the proxy.
+ *
+ * The TCP connect and the TLS handshake are timed separately, each into its
+ * own histogram. Each connection is opened on its own virtual thread, so that
+ * a slow handshake does not hold up the next one, and the lag of the openings
+ * behind their schedule is logged as the churn lag.
+ */
+class ConnectionChurn {
+    private static final int TIMEOUT_MILLIS = 10_000;
+
+    private final Logger logger;
+    private final MetricsLog metricsLog;
+    private final FailureStats failureStats;
+    private final String host;
+    private final int port;
+    private final SSLContext sslContext;
+    private final String serverName;
+    private final String[] applicationProtocols;
+
+    private final Recorder connectTimesRecorder = new Recorder(2);
+    private final Recorder handshakeTimesRecorder = new Recorder(2);
+    // From when each connection is due until it is handed to its virtual
+    // thread, i.e. whether the churn kept to its rate
+    private final Recorder lagsRecorder = new Recorder(2);
+
+    private Histogram connectTimesSnapshot = null;
+    private Histogram handshakeTimesSnapshot = null;
+    private Histogram lagsSnapshot = null;
+    private final Histogram connectTimes = new Histogram(2);
+    private final Histogram handshakeTimes = new Histogram(2);
+    private final Histogram lags = new Histogram(2);
+
+    private final AtomicInteger failures = new AtomicInteger();
+    private int currentFailures = 0;
+    private int overallFailures = 0;
+
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+    /**
+     * @param sslContext null for plain TCP connections
+     * @param serverName the SNI host name, or the host if null
+     */
+    ConnectionChurn(Logger logger, MetricsLog metricsLog, FailureStats failureStats, String host, int port,
+                    SSLContext sslContext, String serverName, String... applicationProtocols) {
+        this.logger = logger;
+        this.metricsLog = metricsLog;
+        this.failureStats = failureStats;
+        this.host = host;
+        this.port = port;
+        this.sslContext = sslContext;
+        this.serverName = serverName != null ? serverName : host;
+        this.applicationProtocols = applicationProtocols;
+    }
+
+    void start(final int rate) {
+        final Thread thread = new Thread(() -> {
+            final ArrivalScheduler scheduler = new ArrivalScheduler("uniform", rate, 0, System.nanoTime(), lagsRecorder);
+            while (true) {
+                scheduler.next();
+                executor.execute(this::open);
+            }
+        }, "churn");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void open() {
+        final long startAt = System.nanoTime();
+        try (Socket socket = new Socket()) {
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(host, port), TIMEOUT_MILLIS);
+            final long connectedAt = System.nanoTime();
+            connectTimesRecorder.recordValue(connectedAt - startAt);
+
+            if (sslContext == null) {
+                return;
+            }
+
+            socket.setSoTimeout(TIMEOUT_MILLIS);
+            try (SSLSocket sslSocket = (SSLSocket) sslContext.getSocketFactory()
+                    .createSocket(socket, serverName, port, true)) {
+                final SSLParameters parameters = sslSocket.getSSLParameters();
+                parameters.setServerNames(List.of(new SNIHostName(serverName)));
+                parameters.setEndpointIdentificationAlgorithm("HTTPS");
+                parameters.setApplicationProtocols(applicationProtocols);
+                sslSocket.setSSLParameters(parameters);
+
+                sslSocket.startHandshake();
+                handshakeTimesRecorder.recordValue(System.nanoTime() - connectedAt);
+            }
+        }
+        catch (IOException | IllegalArgumentException ex) {
+            if (failureStats.sample()) {
+                logger.error("churn error: {}", ex.getMessage());
+                logger.debug("churn error stacktrace:", ex);
+            }
+
+            failureStats.record("churn " + ex.getClass().getSimpleName());
+            failures.incrementAndGet();
+        }
+    }
+
+    /**
+     * Logs the interval histograms, and adds them to the overall ones. Only
+     * called from the stat thread.
+     */
+    void recordMetrics() {
+        connectTimesSnapshot = connectTimesRecorder.getIntervalHistogram(connectTimesSnapshot);
+        handshakeTimesSnapshot = handshakeTimesRecorder.getIntervalHistogram(handshakeTimesSnapshot);
+        lagsSnapshot = lagsRecorder.getIntervalHistogram(lagsSnapshot);
+
+        final int prevFailures = currentFailures;
+        currentFailures = failures.get();
+        final int failed = currentFailures - prevFailures;
+
+        metricsLog.log("(interval connect in ms)", connectTimesSnapshot, failed);
+        if (sslContext != null) {
+            metricsLog.log("(interval handshake in ms)", handshakeTimesSnapshot, failed);
+        }
+        metricsLog.log("(interval churn lag in ms)", lagsSnapshot, 0);
+
+        connectTimes.add(connectTimesSnapshot);
+        handshakeTimes.add(handshakeTimesSnapshot);
+        lags.add(lagsSnapshot);
+        overallFailures += failed;
+    }
+
+    void logOverall() {
+        metricsLog.log("(overall connect in ms)", connectTimes, overallFailures);
+        if (sslContext != null) {
+            metricsLog.log("(overall handshake in ms)", handshakeTimes, overallFailures);
+        }
+        metricsLog.log("(overall churn lag in ms)", lags, 0);
+    }
+
+    void reset() {
+        connectTimes.reset();
+        handshakeTimes.reset();
+        lags.reset();
+        overallFailures = 0;
+    }
+}
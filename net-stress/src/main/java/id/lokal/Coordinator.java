@@ -0,0 +1,175 @@
+package id.lokal;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.HdrHistogram.Histogram;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Splits the RPS across several worker processes, and merges the interval
+ * histograms they stream back.
+ *
+ * The histograms are merged, rather than the percentiles averaged, so that
+ * the overall percentiles are as accurate as from a single load generator.
+ */
+class Coordinator {
+    // Leave the workers enough time to receive their share before starting
+    private static final long START_DELAY_MILLIS = 3000;
+
+    private final Logger logger;
+    private final MetricsLog metricsLog;
+    private final ResultsWriter resultsWriter;
+    private final List<String> workers;
+
+    private final Histogram serviceTimesSnapshot = new Histogram(2);
+    private final Histogram responseTimesSnapshot = new Histogram(2);
+    private final Histogram serviceTimes = new Histogram(2);
+    private final Histogram responseTimes = new Histogram(2);
+
+    private int currentFailed = 0;
+    private int currentRejected = 0;
+    private int failures = 0;
+    private int rejected = 0;
+    private boolean started = false;
+    // The longest any worker spent in the stress phase
+    private long stressNanos = 0;
+
+    Coordinator(Logger logger, MetricsLog metricsLog, ResultsWriter resultsWriter, List<String> workers) {
+        this.logger = logger;
+        this.metricsLog = metricsLog;
+        this.resultsWriter = resultsWriter;
+        this.workers = workers;
+    }
+
+    void run(final String mode, final int burstPeriod, final int rps,
+             final int warmUpDuration, final int stressDuration) throws IOException, InterruptedException {
+        final long startAt = System.currentTimeMillis() + START_DELAY_MILLIS;
+        final CountDownLatch done = new CountDownLatch(workers.size());
+
+        final List<Socket> sockets = new ArrayList<Socket>();
+        for (int i = 0; i < workers.size(); i++) {
+            final String[] hostPort = workers.get(i).split(":");
+            final Socket socket = new Socket(hostPort[0], Integer.parseInt(hostPort[1]));
+            socket.setTcpNoDelay(true);
+            sockets.add(socket);
+
+            // Spread the remainder over the first few workers
+            final int workerRps = rps / workers.size() + (i < rps % workers.size() ? 1 : 0);
+
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            out.writeUTF(mode);
+            out.writeInt(burstPeriod);
+            out.writeInt(workerRps);
+            out.writeInt(warmUpDuration);
+            out.writeInt(stressDuration);
+            out.writeLong(startAt);
+            out.flush();
+
+            logger.info("worker {} gets {} rps", workers.get(i), workerRps);
+        }
+
+        for (int i = 0; i < sockets.size(); i++) {
+            final Socket socket = sockets.get(i);
+            final String worker = workers.get(i);
+            new Thread(() -> {
+                try {
+                    receive(new DataInputStream(new BufferedInputStream(socket.getInputStream())));
+                }
+                catch (IOException ex) {
+                    logger.error("lost worker {}: {}", worker, ex.getMessage());
+                }
+                done.countDown();
+            }, "worker-" + i).start();
+        }
+
+        final ScheduledExecutorService ses = Executors.newSingleThreadScheduledExecutor((Runnable r) -> {
+            return new Thread(r, "stat");
+        });
+        // Tick half a second after the workers do, so that their intervals
+        // have arrived by then.
+        ses.scheduleAtFixedRate(() -> recordMetrics(),
+                startAt + 1500 - System.currentTimeMillis(), 1000, TimeUnit.MILLISECONDS);
+
+        done.await();
+        ses.shutdown();
+        ses.awaitTermination(1, TimeUnit.SECONDS);
+        recordMetrics();
+
+        synchronized (this) {
+            metricsLog.log("(overall service time in ms)", serviceTimes, failures);
+            metricsLog.log("(overall response time in ms)", responseTimes, failures);
+            logger.info("rejected by in-flight limit: {}", rejected);
+            // Over the span the workers actually measured, which may be off
+            // the stress duration, e.g. by their last partial interval
+            if (stressNanos > 0) {
+                logger.info("approximate rps: {}", serviceTimes.getTotalCount() * 1e9 / stressNanos);
+            }
+        }
+
+        if (resultsWriter != null) {
+            resultsWriter.close();
+        }
+    }
+
+    private void receive(DataInputStream in) throws IOException {
+        long workerStressNanos = 0;
+        while (in.readByte() == WorkerLink.INTERVAL) {
+            final boolean warmUp = in.readBoolean();
+            final long length = in.readLong();
+            final int failed = in.readInt();
+            final int rejectedOps = in.readInt();
+            final Histogram serviceTimesInterval = WorkerLink.readHistogram(in);
+            final Histogram responseTimesInterval = WorkerLink.readHistogram(in);
+
+            synchronized (this) {
+                serviceTimesSnapshot.add(serviceTimesInterval);
+                responseTimesSnapshot.add(responseTimesInterval);
+                currentFailed += failed;
+                currentRejected += rejectedOps;
+
+                if (!warmUp) {
+                    if (!started) {
+                        started = true;
+                        logger.info("Starting for real...");
+                    }
+                    serviceTimes.add(serviceTimesInterval);
+                    responseTimes.add(responseTimesInterval);
+                    failures += failed;
+                    rejected += rejectedOps;
+                    workerStressNanos += length;
+                    stressNanos = Math.max(stressNanos, workerStressNanos);
+                }
+            }
+        }
+    }
+
+    private synchronized void recordMetrics() {
+        metricsLog.log("(interval service time in ms)", serviceTimesSnapshot, currentFailed);
+        metricsLog.log("(interval response time in ms)", responseTimesSnapshot, currentFailed);
+        if (currentRejected > 0) {
+            logger.printf(Level.INFO, "%30s count: %5d", "(interval rejected)", currentRejected);
+        }
+        if (resultsWriter != null) {
+            // Each worker judges its own health, which is in its own log
+            resultsWriter.writeInterval(started ? "stress" : "warm-up",
+                    serviceTimesSnapshot, responseTimesSnapshot, currentFailed, currentRejected, "");
+        }
+
+        serviceTimesSnapshot.reset();
+        responseTimesSnapshot.reset();
+        currentFailed = 0;
+        currentRejected = 0;
+    }
+}
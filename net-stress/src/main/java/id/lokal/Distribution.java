@@ -0,0 +1,75 @@
+package id.lokal;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A distribution of times in ms, to draw one from per op, e.g. the delay the
+ * calibration server injects per response, or the think time of a
+ * closed-loop user. Currently, 3 kinds are supported, i.e.
+ * - fixed:MS
+ * - uniform:MIN,MAX
+ * - exponential:MEAN
+ */
+class Distribution {
+    final String spec;
+    private final String kind;
+    private final double a;
+    private final double b;
+
+    private Distribution(String spec, String kind, double a, double b) {
+        this.spec = spec;
+        this.kind = kind;
+        this.a = a;
+        this.b = b;
+    }
+
+    /**
+     * Parses fixed:MS, uniform:MIN,MAX or exponential:MEAN, in ms, or a bare
+     * number of ms for a fixed time.
+     */
+    static Distribution parse(String spec) {
+        final int colon = spec.indexOf(':');
+        final String kind = colon == -1 ? "fixed" : spec.substring(0, colon);
+        final String[] params = spec.substring(colon + 1).split(",");
+        try {
+            switch (kind) {
+                case "fixed":
+                case "exponential":
+                    if (params.length == 1 && Double.parseDouble(params[0]) >= 0) {
+                        return new Distribution(spec, kind, Double.parseDouble(params[0]), 0);
+                    }
+                    break;
+                case "uniform":
+                    if (params.length == 2
+                            && Double.parseDouble(params[0]) >= 0
+                            && Double.parseDouble(params[1]) >= Double.parseDouble(params[0])) {
+                        return new Distribution(spec, kind, Double.parseDouble(params[0]), Double.parseDouble(params[1]));
+                    }
+                    break;
+            }
+        }
+        catch (NumberFormatException ex) {
+            // Same as any other malformed spec
+        }
+        throw new IllegalArgumentException("invalid distribution: " + spec);
+    }
+
+    long nextNanos() {
+        final double ms;
+        switch (kind) {
+            case "uniform":
+                ms = a == b ? a : ThreadLocalRandom.current().nextDouble(a, b);
+                break;
+            case "exponential":
+                ms = -a * Math.log(1 - ThreadLocalRandom.current().nextDouble());
+                break;
+            default:
+                ms = a;
+        }
+        return (long) (ms * 1_000_000);
+    }
+
+    double meanNanos() {
+        return (kind.equals("uniform") ? (a + b) / 2 : a) * 1_000_000;
+    }
+}
@@ -0,0 +1,181 @@
+package id.lokal;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Pattern;
+
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.api.Result;
+import org.eclipse.jetty.client.util.BufferingResponseListener;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Polls the /stats of an Envoy admin interface, e.g. port 19000 of the client
+ * sidecar in client.json, once per interval, so that the backlog in the proxy
+ * shows up next to the latencies of the same interval.
+ *
+ * The scrape goes over its own HttpClient with a single connection, and is
+ * async, so a slow admin interface holds up neither the stat thread nor the
+ * requests. Each scrape is logged when it completes, as deltas from the
+ * previous one. Stats whose names end in _active are gauges, e.g.
+ * upstream_rq_active, and are logged with their value as well. The rest are
+ * counters, e.g. downstream_cx_total of each worker, and only their delta
+ * matters.
+ */
+class EnvoyStats {
+    static final String DEFAULT_FILTER =
+            "(upstream_rq_active|upstream_rq_pending_active|upstream_rq_pending_overflow|upstream_rq_total"
+            + "|upstream_cx_active|downstream_rq_active|downstream_rq_total|downstream_cx_active"
+            + "|downstream_cx_total)$";
+
+    private static final int MAX_RESPONSE_SIZE = 16 * 1024 * 1024;
+
+    private final Logger logger;
+    private final String url;
+    private final Pattern filter;
+    private final HttpClient httpClient = new HttpClient();
+    private final PrintStream csv;
+
+    // Only touched by the scrape callback, which never overlaps itself
+    private Map<String, Long> previous = null;
+    private final AtomicBoolean scraping = new AtomicBoolean();
+    private int skipped = 0;
+
+    /**
+     * @param adminUrl e.g. http://127.0.0.1:19000
+     * @param filter   a regex of the stat names to keep
+     * @param dir      to write envoy-stats.csv to, if not null
+     */
+    EnvoyStats(Logger logger, String adminUrl, String filter, String dir) throws Exception {
+        this.logger = logger;
+        this.filter = Pattern.compile(filter);
+        // Let the admin interface filter as well, as /stats can be large
+        this.url = adminUrl.replaceAll("/+$", "") + "/stats?usedonly&filter="
+                + URLEncoder.encode(filter, StandardCharsets.UTF_8);
+
+        if (dir != null) {
+            new File(dir).mkdirs();
+            csv = new PrintStream(new File(dir, "envoy-stats.csv"));
+            csv.println("timestamp,name,value,delta");
+        }
+        else {
+            csv = null;
+        }
+
+        httpClient.setMaxConnectionsPerDestination(1);
+        httpClient.start();
+    }
+
+    /**
+     * Starts a scrape, unless the previous one is still running. Only called
+     * from the stat thread.
+     */
+    void scrape() {
+        if (!scraping.compareAndSet(false, true)) {
+            skipped++;
+            return;
+        }
+
+        httpClient.newRequest(url)
+                .timeout(5, TimeUnit.SECONDS)
+                .send(new BufferingResponseListener(MAX_RESPONSE_SIZE) {
+                    @Override
+                    public void onComplete(Result result) {
+                        try {
+                            if (result.isFailed()) {
+                                logger.error("envoy stats error: {}", result.getFailure().getMessage());
+                            }
+                            else if (result.getResponse().getStatus() != 200) {
+                                logger.error("envoy stats error: status {}", result.getResponse().getStatus());
+                            }
+                            else {
+                                record(System.currentTimeMillis(), parse(getContentAsString()));
+                            }
+                        }
+                        finally {
+                            scraping.set(false);
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Parses the text format of /stats, i.e. "name: value" per line, keeping
+     * the integer stats that match the filter, and skipping histograms.
+     */
+    private Map<String, Long> parse(String body) {
+        final Map<String, Long> stats = new TreeMap<String, Long>();
+        for (String line : body.split("\n")) {
+            final int colon = line.lastIndexOf(": ");
+            if (colon < 0) {
+                continue;
+            }
+            final String name = line.substring(0, colon);
+            if (!filter.matcher(name).find()) {
+                continue;
+            }
+            try {
+                stats.put(name, Long.parseLong(line.substring(colon + 2).trim()));
+            }
+            catch (NumberFormatException ex) {
+                // A histogram, e.g. P0(nan,0) P25(...)
+            }
+        }
+        return stats;
+    }
+
+    private void record(long timestamp, Map<String, Long> stats) {
+        if (previous == null) {
+            // Nothing to take deltas from yet
+            previous = new HashMap<String, Long>(stats);
+            return;
+        }
+
+        for (Map.Entry<String, Long> stat : stats.entrySet()) {
+            final String name = stat.getKey();
+            final long value = stat.getValue();
+            final Long prevValue = previous.get(name);
+            final long delta = value - (prevValue == null ? 0 : prevValue);
+            final boolean gauge = name.endsWith("_active");
+
+            if (gauge && (value != 0 || delta != 0)) {
+                logger.printf(Level.INFO, "%30s %s: %d (%+d)", "(interval envoy)", name, value, delta);
+            }
+            else if (!gauge && delta != 0) {
+                logger.printf(Level.INFO, "%30s %s: %+d", "(interval envoy)", name, delta);
+            }
+
+            if (csv != null) {
+                csv.println(timestamp + "," + name + "," + value + "," + delta);
+            }
+        }
+        if (csv != null) {
+            csv.flush();
+        }
+
+        previous = new HashMap<String, Long>(stats);
+    }
+
+    void close() {
+        if (skipped > 0) {
+            logger.info("envoy stats scrapes skipped while the previous was still running: {}", skipped);
+        }
+        try {
+            httpClient.stop();
+        }
+        catch (Exception ex) {
+            logger.error("error stopping envoy stats client: {}", ex.getMessage());
+        }
+        if (csv != null) {
+            csv.close();
+        }
+    }
+}
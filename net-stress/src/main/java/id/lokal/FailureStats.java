@@ -0,0 +1,123 @@
+package id.lokal;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.StringJoiner;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Failures broken down by reason, e.g. the gRPC status code, the HTTP status
+ * or the exception type, and a cap on how many of them get logged.
+ *
+ * Under overload every op can fail, and logging each one at ERROR only slows
+ * the generator down further. So only the first few failures of each
+ * interval are logged, and the rest are only counted.
+ */
+class FailureStats {
+    private final ConcurrentHashMap<String, LongAdder> counts = new ConcurrentHashMap<String, LongAdder>();
+    // Only touched by the stat thread
+    private final Map<String, Long> currentCounts = new HashMap<String, Long>();
+
+    private final int logLimit;
+    private final AtomicInteger logged = new AtomicInteger();
+    private final LongAdder suppressed = new LongAdder();
+    private long currentSuppressed = 0;
+
+    FailureStats(int logLimit) {
+        this.logLimit = logLimit;
+    }
+
+    void record(String reason) {
+        record(reason, 1);
+    }
+
+    void record(String reason, int count) {
+        // Plain get first, since the reasons are mostly known already, and
+        // computeIfAbsent may lock the bin
+        LongAdder adder = counts.get(reason);
+        if (adder == null) {
+            adder = counts.computeIfAbsent(reason, key -> new LongAdder());
+        }
+        adder.add(count);
+    }
+
+    /**
+     * Whether to log this failure, i.e. whether the log limit of the interval
+     * is not reached yet.
+     */
+    boolean sample() {
+        // Check before incrementing, so that the contended counter is left
+        // alone once over the limit
+        if (logged.get() < logLimit && logged.getAndIncrement() < logLimit) {
+            return true;
+        }
+        suppressed.increment();
+        return false;
+    }
+
+    /**
+     * The counts per reason since the last reset, sorted by reason.
+     */
+    Map<String, Long> totals() {
+        final Map<String, Long> totals = new TreeMap<String, Long>();
+        for (Map.Entry<String, LongAdder> entry : counts.entrySet()) {
+            totals.put(entry.getKey(), entry.getValue().sum());
+        }
+        return totals;
+    }
+
+    void reset() {
+        counts.clear();
+        currentCounts.clear();
+        suppressed.reset();
+        currentSuppressed = 0;
+    }
+
+    void logInterval(Logger logger) {
+        logged.set(0);
+        final long prevSuppressed = currentSuppressed;
+        currentSuppressed = suppressed.sum();
+        final long intervalSuppressed = currentSuppressed - prevSuppressed;
+
+        final StringJoiner reasons = new StringJoiner(", ");
+        for (Map.Entry<String, LongAdder> entry : new TreeMap<String, LongAdder>(counts).entrySet()) {
+            final long count = entry.getValue().sum();
+            final Long prevCount = currentCounts.put(entry.getKey(), count);
+            final long failed = count - (prevCount == null ? 0 : prevCount);
+            if (failed > 0) {
+                reasons.add(entry.getKey() + ": " + failed);
+            }
+        }
+
+        if (reasons.length() > 0 || intervalSuppressed > 0) {
+            logger.printf(
+                    Level.INFO,
+                    "%30s %s, logs suppressed: %d",
+                    "(interval failures)",
+                    reasons.length() > 0 ? reasons : "none",
+                    intervalSuppressed);
+        }
+    }
+
+    void logOverall(Logger logger) {
+        final StringJoiner reasons = new StringJoiner(", ");
+        for (Map.Entry<String, LongAdder> entry : new TreeMap<String, LongAdder>(counts).entrySet()) {
+            reasons.add(entry.getKey() + ": " + entry.getValue().sum());
+        }
+
+        if (reasons.length() > 0 || suppressed.sum() > 0) {
+            logger.printf(
+                    Level.INFO,
+                    "%30s %s, logs suppressed: %d",
+                    "(overall failures)",
+                    reasons.length() > 0 ? reasons : "none",
+                    suppressed.sum());
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package id.lokal;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.StringJoiner;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.NotificationEmitter;
+import javax.management.openmbean.CompositeData;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+import com.sun.management.OperatingSystemMXBean;
+import org.HdrHistogram.Histogram;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Tells whether the load generator itself was the bottleneck in an interval,
+ * in which case the latencies say more about this process than about the
+ * target, and the run should not be used as a result.
+ *
+ * An interval is generator-bound if any of these is over its threshold:
+ * - dispatch lag, i.e. the dispatcher falling behind the intended schedule
+ * - process CPU, as a share of all the available processors
+ * - GC pause time, from the GC notifications of the stop-the-world collectors
+ * - executor saturation, i.e. ops queued for a worker thread or rejected by
+ *   the in-flight limit
+ *
+ * Otherwise it is target-bound, i.e. the latencies are the target's.
+ */
+class GeneratorHealth {
+    private static final double MAX_DISPATCH_LAG_P99_MS = 5.0;
+    private static final double MAX_CPU_PERCENT = 90.0;
+    private static final double MAX_GC_PAUSE_PERCENT = 5.0;
+
+    static final String GENERATOR_BOUND = "generator-bound";
+    static final String TARGET_BOUND = "target-bound";
+
+    private final Logger logger;
+    private final OperatingSystemMXBean os =
+            (OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+    private final int processors = Runtime.getRuntime().availableProcessors();
+
+    // Added to from the GC notification thread
+    private final AtomicLong gcPauseMillis = new AtomicLong();
+    private final AtomicLong gcPauses = new AtomicLong();
+
+    private long lastAt;
+    private long lastCpuNanos;
+    private long currentGcPauseMillis = 0;
+    private long currentGcPauses = 0;
+
+    private int intervals = 0;
+    private int generatorBoundIntervals = 0;
+    private double maxCpuPercent = 0;
+    private double maxGcPausePercent = 0;
+
+    GeneratorHealth(Logger logger) {
+        this.logger = logger;
+    }
+
+    void start() {
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            // The concurrent cycles of G1, ZGC and Shenandoah run alongside
+            // the app, so only the pauses hold up the dispatchers
+            if (gc.getName().contains("Concurrent") || gc.getName().contains("Cycles")) {
+                continue;
+            }
+            ((NotificationEmitter) gc).addNotificationListener((notification, handback) -> {
+                if (notification.getType().equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION)) {
+                    final GarbageCollectionNotificationInfo info =
+                            GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+                    gcPauseMillis.addAndGet(info.getGcInfo().getDuration());
+                    gcPauses.incrementAndGet();
+                }
+            }, null, null);
+        }
+
+        lastAt = System.nanoTime();
+        lastCpuNanos = os.getProcessCpuTime();
+    }
+
+    void reset() {
+        intervals = 0;
+        generatorBoundIntervals = 0;
+        maxCpuPercent = 0;
+        maxGcPausePercent = 0;
+    }
+
+    /**
+     * Logs the verdict of the interval, and returns it. Only called from the
+     * stat thread.
+     *
+     * @param saturated whether the executor or the in-flight limit held up
+     *                  any ops in the interval
+     */
+    String logInterval(Histogram dispatchLags, boolean saturated) {
+        final long now = System.nanoTime();
+        final long cpuNanos = os.getProcessCpuTime();
+        final double cpuPercent = 100.0 * (cpuNanos - lastCpuNanos) / Math.max(1, now - lastAt) / processors;
+
+        final long prevGcPauseMillis = currentGcPauseMillis;
+        final long prevGcPauses = currentGcPauses;
+        currentGcPauseMillis = gcPauseMillis.get();
+        currentGcPauses = gcPauses.get();
+        final long intervalGcPauseMillis = currentGcPauseMillis - prevGcPauseMillis;
+        final double gcPausePercent = 100.0 * intervalGcPauseMillis * 1_000_000 / Math.max(1, now - lastAt);
+
+        lastAt = now;
+        lastCpuNanos = cpuNanos;
+
+        final double dispatchLagP99 = dispatchLags.getValueAtPercentile(99) / 1_000_000.0;
+
+        final StringJoiner reasons = new StringJoiner(", ");
+        if (dispatchLagP99 > MAX_DISPATCH_LAG_P99_MS) {
+            reasons.add("dispatch lag");
+        }
+        if (cpuPercent > MAX_CPU_PERCENT) {
+            reasons.add("cpu");
+        }
+        if (gcPausePercent > MAX_GC_PAUSE_PERCENT) {
+            reasons.add("gc");
+        }
+        if (saturated) {
+            reasons.add("executor");
+        }
+        final String verdict = reasons.length() > 0 ? GENERATOR_BOUND : TARGET_BOUND;
+
+        intervals++;
+        if (reasons.length() > 0) {
+            generatorBoundIntervals++;
+        }
+        maxCpuPercent = Math.max(maxCpuPercent, cpuPercent);
+        maxGcPausePercent = Math.max(maxGcPausePercent, gcPausePercent);
+
+        logger.printf(
+                Level.INFO,
+                "%30s cpu: %5.1f%%, gc pauses: %3d (%6.1f ms), lag p99: %8.2f, verdict: %s%s",
+                "(interval generator health)",
+                cpuPercent,
+                currentGcPauses - prevGcPauses,
+                (double) intervalGcPauseMillis,
+                dispatchLagP99,
+                verdict,
+                reasons.length() > 0 ? " (" + reasons + ")" : "");
+
+        return verdict;
+    }
+
+    /**
+     * The verdict of the run so far, i.e. generator-bound if any interval
+     * was.
+     */
+    String verdict() {
+        return generatorBoundIntervals > 0 ? GENERATOR_BOUND : TARGET_BOUND;
+    }
+
+    void logOverall() {
+        logger.printf(
+                Level.INFO,
+                "%30s max cpu: %5.1f%%, max gc pause time: %5.1f%%, generator-bound intervals: %d of %d",
+                "(overall generator health)",
+                maxCpuPercent,
+                maxGcPausePercent,
+                generatorBoundIntervals,
+                intervals);
+
+        if (generatorBoundIntervals > 0) {
+            logger.warn("verdict: {}, the load generator was the bottleneck in {} of {} intervals, "
+                        + "so the latencies above are not the target's",
+                        GENERATOR_BOUND, generatorBoundIntervals, intervals);
+        }
+        else {
+            logger.info("verdict: {}", TARGET_BOUND);
+        }
+    }
+}
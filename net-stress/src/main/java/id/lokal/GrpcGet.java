@@ -3,34 +3,44 @@ package id.lokal;
 import id.lokal.time.TimeGrpc;
 import id.lokal.time.TimeOuterClass;
 
+import java.io.IOException;
+import java.security.GeneralSecurityException;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
-import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeoutException;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
 
-import io.github.bucket4j.Bandwidth;
-import io.github.bucket4j.Bucket;
-import io.github.bucket4j.Bucket4j;
-import io.github.bucket4j.Refill;
 import io.grpc.CallOptions;
 import io.grpc.Channel;
 import io.grpc.ClientCall;
+import io.grpc.ForwardingClientCall;
+import io.grpc.ForwardingClientCallListener;
+import io.grpc.Grpc;
 import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
+import io.grpc.Metadata;
 import io.grpc.MethodDescriptor;
+import io.grpc.Status;
 import io.grpc.StatusRuntimeException;
+import io.grpc.TlsChannelCredentials;
+import io.grpc.stub.ClientCalls;
+import io.grpc.stub.StreamObserver;
 import net.sourceforge.argparse4j.ArgumentParsers;
+import net.sourceforge.argparse4j.impl.Arguments;
 import net.sourceforge.argparse4j.inf.ArgumentParser;
 import net.sourceforge.argparse4j.inf.ArgumentParserException;
 import net.sourceforge.argparse4j.inf.Namespace;
@@ -40,26 +50,24 @@ import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.LogManager;
 
-import static com.zaxxer.hikari.util.UtilityElf.quietlySleep;
-
 class GrpcGet {
     private static final Logger logger = LogManager.getLogger(GrpcGet.class);
 
-    private static final Recorder serviceTimesRecorder = new Recorder(2);
-    private static final Recorder responseTimesRecorder = new Recorder(2);
-
-    private static final Histogram serviceTimes = new Histogram(2);
-    private static final Histogram responseTimes = new Histogram(2);
-
-    private static Histogram serviceTimesSnapshot = null;
-    private static Histogram responseTimesSnapshot = null;
+    private static final LoadDriver driver = new LoadDriver(logger);
 
-    private static final AtomicInteger failures = new AtomicInteger();
-    private static int currentFailures = 0;
+    private static Shard[] shards;
+    private static final List<ChannelStats> channelStats = new ArrayList<ChannelStats>();
 
-    private static ThreadPoolExecutor executor;
+    private static boolean async;
 
-    private static TimeGrpc.TimeBlockingStub stub;
+    private static Payloads payloads;
+    private static String stream;
+    private static final MethodDescriptor<byte[], Integer> serverStreamMethod =
+            Payloads.counted(TimeGrpc.getServerStreamMethod());
+    private static final MethodDescriptor<byte[], Integer> bidiStreamMethod =
+            Payloads.counted(TimeGrpc.getBidiStreamMethod());
+    private static long bytesSent = 0;
+    private static long bytesReceived = 0;
 
     public static void main(String[] args) {
         ArgumentParser parser = ArgumentParsers.newFor("get-time").build()
@@ -68,32 +76,163 @@ class GrpcGet {
 
         parser.addArgument("-r", "--rps")
                 .type(Integer.class)
-                .required(true)
-                .help("The RPS during the stress test");
+                .help("The RPS during the stress test (required unless --worker-port is given)");
 
         parser.addArgument("-m", "--mode")
-                .choices("brutal", "uniform")
+                .choices("brutal", "burst", "uniform", "poisson")
                 .setDefault("brutal")
                 .help(
                     "brutal: all ops arrive at the beginning of each second\n"
+                    + "burst: all ops arrive at the beginning of each burst period\n"
                     + "uniform: ops arrive at fixed rate\n"
+                    + "poisson: ops arrive with exponential inter-arrival times\n"
                 );
 
+        parser.addArgument("--burst-period")
+                .type(Integer.class)
+                .setDefault(10)
+                .help("The burst period in ms for burst mode");
+
         parser.addArgument("-e", "--endpoint")
                 .type(String.class)
-                .required(true)
-                .help("Endpoint to send the requests to");
+                .help("Endpoint to send the requests to (required unless "
+                      + "--calibrate is given)");
+
+        parser.addArgument("--calibrate")
+                .action(Arguments.storeTrue())
+                .help("Send the requests to an in-process server over "
+                      + "loopback instead, for the baseline latency and max "
+                      + "RPS of the load generator alone");
+
+        parser.addArgument("--calibrate-delay")
+                .type(String.class)
+                .setDefault("0")
+                .help("Delay in ms that the in-process server injects per "
+                      + "response, i.e. fixed:MS, uniform:MIN,MAX or "
+                      + "exponential:MEAN");
 
         parser.addArgument("-c", "--connections")
                 .type(Integer.class)
                 .setDefault(1)
                 .help("Number of connections");
 
+        parser.addArgument("--tls")
+                .action(Arguments.storeTrue())
+                .help("Use TLS instead of plaintext, verifying the server with "
+                      + "--ca-cert, and presenting --client-cert for mTLS");
+
+        parser.addArgument("--ca-cert")
+                .type(String.class)
+                .help("PEM file of the CA to verify the server with, e.g. "
+                      + "certs/ca.pem (the default trust store if omitted)");
+
+        parser.addArgument("--client-cert")
+                .type(String.class)
+                .help("PEM file of the client certificate for mTLS, e.g. "
+                      + "certs/host-1-client.pem");
+
+        parser.addArgument("--client-key")
+                .type(String.class)
+                .help("PEM file of the client private key for mTLS, e.g. "
+                      + "certs/host-1-client-key.pem");
+
+        parser.addArgument("--server-name")
+                .type(String.class)
+                .help("The server name for SNI, verification and :authority, "
+                      + "e.g. localhost to match the server certificate "
+                      + "(the endpoint host if omitted)");
+
+        parser.addArgument("--churn-rate")
+                .type(Integer.class)
+                .help("Also open this many new connections per second, and "
+                      + "close them right after, to time the TCP connect and "
+                      + "the TLS handshake on their own");
+
+        parser.addArgument("--churn-every")
+                .type(Integer.class)
+                .help("Replace a connection with a new one after every N "
+                      + "requests (per dispatcher), so that the connect and "
+                      + "handshake show up in the request latencies");
+
+        parser.addArgument("--picker")
+                .choices("round-robin", "least-outstanding", "power-of-two")
+                .setDefault("round-robin")
+                .help(
+                    "round-robin: each call goes to the next connection\n"
+                    + "least-outstanding: each call goes to the connection with the fewest calls in flight\n"
+                    + "power-of-two: each call goes to the one with fewer calls in flight "
+                    + "out of 2 random connections\n"
+                );
+
+        parser.addArgument("--request-size")
+                .type(String.class)
+                .help("Comma-separated request payload sizes in bytes, one "
+                      + "picked at random per op, to call the Payload RPC "
+                      + "instead of LocalTime");
+
+        parser.addArgument("--response-size")
+                .type(String.class)
+                .help("Comma-separated response payload sizes in bytes, one "
+                      + "picked at random per op, to call the Payload RPC "
+                      + "instead of LocalTime");
+
+        parser.addArgument("--stream")
+                .choices("server", "bidi")
+                .help(
+                    "server: each op is a message pushed by the server on one of "
+                    + "--streams server streams, which the server paces at the RPS\n"
+                    + "bidi: each op is a message sent on one of --streams "
+                    + "long-lived bidi streams, and echoed back by the server\n"
+                    + "(unary calls if omitted)\n"
+                );
+
+        parser.addArgument("--streams")
+                .type(Integer.class)
+                .help("Number of concurrent streams for --stream, spread over "
+                      + "the connections by --picker (same as -c if omitted)");
+
         parser.addArgument("-t", "--thread-pool-size")
                 .type(Integer.class)
                 .help("The size of the worker thread pool "
                       + "(same as RPS if omitted)");
 
+        parser.addArgument("--executor")
+                .choices("fixed", "virtual", "ring")
+                .setDefault("fixed")
+                .help(
+                    "fixed: blocking engine runs ops on a fixed pool of --thread-pool-size threads\n"
+                    + "virtual: blocking engine runs each op on its own virtual thread\n"
+                    + "ring: blocking engine runs ops on a fixed pool of --thread-pool-size threads, "
+                    + "handed over through a bounded lock-free ring without allocating per op, "
+                    + "ops that find the ring full are rejected\n"
+                );
+
+        parser.addArgument("--ring-size")
+                .type(Integer.class)
+                .help("The number of slots in the ring of --executor ring, "
+                      + "rounded up to a power of 2 (same as RPS if omitted)");
+
+        parser.addArgument("--engine")
+                .choices("blocking", "async")
+                .setDefault("blocking")
+                .help(
+                    "blocking: each op runs a blocking call on the worker thread pool\n"
+                    + "async: each op is an async call completed via callback, "
+                    + "bounded by --max-in-flight instead of the thread pool size\n"
+                );
+
+        parser.addArgument("--max-in-flight")
+                .type(Integer.class)
+                .help("The max number of outstanding requests in async engine, "
+                      + "ops beyond this are rejected (same as RPS if omitted)");
+
+        parser.addArgument("-d", "--dispatchers")
+                .type(Integer.class)
+                .setDefault(1)
+                .help("Number of dispatcher shards, each sending its share of "
+                      + "the RPS with its own thread, connections, worker pool "
+                      + "and recorders");
+
         parser.addArgument("-w", "--warm-up-duration")
                 .type(Integer.class)
                 .setDefault(0)
@@ -102,8 +241,114 @@ class GrpcGet {
 
         parser.addArgument("-s", "--stress-duration")
                 .type(Integer.class)
-                .required(true)
-                .help("The duration in seconds for actual stress test");
+                .help("The duration in seconds for actual stress test "
+                      + "(required unless --worker-port is given)");
+
+        parser.addArgument("--scenario")
+                .type(String.class)
+                .help("YAML or JSON file of the load phases to run, e.g. "
+                      + "ramp, hold, step, spike, sine and pause, instead of "
+                      + "-r, -w and -s (see Scenario.java for the format)");
+
+        parser.addArgument("--find-max")
+                .choices("step", "binary")
+                .help("Instead of a single stress test, search for the max RPS "
+                      + "(up to -r) that meets the SLO, holding each level for "
+                      + "--hold-duration");
+
+        parser.addArgument("--find-max-step")
+                .type(Integer.class)
+                .setDefault(1000)
+                .help("The RPS step for --find-max, which is also the "
+                      + "resolution of the binary search");
+
+        parser.addArgument("--hold-duration")
+                .type(Integer.class)
+                .setDefault(10)
+                .help("The duration in seconds of each --find-max or --users level");
+
+        parser.addArgument("--users")
+                .type(String.class)
+                .help("Instead of -r, run closed-loop, with this many virtual "
+                      + "users that each send their next op as soon as the "
+                      + "previous one completes, whatever the --engine and "
+                      + "--executor. A comma-separated list, e.g. 1,2,4,8,16, "
+                      + "sweeps over them, holding each level for "
+                      + "--hold-duration, after warming up with the first one "
+                      + "for -w");
+
+        parser.addArgument("--think-time")
+                .type(String.class)
+                .help("The think time of each --users user between ops, as "
+                      + "fixed:MS, uniform:MIN,MAX or exponential:MEAN");
+
+        parser.addArgument("--slo-p99")
+                .type(Double.class)
+                .setDefault(100.0)
+                .help("The max p99 response time in ms for a --find-max level to pass");
+
+        parser.addArgument("--slo-failures")
+                .type(Double.class)
+                .setDefault(1.0)
+                .help("The max percentage of failed or rejected ops for a "
+                      + "--find-max level to pass");
+
+        parser.addArgument("--error-log-limit")
+                .type(Integer.class)
+                .setDefault(10)
+                .help("The max number of failed ops logged per second, the "
+                      + "rest are only counted by status");
+
+        parser.addArgument("--upstream-times")
+                .action(Arguments.storeTrue())
+                .help("Read the x-envoy-upstream-service-time of the "
+                      + "client sidecar and the x-handler-time-us of the app "
+                      + "from each response, and report them with the proxy "
+                      + "overhead, i.e. the service time minus the upstream time");
+
+        parser.addArgument("--envoy-admin")
+                .type(String.class)
+                .help("URL of an Envoy admin interface to poll /stats from "
+                      + "every second, e.g. http://127.0.0.1:19000 for the "
+                      + "client sidecar");
+
+        parser.addArgument("--envoy-stats-filter")
+                .type(String.class)
+                .setDefault(EnvoyStats.DEFAULT_FILTER)
+                .help("Regex of the Envoy stat names to report");
+
+        parser.addArgument("--metrics-port")
+                .type(Integer.class)
+                .help("Serve the metrics of the run in progress at "
+                      + "http://*:PORT/metrics in the OpenMetrics format, "
+                      + "updated every second");
+
+        parser.addArgument("-o", "--output-dir")
+                .type(String.class)
+                .help("Directory to write HdrHistogram interval logs and a "
+                      + "CSV time series of the intervals to");
+
+        parser.addArgument("--archive")
+                .type(String.class)
+                .help("Directory to save a record of the run to, with its "
+                      + "config, environment, histograms and intervals, for "
+                      + "id.lokal.Compare");
+
+        parser.addArgument("--label")
+                .type(String.class)
+                .help("Comma-separated key=value labels of the run for the "
+                      + "archive, e.g. machine=c7g.xlarge,concurrency=4");
+
+        parser.addArgument("--workers")
+                .type(String.class)
+                .help("Comma-separated host:port of worker processes to split "
+                      + "the RPS across, instead of sending the requests from "
+                      + "this process");
+
+        parser.addArgument("--worker-port")
+                .type(Integer.class)
+                .help("Run as a worker, taking the RPS, mode and durations "
+                      + "from the coordinator that connects to this port");
 
         Namespace ns = null;
         try {
@@ -113,205 +358,966 @@ class GrpcGet {
             System.exit(1);
         }
 
-        final int rps = ns.getInt("rps").intValue();
-        final String mode = ns.getString("mode");
+        if (ns.getString("scenario") != null
+                && (ns.getString("find_max") != null || ns.getString("workers") != null || ns.getInt("worker_port") != null)) {
+            parser.handleError(new ArgumentParserException(
+                    "argument --scenario goes with neither --find-max nor distributed load generation", parser));
+            System.exit(1);
+        }
+
+        if (ns.getString("users") != null
+                && (ns.getString("scenario") != null || ns.getString("find_max") != null || ns.getString("stream") != null
+                    || ns.getString("workers") != null || ns.getInt("worker_port") != null)) {
+            parser.handleError(new ArgumentParserException(
+                    "argument --users goes with neither --scenario, --find-max, --stream nor distributed load generation", parser));
+            System.exit(1);
+        }
+
+        List<Integer> users = null;
+        Distribution thinkTime = null;
+        if (ns.getString("users") != null) {
+            try {
+                users = ClosedLoop.parseLevels(ns.getString("users"));
+            } catch (NumberFormatException ex) {
+                parser.handleError(new ArgumentParserException(
+                        "invalid users: " + ex.getMessage(), parser));
+                System.exit(1);
+            }
+            try {
+                thinkTime = ns.getString("think_time") == null ? null : Distribution.parse(ns.getString("think_time"));
+            } catch (IllegalArgumentException ex) {
+                parser.handleError(new ArgumentParserException(ex.getMessage(), parser));
+                System.exit(1);
+            }
+        }
+
+        if (ns.getString("scenario") != null) {
+            try {
+                driver.scenario = Scenario.load(ns.getString("scenario"), ns.getString("mode"));
+            } catch (IOException ex) {
+                logger.error("error reading scenario: {}", ex.getMessage());
+                System.exit(1);
+            } catch (IllegalArgumentException ex) {
+                parser.handleError(new ArgumentParserException(ex.getMessage(), parser));
+                System.exit(1);
+            }
+        }
+
+        if (ns.getInt("worker_port") == null && driver.scenario == null && users == null
+                && (ns.getInt("rps") == null
+                    || (ns.getInt("stress_duration") == null && ns.getString("find_max") == null))) {
+            parser.handleError(new ArgumentParserException(
+                    "argument -r/--rps and -s/--stress-duration are required", parser));
+            System.exit(1);
+        }
+
+        // Burst mode, or a burst phase of a scenario, fires a period's ops at
+        // once, so a period of 0 or less would fire them all up front
+        if (ns.getInt("burst_period").intValue() <= 0) {
+            parser.handleError(new ArgumentParserException(
+                    "argument --burst-period must be positive", parser));
+            System.exit(1);
+        }
+
+        if (ns.getInt("dispatchers").intValue() <= 0) {
+            parser.handleError(new ArgumentParserException(
+                    "argument -d/--dispatchers must be positive", parser));
+            System.exit(1);
+        }
+
+        // Each dispatcher gets its share of the in-flight limit, and a share
+        // of 0 would reject all its ops
+        if (ns.getInt("max_in_flight") != null
+                && ns.getInt("max_in_flight").intValue() < ns.getInt("dispatchers").intValue()) {
+            parser.handleError(new ArgumentParserException(
+                    "argument --max-in-flight must be at least -d/--dispatchers", parser));
+            System.exit(1);
+        }
+
+        if (ns.getString("find_max") != null && ns.getInt("rps") != null
+                && (ns.getInt("find_max_step").intValue() <= 0 || ns.getInt("find_max_step").intValue() > ns.getInt("rps").intValue())) {
+            parser.handleError(new ArgumentParserException(
+                    "argument --find-max-step must be positive and at most -r/--rps", parser));
+            System.exit(1);
+        }
+
+        if (ns.getString("archive") != null && ns.getString("workers") != null) {
+            // Only the workers have the intervals and the verdict of a run
+            parser.handleError(new ArgumentParserException(
+                    "argument --archive does not go with --workers, archive on the workers instead", parser));
+            System.exit(1);
+        }
+
+        final boolean calibrate = ns.getBoolean("calibrate").booleanValue();
+        if (ns.getString("endpoint") == null && !calibrate) {
+            parser.handleError(new ArgumentParserException(
+                    "argument -e/--endpoint is required", parser));
+            System.exit(1);
+        }
+
+        if (calibrate && ns.getBoolean("tls").booleanValue()) {
+            parser.handleError(new ArgumentParserException(
+                    "argument --calibrate is for plaintext only", parser));
+            System.exit(1);
+        }
+
+        Distribution calibrationDelay = null;
+        try {
+            calibrationDelay = Distribution.parse(ns.getString("calibrate_delay"));
+        } catch (IllegalArgumentException ex) {
+            parser.handleError(new ArgumentParserException(ex.getMessage(), parser));
+            System.exit(1);
+        }
+
+        if (ns.getString("request_size") != null || ns.getString("response_size") != null) {
+            try {
+                payloads = Payloads.of(
+                        Payloads.parseSizes(ns.getString("request_size") == null ? "0" : ns.getString("request_size")),
+                        Payloads.parseSizes(ns.getString("response_size") == null ? "0" : ns.getString("response_size")));
+            } catch (NumberFormatException ex) {
+                parser.handleError(new ArgumentParserException(
+                        "invalid payload size: " + ex.getMessage(), parser));
+                System.exit(1);
+            }
+        }
+        else {
+            payloads = Payloads.localTime();
+        }
+
+        if (ns.getString("client_cert") != null ^ ns.getString("client_key") != null) {
+            parser.handleError(new ArgumentParserException(
+                    "argument --client-cert and --client-key go together", parser));
+            System.exit(1);
+        }
+
+        if (ns.getInt("churn_every") != null
+                && ns.getInt("connections").intValue() < ns.getInt("dispatchers").intValue()) {
+            // Otherwise a shard would shut down a connection that another
+            // shard still uses
+            parser.handleError(new ArgumentParserException(
+                    "argument --churn-every needs at least as many connections as dispatchers", parser));
+            System.exit(1);
+        }
+
+        if (ns.getInt("worker_port") != null) {
+            try {
+                logger.info("Waiting for coordinator on port {}...", ns.getInt("worker_port"));
+                driver.workerLink = WorkerLink.accept(ns.getInt("worker_port").intValue());
+            } catch (IOException ex) {
+                logger.error("error accepting coordinator: {}", ex.getMessage());
+                System.exit(1);
+            }
+        }
+
+        final int rps = driver.workerLink != null ? driver.workerLink.rps
+                : driver.scenario != null ? driver.scenario.maxRps()
+                : users != null ? Collections.max(users).intValue() : ns.getInt("rps").intValue();
+        final String mode = driver.workerLink != null ? driver.workerLink.mode : ns.getString("mode");
+        driver.burstPeriod = driver.workerLink != null ? driver.workerLink.burstPeriod : ns.getInt("burst_period").intValue();
         final int connections = ns.getInt("connections").intValue();
+        final String picker = ns.getString("picker");
         final int threadPoolSize = ns.getInt("thread_pool_size") == null ? rps : ns.getInt("thread_pool_size").intValue();
-        final int warmUpDuration = ns.getInt("warm_up_duration").intValue();
-        final int stressDuration = ns.getInt("stress_duration").intValue();
+        final String executorType = ns.getString("executor");
+        final int ringSize = ns.getInt("ring_size") == null ? rps : ns.getInt("ring_size").intValue();
+        async = ns.getString("engine").equals("async");
+        final int maxInFlight = ns.getInt("max_in_flight") == null ? rps : ns.getInt("max_in_flight").intValue();
+        final int dispatchers = ns.getInt("dispatchers").intValue();
+        stream = ns.getString("stream");
+        driver.limitsInFlight = async || "bidi".equals(stream);
+        driver.opUnit = stream == null ? "rps" : "msg/s";
+        driver.extras = new ThroughputExtras();
+        final int streams = ns.getInt("streams") == null ? connections : ns.getInt("streams").intValue();
+        final int warmUpDuration = driver.workerLink != null ? driver.workerLink.warmUpDuration : ns.getInt("warm_up_duration").intValue();
+        final int stressDuration = driver.workerLink != null ? driver.workerLink.stressDuration
+                : ns.getInt("stress_duration") == null ? 0 : ns.getInt("stress_duration").intValue();
+        driver.failureStats = new FailureStats(ns.getInt("error_log_limit").intValue());
+        if (ns.getBoolean("upstream_times").booleanValue()) {
+            driver.upstreamTimes = new UpstreamTimes();
+        }
+        driver.health = new GeneratorHealth(logger);
+
+        if (ns.getString("output_dir") != null) {
+            try {
+                driver.resultsWriter = new ResultsWriter(ns.getString("output_dir"));
+            } catch (IOException ex) {
+                logger.error("error opening output dir: {}", ex.getMessage());
+                System.exit(1);
+            }
+        }
 
-        final String endpoint = ns.getString("endpoint");
+        if (ns.getString("archive") != null) {
+            try {
+                driver.archive = new RunArchive(
+                        ns.getString("archive"), "grpc-get", RunArchive.parseLabels(ns.getString("label")), ns.getAttrs());
+            } catch (IllegalArgumentException ex) {
+                parser.handleError(new ArgumentParserException(ex.getMessage(), parser));
+                System.exit(1);
+            } catch (IOException ex) {
+                logger.error("error opening archive: {}", ex.getMessage());
+                System.exit(1);
+            }
+        }
 
-        ManagedChannelBuilder builder = ManagedChannelBuilder.forTarget(endpoint).usePlaintext();
+        if (ns.getInt("metrics_port") != null && ns.getString("workers") == null) {
+            try {
+                driver.metricsEndpoint = new MetricsEndpoint(ns.getInt("metrics_port").intValue());
+            } catch (IOException ex) {
+                logger.error("error starting metrics endpoint: {}", ex.getMessage());
+                System.exit(1);
+            }
+        }
+
+        if (ns.getString("envoy_admin") != null && ns.getString("workers") == null) {
+            try {
+                driver.envoyStats = new EnvoyStats(
+                        logger, ns.getString("envoy_admin"), ns.getString("envoy_stats_filter"), ns.getString("output_dir"));
+            } catch (Exception ex) {
+                logger.error("error starting envoy stats client: {}", ex.getMessage());
+                System.exit(1);
+            }
+        }
+
+        if (ns.getString("workers") != null) {
+            final List<String> workers = Arrays.asList(ns.getString("workers").split(","));
+            try {
+                new Coordinator(logger, driver::logMetrics, driver.resultsWriter, workers)
+                        .run(mode, driver.burstPeriod, rps, warmUpDuration, stressDuration);
+            } catch (IOException | InterruptedException ex) {
+                logger.error("error coordinating workers: {}", ex.getMessage());
+                System.exit(1);
+            }
+            System.exit(0);
+        }
+
+        String endpoint = ns.getString("endpoint");
+        if (calibrate) {
+            driver.calibration = new CalibrationServer(calibrationDelay);
+            try {
+                endpoint = "127.0.0.1:" + driver.calibration.startGrpc(0);
+            } catch (IOException ex) {
+                logger.error("error starting calibration server: {}", ex.getMessage());
+                System.exit(1);
+            }
+            logger.info("Calibrating against the in-process server at {}, with delay {}", endpoint, calibrationDelay.spec);
+        }
+
+        final boolean tls = ns.getBoolean("tls").booleanValue();
+        final String serverName = ns.getString("server_name");
+
+        ManagedChannelBuilder<?> builder = null;
+        if (tls) {
+            try {
+                TlsChannelCredentials.Builder credentials = TlsChannelCredentials.newBuilder();
+                if (ns.getString("ca_cert") != null) {
+                    credentials.trustManager(Tls.trustManagers(ns.getString("ca_cert")));
+                }
+                if (ns.getString("client_cert") != null) {
+                    credentials.keyManager(Tls.keyManagers(ns.getString("client_cert"), ns.getString("client_key")));
+                }
+                builder = Grpc.newChannelBuilder(endpoint, credentials.build());
+            } catch (GeneralSecurityException | IOException ex) {
+                logger.error("error loading certs: {}", ex.getMessage());
+                System.exit(1);
+            }
+        }
+        else {
+            builder = ManagedChannelBuilder.forTarget(endpoint).usePlaintext();
+        }
+        if (serverName != null) {
+            builder.overrideAuthority(serverName);
+        }
+        if (async) {
+            // Completion callbacks only record into the Recorders, so run
+            // them on the transport threads instead of hopping to another
+            // executor.
+            builder.directExecutor();
+        }
+        if (driver.upstreamTimes != null) {
+            builder.intercept(driver.upstreamTimes.interceptor());
+        }
+        if (payloads.maxResponseSize() > 4 * 1024 * 1024 - 1024) {
+            // Leave room for the protobuf framing on top of the payload
+            builder.maxInboundMessageSize(payloads.maxResponseSize() + 1024);
+        }
         List<Channel> channels = new ArrayList<Channel>();
         for (int i = 0; i < connections; i++) {
             ManagedChannel channel = builder.build();
             channels.add(channel);
+            channelStats.add(new ChannelStats(i));
         }
-        stub = TimeGrpc.newBlockingStub(new MultiChannel(channels));
 
-        executor = (ThreadPoolExecutor) Executors.newFixedThreadPool(threadPoolSize);
+        if (!async && stream == null && executorType.equals("virtual")) {
+            driver.virtualThreadStats = new VirtualThreadStats();
+            driver.virtualThreadStats.start();
+        }
 
-        if (warmUpDuration > 0) {
-            warmUp(mode, rps, warmUpDuration);
+        // Each shard gets every n-th connection, or shares one if there are
+        // fewer connections than shards.
+        shards = new Shard[dispatchers];
+        for (int i = 0; i < dispatchers; i++) {
+            List<Channel> shardChannels = new ArrayList<Channel>();
+            List<ChannelStats> shardChannelStats = new ArrayList<ChannelStats>();
+            for (int j = i; j < connections; j += dispatchers) {
+                shardChannels.add(channels.get(j));
+                shardChannelStats.add(channelStats.get(j));
+            }
+            if (shardChannels.isEmpty()) {
+                shardChannels.add(channels.get(i % connections));
+                shardChannelStats.add(channelStats.get(i % connections));
+            }
+
+            shards[i] = new Shard(
+                    new MultiChannel(shardChannels, shardChannelStats, picker,
+                                     builder, ns.getInt("churn_every") == null ? 0 : ns.getInt("churn_every").intValue()),
+                    async || stream != null || executorType.equals("ring") ? null : newExecutor(executorType, LoadDriver.split(threadPoolSize, dispatchers, i)),
+                    LoadDriver.split(maxInFlight, dispatchers, i),
+                    Math.max(1, LoadDriver.split(streams, dispatchers, i)));
+            if (!async && stream == null && executorType.equals("ring")) {
+                shards[i].startRing(LoadDriver.split(threadPoolSize, dispatchers, i), LoadDriver.split(ringSize, dispatchers, i));
+            }
         }
 
-        stress(mode, rps, stressDuration);
-    }
+        driver.shards = shards;
 
-    private static Bandwidth getLimit(final String mode, final int rps) {
-        // We use a scheduler to ensure that ops arrive at a fixed RPS
-        // throughout the stress test, to avoid coordinated omission.
-        //
-        // Currently, this stress test supports 2 modes of RPS, i.e.
-        // - brutal: Simulate the worst case where all ops arrive at the
-        //           beginning of each second. This is the default.
-        // - uniform: Simulate the best case where ops arrive at fixed rate.
-        if (mode.equals("brutal")) {
-            Refill refill = Refill.intervally(rps, Duration.ofSeconds(1));
-            return Bandwidth.classic(rps, refill).withInitialTokens(rps);
+        if ("bidi".equals(stream)) {
+            for (Shard shard : shards) {
+                shard.openBidiStreams();
+            }
+            logger.info("Opened {} bidi streams", streams);
         }
-        else {
-            return Bandwidth.simple(rps, Duration.ofSeconds(1)).withInitialTokens(0);
+
+        if (ns.getInt("churn_rate") != null) {
+            // The endpoint is host:port, optionally after a scheme, e.g.
+            // dns:///host:port
+            final String hostPort = endpoint.substring(endpoint.lastIndexOf('/') + 1);
+            try {
+                driver.churn = new ConnectionChurn(
+                        logger,
+                        driver::logMetrics,
+                        driver.failureStats,
+                        hostPort.substring(0, hostPort.lastIndexOf(':')),
+                        Integer.parseInt(hostPort.substring(hostPort.lastIndexOf(':') + 1)),
+                        tls ? Tls.sslContext(ns.getString("ca_cert"), ns.getString("client_cert"), ns.getString("client_key")) : null,
+                        serverName,
+                        "h2");
+            } catch (GeneralSecurityException | IOException ex) {
+                logger.error("error loading certs: {}", ex.getMessage());
+                System.exit(1);
+            }
         }
-    }
 
-    private static void warmUp(final String mode, final int rps, final int duration) {
-        logger.info("Warming up...");
+        if (driver.workerLink != null) {
+            try {
+                driver.workerLink.awaitStart();
+            } catch (InterruptedException ex) {
+                logger.error("Interrupted: {}", ex.getMessage());
+                System.exit(1);
+            }
+        }
 
-        final ScheduledExecutorService ses = Executors.newSingleThreadScheduledExecutor((Runnable r) -> {
-            return new Thread(r, "warm");
-        });
-        ses.scheduleAtFixedRate(() -> recordMetrics(), 1, 1, TimeUnit.SECONDS);
+        if (driver.churn != null) {
+            driver.churn.start(ns.getInt("churn_rate").intValue());
+        }
 
-        final Bucket timerBucket = Bucket4j.builder().addLimit(getLimit("uniform", 1)).build();
-        final double rampUpRate = (double) rps / duration;
-        int warmUpOps = 0;
+        driver.health.start();
 
-        for (int i = 0; i < duration; i++) {
-            final int warmUpRps = (int) Math.ceil((i + 1) * rampUpRate);
-            final Bucket warmUpBucket = Bucket4j.builder().addLimit(getLimit(mode, warmUpRps)).build();
-            warmUpOps += warmUpRps;
+        if (driver.scenario != null) {
+            driver.runScenario();
+        }
 
-            for (int j = 0; j < warmUpRps; j++) {
-                warmUpBucket.asScheduler().consumeUninterruptibly(1);
-                executor.submit(new GrpcTask());
+        if (ns.getString("find_max") != null) {
+            final MaxThroughputSearch search = new MaxThroughputSearch(
+                    logger,
+                    ns.getString("find_max"),
+                    rps,
+                    ns.getInt("find_max_step").intValue(),
+                    ns.getDouble("slo_p99").doubleValue(),
+                    ns.getDouble("slo_failures").doubleValue());
+
+            if (warmUpDuration > 0) {
+                driver.warmUp(mode, search.firstLevel(), warmUpDuration);
             }
 
-            timerBucket.asScheduler().consumeUninterruptibly(1);
+            driver.findMax(search, mode, ns.getInt("hold_duration").intValue());
         }
 
-        while (responseTimes.getTotalCount() + failures.get() < warmUpOps) {
-            quietlySleep(100);
+        if (users != null) {
+            // Each user sticks to a shard, and so to its connections
+            final ClosedLoop.Op[] ops = new ClosedLoop.Op[shards.length];
+            for (int i = 0; i < shards.length; i++) {
+                final Shard shard = shards[i];
+                ops[i] = createdAt -> GrpcTask.call(shard, createdAt);
+            }
+            driver.closedLoop = new ClosedLoop(logger, users, thinkTime, ops);
+            driver.runClosedLoop(warmUpDuration, ns.getInt("hold_duration").intValue());
         }
 
-        ses.shutdown();
-
-        resetMetrics();
+        if (warmUpDuration > 0) {
+            driver.warmUp(mode, rps, warmUpDuration);
+        }
 
-        logger.info("Warmed up, wait awhile first...");
-        quietlySleep(1000);
+        driver.stress(mode, rps, stressDuration);
     }
 
-    private static void stress(final String mode, final int rps, final int duration) {
-        final ScheduledExecutorService ses = Executors.newSingleThreadScheduledExecutor((Runnable r) -> {
-            return new Thread(r, "stat");
-        });
-        ses.scheduleAtFixedRate(() -> recordMetrics(), 1, 1, TimeUnit.SECONDS);
-
-        final long startTime = System.nanoTime();
-
-        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-            final long endTime = System.nanoTime();
-            final double actualRps = (double) serviceTimes.getTotalCount() / (endTime - startTime) * 1_000_000_000;
+    private static ExecutorService newExecutor(final String executorType, final int threadPoolSize) {
+        if (executorType.equals("virtual")) {
+            return Executors.newVirtualThreadPerTaskExecutor();
+        }
+        else {
+            return Executors.newFixedThreadPool(Math.max(1, threadPoolSize));
+        }
+    }
 
-            ses.shutdown();
-            executor.shutdown();
+    static class Shard extends LoadDriver.Shard {
+        private final Channel channel;
 
-            logMetrics("(overall service time in ms)", serviceTimes, failures.get());
-            logMetrics("(overall response time in ms)", responseTimes, failures.get());
-            logger.info("approximate rps: {}", actualRps);
-        }, "last"));
+        // Of successful ops only, same as the throughput
+        private final AtomicLong bytesSent = new AtomicLong();
+        private final AtomicLong bytesReceived = new AtomicLong();
 
-        logger.info("Starting for real...");
+        private final int streams;
+        private BidiStream[] bidiStreams = null;
+        private int nextStream = 0;
 
-        final Bucket actualBucket = Bucket4j.builder().addLimit(getLimit(mode, rps)).build();
-        final int actualOps = rps * duration;
+        Shard(Channel channel, ExecutorService executor, int maxInFlight, int streams) {
+            super(GrpcGet.driver, executor, maxInFlight);
+            this.channel = channel;
+            this.streams = streams;
+        }
 
-        for (int i = 0; i < actualOps; i++) {
-            actualBucket.asScheduler().consumeUninterruptibly(1);
-            executor.submit(new GrpcTask());
+        void openBidiStreams() {
+            bidiStreams = new BidiStream[streams];
+            for (int i = 0; i < streams; i++) {
+                bidiStreams[i] = new BidiStream(this);
+            }
         }
 
-        while (responseTimes.getTotalCount() + failures.get() < actualOps) {
-            quietlySleep(100);
+        @Override
+        void offer(final String mode, final int rps, final long startTime, final int duration) {
+            if ("server".equals(stream)) {
+                offerServerStreams(rps, startTime, duration);
+                return;
+            }
+
+            super.offer(mode, rps, startTime, duration);
         }
 
-        System.exit(0);
-    }
+        /**
+         * Opens the server streams for the ops from startTime over the
+         * duration, and waits until the end of it, same as for other ops. The
+         * server paces the messages uniformly, so the arrival mode does not
+         * apply.
+         */
+        void offerServerStreams(final int rps, final long startTime, final int duration) {
+            parkUntil(startTime);
+            dispatchLagsRecorder.recordValue(System.nanoTime() - startTime);
+
+            final int ops = rps * duration;
+            for (int i = 0; i < streams; i++) {
+                final int count = LoadDriver.split(ops, streams, i);
+                if (count > 0) {
+                    new ServerStream(this, startTime, duration * 1_000_000L / count, count).start();
+                }
+            }
 
-    private static void resetMetrics() {
-        serviceTimesSnapshot = null;
-        responseTimesSnapshot = null;
+            parkUntil(startTime + duration * 1_000_000_000L);
+        }
 
-        failures.set(0);
-        currentFailures = 0;
+        private static void parkUntil(final long deadline) {
+            long remaining;
+            while ((remaining = deadline - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(remaining);
+            }
+        }
 
-        serviceTimes.reset();
-        responseTimes.reset();
-    }
+        /**
+         * Runs the ops on a pool of the given size, fed through a ring of the
+         * given capacity, instead of on the executor.
+         */
+        void startRing(int threads, int capacity) {
+            ring = new RingPool("ring-worker", Math.max(1, threads), capacity, createdAt -> GrpcTask.call(this, createdAt),
+                    GrpcTask::fail);
+        }
 
-    private static void recordMetrics() {
-        serviceTimesSnapshot = serviceTimesRecorder.getIntervalHistogram(serviceTimesSnapshot);
-        responseTimesSnapshot = responseTimesRecorder.getIntervalHistogram(responseTimesSnapshot);
-
-        int prevFailures = currentFailures;
-        currentFailures = failures.get();
-        int failed = currentFailures - prevFailures;
-
-        logMetrics("(interval service time in ms)", serviceTimesSnapshot, failed);
-        logMetrics("(interval response time in ms)", responseTimesSnapshot, failed);
-
-        serviceTimes.add(serviceTimesSnapshot);
-        responseTimes.add(responseTimesSnapshot);
-    };
-
-    private static void logMetrics(String prefix, Histogram histogram, int failed) {
-        logger.printf(
-                Level.INFO,
-                "%30s count: %5d, min: %8.2f, mean: %8.2f, p99: %8.2f, max: %8.2f, stddev: %6.2f, failed: %5d",
-                prefix,
-                histogram.getTotalCount(),
-                histogram.getMinValue() == Long.MAX_VALUE ? 0 : histogram.getMinValue() / 1_000_000.0,
-                histogram.getMean() / 1_000_000.0,
-                histogram.getValueAtPercentile(99) / 1_000_000.0,
-                histogram.getMaxValue() / 1_000_000.0,
-                histogram.getStdDeviation() / 1_000_000.0,
-                failed);
+        @Override
+        void dispatch(final long createdAt) {
+            if (bidiStreams != null) {
+                // Only the dispatcher thread of the shard sends, so there is
+                // no need for the index to be atomic
+                bidiStreams[nextStream].send(createdAt);
+                nextStream = (nextStream + 1) % bidiStreams.length;
+            }
+            else if (async) {
+                new AsyncGrpcCall(this, createdAt).start();
+            }
+            else if (ring != null) {
+                offerToRing(createdAt);
+            }
+            else {
+                executor.submit(new GrpcTask(this, createdAt));
+            }
+        }
     }
 
     static class GrpcTask implements Runnable {
+        private final Shard shard;
         private final long createdAt;
 
-        GrpcTask() {
-            createdAt = System.nanoTime();
+        GrpcTask(Shard shard, long createdAt) {
+            this.shard = shard;
+            this.createdAt = createdAt;
             //logger.debug("task arrives at {}", createdAt);
         }
 
         public void run() {
+            call(shard, createdAt);
+        }
+
+        /**
+         * Runs an op, without a task of its own, as the ring workers do.
+         */
+        static void call(final Shard shard, final long createdAt) {
             long runningAt = System.nanoTime();
+            shard.queueWaitsRecorder.recordValue(Math.max(0, runningAt - createdAt));
 
-            TimeOuterClass.LocalTimeRequest request = TimeOuterClass.LocalTimeRequest.newBuilder().build();
-            //TimeOuterClass.RemoteTimeRequest request = TimeOuterClass.RemoteTimeRequest.newBuilder().build();
+            final byte[] request = payloads.next();
             try {
-                stub.localTime(request);
-                //stub.remoteTime(request);
+                final int received = ClientCalls.blockingUnaryCall(
+                        shard.channel, payloads.method, CallOptions.DEFAULT, request);
                 long doneAt = System.nanoTime();
 
-                serviceTimesRecorder.recordValue(doneAt - runningAt);
-                responseTimesRecorder.recordValue(doneAt - createdAt);
+                shard.serviceTimesRecorder.recordValue(doneAt - runningAt);
+                shard.responseTimesRecorder.recordValue(doneAt - createdAt);
+                shard.bytesSent.addAndGet(request.length);
+                shard.bytesReceived.addAndGet(received);
             }
             catch (StatusRuntimeException ex) {
-                logger.error("grpc error: {}, status: {}", ex.getMessage(), ex.getStatus());
+                if (driver.failureStats.sample()) {
+                    logger.error("grpc error: {}, status: {}", ex.getMessage(), ex.getStatus());
+                    logger.debug("grpc error stacktrace:", ex);
+                }
+
+                driver.failureStats.record(ex.getStatus().getCode().name());
+                driver.failures.incrementAndGet();
+            }
+        }
+
+        /**
+         * Counts an op that threw something other than a status, e.g. a bug
+         * on this side, as failed.
+         */
+        static void fail(RuntimeException ex) {
+            if (driver.failureStats.sample()) {
+                logger.error("grpc error: {}", ex.toString());
                 logger.debug("grpc error stacktrace:", ex);
+            }
 
-                failures.incrementAndGet();
+            driver.failureStats.record(ex.getClass().getSimpleName());
+            driver.failures.incrementAndGet();
+        }
+    }
+
+    static class AsyncGrpcCall implements StreamObserver<Integer> {
+        private final Shard shard;
+        private final long createdAt;
+        private long runningAt;
+        private byte[] request;
+        private int received;
+
+        AsyncGrpcCall(Shard shard, long createdAt) {
+            this.shard = shard;
+            this.createdAt = createdAt;
+        }
+
+        void start() {
+            if (!shard.admit()) {
+                return;
             }
+
+            runningAt = System.nanoTime();
+            shard.queueWaitsRecorder.recordValue(Math.max(0, runningAt - createdAt));
+
+            request = payloads.next();
+            ClientCalls.asyncUnaryCall(shard.channel.newCall(payloads.method, CallOptions.DEFAULT), request, this);
+        }
+
+        public void onNext(Integer response) {
+            received = response;
+        }
+
+        public void onCompleted() {
+            long doneAt = System.nanoTime();
+            shard.inFlight.decrementAndGet();
+
+            shard.serviceTimesRecorder.recordValue(doneAt - runningAt);
+            shard.responseTimesRecorder.recordValue(doneAt - createdAt);
+            shard.bytesSent.addAndGet(request.length);
+            shard.bytesReceived.addAndGet(received);
+        }
+
+        public void onError(Throwable t) {
+            shard.inFlight.decrementAndGet();
+
+            final Status status = Status.fromThrowable(t);
+            if (driver.failureStats.sample()) {
+                logger.error("grpc error: {}, status: {}", t.getMessage(), status);
+                logger.debug("grpc error stacktrace:", t);
+            }
+
+            driver.failureStats.record(status.getCode().name());
+            driver.failures.incrementAndGet();
+        }
+    }
+
+    /**
+     * A long-lived bidi stream, where each op is a message that the server
+     * echoes back. The echoes come back in the order the messages were sent,
+     * which is how they are matched up.
+     */
+    static class BidiStream implements StreamObserver<Integer> {
+        private final Shard shard;
+        private final StreamObserver<byte[]> requests;
+
+        // Creation time, send time and size of the messages awaiting their
+        // echo, oldest first. The in-flight limit of the shard bounds how
+        // many there can be.
+        private final long[] createdAts;
+        private final long[] sentAts;
+        private final int[] sentBytes;
+        private int head = 0;
+        private int size = 0;
+        private boolean closed = false;
+
+        BidiStream(Shard shard) {
+            this.shard = shard;
+
+            final int capacity = Math.max(1, shard.maxInFlight);
+            this.createdAts = new long[capacity];
+            this.sentAts = new long[capacity];
+            this.sentBytes = new int[capacity];
+
+            this.requests = ClientCalls.asyncBidiStreamingCall(
+                    shard.channel.newCall(bidiStreamMethod, CallOptions.DEFAULT), this);
+        }
+
+        void send(final long createdAt) {
+            if (!shard.admit()) {
+                return;
+            }
+
+            final byte[] request = payloads.next();
+            synchronized (this) {
+                if (closed) {
+                    shard.inFlight.decrementAndGet();
+                    driver.failureStats.record("stream ended");
+                    driver.failures.incrementAndGet();
+                    return;
+                }
+
+                final int tail = (head + size++) % createdAts.length;
+                createdAts[tail] = createdAt;
+                sentAts[tail] = System.nanoTime();
+                shard.queueWaitsRecorder.recordValue(Math.max(0, sentAts[tail] - createdAt));
+                sentBytes[tail] = request.length;
+            }
+            requests.onNext(request);
+        }
+
+        public void onNext(Integer received) {
+            final long doneAt = System.nanoTime();
+            final long createdAt;
+            final long sentAt;
+            final int sent;
+            synchronized (this) {
+                createdAt = createdAts[head];
+                sentAt = sentAts[head];
+                sent = sentBytes[head];
+                head = (head + 1) % createdAts.length;
+                size--;
+            }
+            shard.inFlight.decrementAndGet();
+
+            shard.serviceTimesRecorder.recordValue(doneAt - sentAt);
+            shard.responseTimesRecorder.recordValue(doneAt - createdAt);
+            shard.bytesSent.addAndGet(sent);
+            shard.bytesReceived.addAndGet(received);
+        }
+
+        public void onCompleted() {
+            close("stream ended");
+        }
+
+        public void onError(Throwable t) {
+            final Status status = Status.fromThrowable(t);
+            if (driver.failureStats.sample()) {
+                logger.error("grpc stream error: {}, status: {}", t.getMessage(), status);
+                logger.debug("grpc stream error stacktrace:", t);
+            }
+
+            close(status.getCode().name());
+        }
+
+        /**
+         * @param reason how the stream ended, which the messages lost are
+         *               counted under
+         */
+        private void close(String reason) {
+            // Whatever is still awaiting an echo never gets one, and so do
+            // the messages sent from now on
+            final int lost;
+            synchronized (this) {
+                closed = true;
+                lost = size;
+                size = 0;
+            }
+            shard.inFlight.addAndGet(-lost);
+            if (lost > 0) {
+                driver.failureStats.record(reason, lost);
+            }
+            driver.failures.addAndGet(lost);
+        }
+    }
+
+    /**
+     * A server stream of count messages, which the server sends at a fixed
+     * interval from when it gets the request. The latency of each message is
+     * taken from when it was due, as seen from the client, so that it
+     * includes the round trip as well as any lateness. The service time is
+     * taken from when it was due or the previous message arrived, whichever
+     * is later, i.e. the time spent waiting for this message alone.
+     */
+    static class ServerStream implements StreamObserver<Integer> {
+        private final Shard shard;
+        private final long startTime;
+        private final long intervalMicros;
+        private final int count;
+
+        private int received = 0;
+        private long lastAt;
+
+        ServerStream(Shard shard, long startTime, long intervalMicros, int count) {
+            this.shard = shard;
+            this.startTime = startTime;
+            this.intervalMicros = intervalMicros;
+            this.count = count;
+            this.lastAt = startTime;
+        }
+
+        void start() {
+            final byte[] request = TimeOuterClass.StreamRequest.newBuilder()
+                    .setCount(count)
+                    .setIntervalMicros(intervalMicros)
+                    .setResponseSize(payloads.nextResponseSize())
+                    .build()
+                    .toByteArray();
+            shard.bytesSent.addAndGet(request.length);
+
+            ClientCalls.asyncServerStreamingCall(
+                    shard.channel.newCall(serverStreamMethod, CallOptions.DEFAULT), request, this);
+        }
+
+        public void onNext(Integer size) {
+            final long doneAt = System.nanoTime();
+            final long dueAt = startTime + received * intervalMicros * 1000;
+            received++;
+
+            shard.serviceTimesRecorder.recordValue(Math.max(0, doneAt - Math.max(dueAt, lastAt)));
+            shard.responseTimesRecorder.recordValue(Math.max(0, doneAt - dueAt));
+            shard.bytesReceived.addAndGet(size);
+            lastAt = doneAt;
+        }
+
+        public void onCompleted() {
+            if (count > received) {
+                driver.failureStats.record("stream ended", count - received);
+            }
+            driver.failures.addAndGet(count - received);
+        }
+
+        public void onError(Throwable t) {
+            final Status status = Status.fromThrowable(t);
+            if (driver.failureStats.sample()) {
+                logger.error("grpc stream error: {}, status: {}", t.getMessage(), status);
+                logger.debug("grpc stream error stacktrace:", t);
+            }
+
+            driver.failureStats.record(status.getCode().name(), count - received);
+            driver.failures.addAndGet(count - received);
+        }
+    }
+
+    /**
+     * Logs the bytes sent and received, and the latencies of each connection
+     * if there is more than one, along with the shared metrics.
+     */
+    private static final class ThroughputExtras implements LoadDriver.Extras {
+        @Override
+        public void reset() {
+            bytesSent = 0;
+            bytesReceived = 0;
+
+            for (ChannelStats stats : channelStats) {
+                stats.latencies.reset();
+            }
+        }
+
+        @Override
+        public void recordMetrics(boolean counts) {
+            long sent = 0;
+            long received = 0;
+            for (Shard shard : shards) {
+                sent += shard.bytesSent.getAndSet(0);
+                received += shard.bytesReceived.getAndSet(0);
+            }
+
+            // Per second, as long as the interval is a second
+            logger.printf(
+                    Level.INFO,
+                    "%30s %s: %7d, sent: %9.2f MB/s, received: %9.2f MB/s",
+                    "(interval throughput)",
+                    driver.opUnit,
+                    driver.responseTimesSnapshot.getTotalCount(),
+                    sent / 1_000_000.0,
+                    received / 1_000_000.0);
+
+            // Only worth the extra lines when there is more than one
+            // connection to compare
+            if (channelStats.size() > 1) {
+                for (ChannelStats stats : channelStats) {
+                    stats.recordMetrics();
+                }
+            }
+
+            if (counts) {
+                bytesSent += sent;
+                bytesReceived += received;
+            }
+        }
+
+        @Override
+        public void logOverall(long elapsed) {
+            if (channelStats.size() > 1) {
+                for (ChannelStats stats : channelStats) {
+                    driver.logMetrics("(overall channel " + stats.id + " in ms)", stats.latencies, 0);
+                }
+            }
+            logger.info("approximate MB/s: sent {}, received {}",
+                    bytesSent / (elapsed / 1_000_000_000.0) / 1_000_000,
+                    bytesReceived / (elapsed / 1_000_000_000.0) / 1_000_000);
+        }
+    }
+
+    static final class ChannelStats {
+        private final int id;
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final Recorder latenciesRecorder = new Recorder(2);
+        private final Histogram latencies = new Histogram(2);
+        private Histogram latenciesSnapshot = null;
+
+        ChannelStats(int id) {
+            this.id = id;
+        }
+
+        void recordMetrics() {
+            latenciesSnapshot = latenciesRecorder.getIntervalHistogram(latenciesSnapshot);
+
+            logger.printf(
+                    Level.INFO,
+                    "%30s count: %5d, mean: %8.2f, p99: %8.2f, max: %8.2f, in-flight: %6d",
+                    "(interval channel " + id + " in ms)",
+                    latenciesSnapshot.getTotalCount(),
+                    latenciesSnapshot.getMean() / 1_000_000.0,
+                    latenciesSnapshot.getValueAtPercentile(99) / 1_000_000.0,
+                    latenciesSnapshot.getMaxValue() / 1_000_000.0,
+                    inFlight.get());
+
+            latencies.add(latenciesSnapshot);
         }
     }
 
     public static final class MultiChannel extends Channel {
-        private final List<Channel> channels;
+        private final AtomicReferenceArray<Channel> channels;
+        private final List<ChannelStats> stats;
+        private final String picker;
         private final AtomicInteger pos = new AtomicInteger();
 
-        public MultiChannel(List<Channel> channels) {
-          this.channels = new ArrayList<Channel>(channels);
+        // To replace a connection after every churnEvery calls, if not 0
+        private final ManagedChannelBuilder<?> builder;
+        private final int churnEvery;
+        private final AtomicInteger calls = new AtomicInteger();
+
+        public MultiChannel(List<Channel> channels, List<ChannelStats> stats, String picker,
+                            ManagedChannelBuilder<?> builder, int churnEvery) {
+          this.channels = new AtomicReferenceArray<Channel>(channels.toArray(new Channel[0]));
+          this.stats = new ArrayList<ChannelStats>(stats);
+          this.picker = picker;
+          this.builder = builder;
+          this.churnEvery = churnEvery;
         }
 
         public <ReqT, RespT> ClientCall<ReqT, RespT> newCall(
             MethodDescriptor<ReqT, RespT> m, CallOptions o) {
-          int idx = pos.getAndIncrement() % channels.size();
-          return channels.get(idx).newCall(m, o);
+          final int idx = pick();
+          final ChannelStats channelStats = stats.get(idx);
+          final ClientCall<ReqT, RespT> call = channels.get(idx).newCall(m, o);
+
+          // Replace the connection this call went to. The new channel only
+          // connects on its first call, which then pays for the connect and
+          // handshake. The old one is shut down once this call is done, by
+          // when the calls that picked it alongside have started, and it
+          // then finishes them before it closes.
+          final ManagedChannel retired = churnEvery > 0 && calls.incrementAndGet() % churnEvery == 0
+              ? (ManagedChannel) channels.getAndSet(idx, builder.build())
+              : null;
+
+          return new ForwardingClientCall.SimpleForwardingClientCall<ReqT, RespT>(call) {
+            public void start(Listener<RespT> listener, Metadata headers) {
+              final long startedAt = System.nanoTime();
+              channelStats.inFlight.incrementAndGet();
+
+              super.start(new ForwardingClientCallListener.SimpleForwardingClientCallListener<RespT>(listener) {
+                public void onClose(Status status, Metadata trailers) {
+                  channelStats.inFlight.decrementAndGet();
+                  channelStats.latenciesRecorder.recordValue(System.nanoTime() - startedAt);
+                  if (retired != null) {
+                    retired.shutdown();
+                  }
+                  super.onClose(status, trailers);
+                }
+              }, headers);
+            }
+          };
+        }
+
+        private int pick() {
+          final int size = channels.length();
+          if (size == 1) {
+            return 0;
+          }
+
+          switch (picker) {
+            case "least-outstanding": {
+              // Start from a rotating offset, so that ties are spread
+              // rather than always going to the first channel
+              final int offset = Math.floorMod(pos.getAndIncrement(), size);
+              int best = offset;
+              for (int i = 1; i < size; i++) {
+                final int idx = (offset + i) % size;
+                if (stats.get(idx).inFlight.get() < stats.get(best).inFlight.get()) {
+                  best = idx;
+                }
+              }
+              return best;
+            }
+            case "power-of-two": {
+              final int a = ThreadLocalRandom.current().nextInt(size);
+              final int b = (a + 1 + ThreadLocalRandom.current().nextInt(size - 1)) % size;
+              return stats.get(a).inFlight.get() <= stats.get(b).inFlight.get() ? a : b;
+            }
+            default:
+              // floorMod stays non-negative when the counter wraps
+              return Math.floorMod(pos.getAndIncrement(), size);
+          }
         }
 
         public String authority() {
@@ -1,55 +1,58 @@
 package id.lokal;
 
+import java.io.IOException;
+import java.net.URI;
+import java.security.GeneralSecurityException;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
-import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeoutException;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
-import io.github.bucket4j.Bandwidth;
-import io.github.bucket4j.Bucket;
-import io.github.bucket4j.Bucket4j;
-import io.github.bucket4j.Refill;
+import javax.net.ssl.SSLContext;
+
 import net.sourceforge.argparse4j.ArgumentParsers;
+import net.sourceforge.argparse4j.impl.Arguments;
 import net.sourceforge.argparse4j.inf.ArgumentParser;
 import net.sourceforge.argparse4j.inf.ArgumentParserException;
 import net.sourceforge.argparse4j.inf.Namespace;
 import org.eclipse.jetty.client.HttpClient;
-import org.HdrHistogram.Histogram;
-import org.HdrHistogram.Recorder;
-import org.apache.logging.log4j.Level;
+import org.eclipse.jetty.client.HttpDestination;
+import org.eclipse.jetty.client.api.ContentResponse;
+import org.eclipse.jetty.client.api.Request;
+import org.eclipse.jetty.client.api.Response;
+import org.eclipse.jetty.client.api.Result;
+import org.eclipse.jetty.client.http.HttpClientTransportOverHTTP;
+import org.eclipse.jetty.http2.client.HTTP2Client;
+import org.eclipse.jetty.http.HttpFields;
+import org.eclipse.jetty.http.HttpHeader;
+import org.eclipse.jetty.http2.api.Session;
+import org.eclipse.jetty.http2.client.http.HttpClientTransportOverHTTP2;
+import org.eclipse.jetty.http2.client.http.HttpConnectionOverHTTP2;
+import org.eclipse.jetty.io.ClientConnector;
+import org.eclipse.jetty.util.ssl.SslContextFactory;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.LogManager;
 
-import static com.zaxxer.hikari.util.UtilityElf.quietlySleep;
-
 class HttpGet {
     private static final Logger logger = LogManager.getLogger(HttpGet.class);
 
-    private static final Recorder serviceTimesRecorder = new Recorder(2);
-    private static final Recorder responseTimesRecorder = new Recorder(2);
-
-    private static final Histogram serviceTimes = new Histogram(2);
-    private static final Histogram responseTimes = new Histogram(2);
-
-    private static Histogram serviceTimesSnapshot = null;
-    private static Histogram responseTimesSnapshot = null;
+    private static final LoadDriver driver = new LoadDriver(logger);
 
-    private static final AtomicInteger failures = new AtomicInteger();
-    private static int currentFailures = 0;
+    private static RequestBreakdown requestBreakdown;
 
-    private static ThreadPoolExecutor executor;
-
-    private static final HttpClient httpClient = new HttpClient();
     private static String url;
+    private static int churnEvery;
+
+    private static boolean async;
 
     public static void main(String[] args) {
         ArgumentParser parser = ArgumentParsers.newFor("get-time").build()
@@ -58,27 +61,127 @@ class HttpGet {
 
         parser.addArgument("-r", "--rps")
                 .type(Integer.class)
-                .required(true)
-                .help("The RPS during the stress test");
+                .help("The RPS during the stress test (required unless --worker-port is given)");
 
         parser.addArgument("-m", "--mode")
-                .choices("brutal", "uniform")
+                .choices("brutal", "burst", "uniform", "poisson")
                 .setDefault("brutal")
                 .help(
                     "brutal: all ops arrive at the beginning of each second\n"
+                    + "burst: all ops arrive at the beginning of each burst period\n"
                     + "uniform: ops arrive at fixed rate\n"
+                    + "poisson: ops arrive with exponential inter-arrival times\n"
                 );
 
+        parser.addArgument("--burst-period")
+                .type(Integer.class)
+                .setDefault(10)
+                .help("The burst period in ms for burst mode");
+
         parser.addArgument("-u", "--url")
                 .type(String.class)
-                .required(true)
-                .help("URL to send the requests to");
+                .help("URL to send the requests to (required unless "
+                      + "--calibrate is given)");
+
+        parser.addArgument("--calibrate")
+                .action(Arguments.storeTrue())
+                .help("Send the requests to /local of an in-process server "
+                      + "over loopback instead, for the baseline latency and "
+                      + "max RPS of the load generator alone");
+
+        parser.addArgument("--calibrate-delay")
+                .type(String.class)
+                .setDefault("0")
+                .help("Delay in ms that the in-process server injects per "
+                      + "response, i.e. fixed:MS, uniform:MIN,MAX or "
+                      + "exponential:MEAN");
+
+        parser.addArgument("--ca-cert")
+                .type(String.class)
+                .help("PEM file of the CA to verify an https server with, "
+                      + "e.g. certs/ca.pem (the default trust store if omitted)");
+
+        parser.addArgument("--client-cert")
+                .type(String.class)
+                .help("PEM file of the client certificate for mTLS, e.g. "
+                      + "certs/host-1-client.pem");
+
+        parser.addArgument("--client-key")
+                .type(String.class)
+                .help("PEM file of the client private key for mTLS, e.g. "
+                      + "certs/host-1-client-key.pem");
+
+        parser.addArgument("--churn-rate")
+                .type(Integer.class)
+                .help("Also open this many new connections per second, and "
+                      + "close them right after, to time the TCP connect and "
+                      + "the TLS handshake (for https) on their own");
+
+        parser.addArgument("--churn-every")
+                .type(Integer.class)
+                .help("Close a connection after every N requests (per "
+                      + "dispatcher), with Connection: close, so that the "
+                      + "connect and handshake show up in the request "
+                      + "latencies (HTTP/1.1 only)");
+
+        parser.addArgument("--http2")
+                .action(Arguments.storeTrue())
+                .help("Use HTTP/2 over cleartext (h2c, with prior knowledge) "
+                      + "instead of HTTP/1.1");
+
+        parser.addArgument("-c", "--connections")
+                .type(Integer.class)
+                .help("Number of connections (1 for HTTP/2 and up to 64 for "
+                      + "HTTP/1.1 if omitted)");
+
+        parser.addArgument("--max-concurrent-streams")
+                .type(Integer.class)
+                .help("The max number of concurrent streams per HTTP/2 "
+                      + "connection, or less if the server says so (as many "
+                      + "as the server allows if omitted)");
 
         parser.addArgument("-t", "--thread-pool-size")
                 .type(Integer.class)
                 .help("The size of the worker thread pool "
                       + "(same as RPS if omitted)");
 
+        parser.addArgument("--executor")
+                .choices("fixed", "virtual", "ring")
+                .setDefault("fixed")
+                .help(
+                    "fixed: blocking engine runs ops on a fixed pool of --thread-pool-size threads\n"
+                    + "virtual: blocking engine runs each op on its own virtual thread\n"
+                    + "ring: blocking engine runs ops on a fixed pool of --thread-pool-size threads, "
+                    + "handed over through a bounded lock-free ring without allocating per op, "
+                    + "ops that find the ring full are rejected\n"
+                );
+
+        parser.addArgument("--ring-size")
+                .type(Integer.class)
+                .help("The number of slots in the ring of --executor ring, "
+                      + "rounded up to a power of 2 (same as RPS if omitted)");
+
+        parser.addArgument("--engine")
+                .choices("blocking", "async")
+                .setDefault("blocking")
+                .help(
+                    "blocking: each op runs a blocking GET on the worker thread pool\n"
+                    + "async: each op is sent with a completion listener, "
+                    + "bounded by --max-in-flight instead of the thread pool size\n"
+                );
+
+        parser.addArgument("--max-in-flight")
+                .type(Integer.class)
+                .help("The max number of outstanding requests in async engine, "
+                      + "ops beyond this are rejected (same as RPS if omitted)");
+
+        parser.addArgument("-d", "--dispatchers")
+                .type(Integer.class)
+                .setDefault(1)
+                .help("Number of dispatcher shards, each sending its share of "
+                      + "the RPS with its own thread, http client, worker pool "
+                      + "and recorders");
+
         parser.addArgument("-w", "--warm-up-duration")
                 .type(Integer.class)
                 .setDefault(0)
@@ -87,8 +190,122 @@ class HttpGet {
 
         parser.addArgument("-s", "--stress-duration")
                 .type(Integer.class)
-                .required(true)
-                .help("The duration in seconds for actual stress test");
+                .help("The duration in seconds for actual stress test "
+                      + "(required unless --worker-port is given)");
+
+        parser.addArgument("--scenario")
+                .type(String.class)
+                .help("YAML or JSON file of the load phases to run, e.g. "
+                      + "ramp, hold, step, spike, sine and pause, instead of "
+                      + "-r, -w and -s (see Scenario.java for the format)");
+
+        parser.addArgument("--find-max")
+                .choices("step", "binary")
+                .help("Instead of a single stress test, search for the max RPS "
+                      + "(up to -r) that meets the SLO, holding each level for "
+                      + "--hold-duration");
+
+        parser.addArgument("--find-max-step")
+                .type(Integer.class)
+                .setDefault(1000)
+                .help("The RPS step for --find-max, which is also the "
+                      + "resolution of the binary search");
+
+        parser.addArgument("--hold-duration")
+                .type(Integer.class)
+                .setDefault(10)
+                .help("The duration in seconds of each --find-max or --users level");
+
+        parser.addArgument("--users")
+                .type(String.class)
+                .help("Instead of -r, run closed-loop, with this many virtual "
+                      + "users that each send their next op as soon as the "
+                      + "previous one completes, whatever the --engine and "
+                      + "--executor. A comma-separated list, e.g. 1,2,4,8,16, "
+                      + "sweeps over them, holding each level for "
+                      + "--hold-duration, after warming up with the first one "
+                      + "for -w");
+
+        parser.addArgument("--think-time")
+                .type(String.class)
+                .help("The think time of each --users user between ops, as "
+                      + "fixed:MS, uniform:MIN,MAX or exponential:MEAN");
+
+        parser.addArgument("--slo-p99")
+                .type(Double.class)
+                .setDefault(100.0)
+                .help("The max p99 response time in ms for a --find-max level to pass");
+
+        parser.addArgument("--slo-failures")
+                .type(Double.class)
+                .setDefault(1.0)
+                .help("The max percentage of failed or rejected ops for a "
+                      + "--find-max level to pass");
+
+        parser.addArgument("--error-log-limit")
+                .type(Integer.class)
+                .setDefault(10)
+                .help("The max number of failed ops logged per second, the "
+                      + "rest are only counted by status or exception");
+
+        parser.addArgument("--upstream-times")
+                .action(Arguments.storeTrue())
+                .help("Read the x-envoy-upstream-service-time of the "
+                      + "client sidecar and the x-handler-time-us of the app "
+                      + "from each response, and report them with the proxy "
+                      + "overhead, i.e. the service time minus the upstream time");
+
+        parser.addArgument("--breakdown")
+                .action(Arguments.storeTrue())
+                .help("Break the service time of each op down into the time "
+                      + "queued for a connection, sending the request headers, "
+                      + "waiting for the response headers and receiving the "
+                      + "content, from the events of the http client, and "
+                      + "count the connections opened and closed");
+
+        parser.addArgument("--envoy-admin")
+                .type(String.class)
+                .help("URL of an Envoy admin interface to poll /stats from "
+                      + "every second, e.g. http://127.0.0.1:19000 for the "
+                      + "client sidecar");
+
+        parser.addArgument("--envoy-stats-filter")
+                .type(String.class)
+                .setDefault(EnvoyStats.DEFAULT_FILTER)
+                .help("Regex of the Envoy stat names to report");
+
+        parser.addArgument("--metrics-port")
+                .type(Integer.class)
+                .help("Serve the metrics of the run in progress at "
+                      + "http://*:PORT/metrics in the OpenMetrics format, "
+                      + "updated every second");
+
+        parser.addArgument("-o", "--output-dir")
+                .type(String.class)
+                .help("Directory to write HdrHistogram interval logs and a "
+                      + "CSV time series of the intervals to");
+
+        parser.addArgument("--archive")
+                .type(String.class)
+                .help("Directory to save a record of the run to, with its "
+                      + "config, environment, histograms and intervals, for "
+                      + "id.lokal.Compare");
+
+        parser.addArgument("--label")
+                .type(String.class)
+                .help("Comma-separated key=value labels of the run for the "
+                      + "archive, e.g. machine=c7g.xlarge,concurrency=4");
+
+        parser.addArgument("--workers")
+                .type(String.class)
+                .help("Comma-separated host:port of worker processes to split "
+                      + "the RPS across, instead of sending the requests from "
+                      + "this process");
+
+        parser.addArgument("--worker-port")
+                .type(Integer.class)
+                .help("Run as a worker, taking the RPS, mode and durations "
+                      + "from the coordinator that connects to this port");
 
         Namespace ns = null;
         try {
@@ -98,197 +315,594 @@ class HttpGet {
             System.exit(1);
         }
 
-        final int rps = ns.getInt("rps").intValue();
-        final String mode = ns.getString("mode");
-        final int threadPoolSize = ns.getInt("thread_pool_size") == null ? rps : ns.getInt("thread_pool_size").intValue();
-        final int warmUpDuration = ns.getInt("warm_up_duration").intValue();
-        final int stressDuration = ns.getInt("stress_duration").intValue();
+        if (ns.getString("scenario") != null
+                && (ns.getString("find_max") != null || ns.getString("workers") != null || ns.getInt("worker_port") != null)) {
+            parser.handleError(new ArgumentParserException(
+                    "argument --scenario goes with neither --find-max nor distributed load generation", parser));
+            System.exit(1);
+        }
 
-        url = ns.getString("url");
+        if (ns.getString("users") != null
+                && (ns.getString("scenario") != null || ns.getString("find_max") != null
+                    || ns.getString("workers") != null || ns.getInt("worker_port") != null)) {
+            parser.handleError(new ArgumentParserException(
+                    "argument --users goes with neither --scenario, --find-max nor distributed load generation", parser));
+            System.exit(1);
+        }
+
+        List<Integer> users = null;
+        Distribution thinkTime = null;
+        if (ns.getString("users") != null) {
+            try {
+                users = ClosedLoop.parseLevels(ns.getString("users"));
+            } catch (NumberFormatException ex) {
+                parser.handleError(new ArgumentParserException(
+                        "invalid users: " + ex.getMessage(), parser));
+                System.exit(1);
+            }
+            try {
+                thinkTime = ns.getString("think_time") == null ? null : Distribution.parse(ns.getString("think_time"));
+            } catch (IllegalArgumentException ex) {
+                parser.handleError(new ArgumentParserException(ex.getMessage(), parser));
+                System.exit(1);
+            }
+        }
+
+        if (ns.getString("scenario") != null) {
+            try {
+                driver.scenario = Scenario.load(ns.getString("scenario"), ns.getString("mode"));
+            } catch (IOException ex) {
+                logger.error("error reading scenario: {}", ex.getMessage());
+                System.exit(1);
+            } catch (IllegalArgumentException ex) {
+                parser.handleError(new ArgumentParserException(ex.getMessage(), parser));
+                System.exit(1);
+            }
+        }
+
+        if (ns.getInt("worker_port") == null && driver.scenario == null && users == null
+                && (ns.getInt("rps") == null
+                    || (ns.getInt("stress_duration") == null && ns.getString("find_max") == null))) {
+            parser.handleError(new ArgumentParserException(
+                    "argument -r/--rps and -s/--stress-duration are required", parser));
+            System.exit(1);
+        }
+
+        if (ns.getInt("max_concurrent_streams") != null && ns.getInt("max_concurrent_streams").intValue() <= 0) {
+            parser.handleError(new ArgumentParserException(
+                    "argument --max-concurrent-streams must be positive", parser));
+            System.exit(1);
+        }
+
+        // Burst mode, or a burst phase of a scenario, fires a period's ops at
+        // once, so a period of 0 or less would fire them all up front
+        if (ns.getInt("burst_period").intValue() <= 0) {
+            parser.handleError(new ArgumentParserException(
+                    "argument --burst-period must be positive", parser));
+            System.exit(1);
+        }
+
+        if (ns.getInt("dispatchers").intValue() <= 0) {
+            parser.handleError(new ArgumentParserException(
+                    "argument -d/--dispatchers must be positive", parser));
+            System.exit(1);
+        }
 
+        // Each dispatcher gets its share of the in-flight limit, and a share
+        // of 0 would reject all its ops
+        if (ns.getInt("max_in_flight") != null
+                && ns.getInt("max_in_flight").intValue() < ns.getInt("dispatchers").intValue()) {
+            parser.handleError(new ArgumentParserException(
+                    "argument --max-in-flight must be at least -d/--dispatchers", parser));
+            System.exit(1);
+        }
+
+        if (ns.getString("find_max") != null && ns.getInt("rps") != null
+                && (ns.getInt("find_max_step").intValue() <= 0 || ns.getInt("find_max_step").intValue() > ns.getInt("rps").intValue())) {
+            parser.handleError(new ArgumentParserException(
+                    "argument --find-max-step must be positive and at most -r/--rps", parser));
+            System.exit(1);
+        }
+
+        if (ns.getString("archive") != null && ns.getString("workers") != null) {
+            // Only the workers have the intervals and the verdict of a run
+            parser.handleError(new ArgumentParserException(
+                    "argument --archive does not go with --workers, archive on the workers instead", parser));
+            System.exit(1);
+        }
+
+        final boolean calibrate = ns.getBoolean("calibrate").booleanValue();
+        if (ns.getString("url") == null && !calibrate) {
+            parser.handleError(new ArgumentParserException(
+                    "argument -u/--url is required", parser));
+            System.exit(1);
+        }
+
+        Distribution calibrationDelay = null;
         try {
-            httpClient.setMaxRequestsQueuedPerDestination(102400);
-            httpClient.start();
-        } catch (Exception ex) {
-            logger.error("error starting httpClient: {}", ex.getMessage());
+            calibrationDelay = Distribution.parse(ns.getString("calibrate_delay"));
+        } catch (IllegalArgumentException ex) {
+            parser.handleError(new ArgumentParserException(ex.getMessage(), parser));
+            System.exit(1);
+        }
+
+        if (ns.getString("client_cert") != null ^ ns.getString("client_key") != null) {
+            parser.handleError(new ArgumentParserException(
+                    "argument --client-cert and --client-key go together", parser));
             System.exit(1);
         }
 
-        executor = (ThreadPoolExecutor) Executors.newFixedThreadPool(threadPoolSize);
+        if (ns.getInt("churn_every") != null && ns.getBoolean("http2").booleanValue()) {
+            parser.handleError(new ArgumentParserException(
+                    "argument --churn-every is for HTTP/1.1 only", parser));
+            System.exit(1);
+        }
 
-        if (warmUpDuration > 0) {
-            warmUp(mode, rps, warmUpDuration);
+        if (ns.getInt("worker_port") != null) {
+            try {
+                logger.info("Waiting for coordinator on port {}...", ns.getInt("worker_port"));
+                driver.workerLink = WorkerLink.accept(ns.getInt("worker_port").intValue());
+            } catch (IOException ex) {
+                logger.error("error accepting coordinator: {}", ex.getMessage());
+                System.exit(1);
+            }
         }
 
-        stress(mode, rps, stressDuration);
-    }
+        final int rps = driver.workerLink != null ? driver.workerLink.rps
+                : driver.scenario != null ? driver.scenario.maxRps()
+                : users != null ? Collections.max(users).intValue() : ns.getInt("rps").intValue();
+        final String mode = driver.workerLink != null ? driver.workerLink.mode : ns.getString("mode");
+        driver.burstPeriod = driver.workerLink != null ? driver.workerLink.burstPeriod : ns.getInt("burst_period").intValue();
+        final int threadPoolSize = ns.getInt("thread_pool_size") == null ? rps : ns.getInt("thread_pool_size").intValue();
+        final String executorType = ns.getString("executor");
+        final int ringSize = ns.getInt("ring_size") == null ? rps : ns.getInt("ring_size").intValue();
+        async = ns.getString("engine").equals("async");
+        driver.limitsInFlight = async;
+        final int maxInFlight = ns.getInt("max_in_flight") == null ? rps : ns.getInt("max_in_flight").intValue();
+        final int dispatchers = ns.getInt("dispatchers").intValue();
+        final boolean http2 = ns.getBoolean("http2").booleanValue();
+        final Integer connections = ns.getInt("connections") != null ? ns.getInt("connections")
+                : http2 ? Integer.valueOf(1) : null;
+        final Integer maxConcurrentStreams = ns.getInt("max_concurrent_streams");
+        final int warmUpDuration = driver.workerLink != null ? driver.workerLink.warmUpDuration : ns.getInt("warm_up_duration").intValue();
+        final int stressDuration = driver.workerLink != null ? driver.workerLink.stressDuration
+                : ns.getInt("stress_duration") == null ? 0 : ns.getInt("stress_duration").intValue();
+        driver.failureStats = new FailureStats(ns.getInt("error_log_limit").intValue());
+        if (ns.getBoolean("upstream_times").booleanValue()) {
+            driver.upstreamTimes = new UpstreamTimes();
+        }
+        if (ns.getBoolean("breakdown").booleanValue()) {
+            requestBreakdown = new RequestBreakdown();
+            driver.extras = new RequestBreakdownExtras();
+        }
+        driver.health = new GeneratorHealth(logger);
 
-    private static Bandwidth getLimit(final String mode, final int rps) {
-        // We use a scheduler to ensure that ops arrive at a fixed RPS
-        // throughout the stress test, to avoid coordinated omission.
-        //
-        // Currently, this stress test supports 2 modes of RPS, i.e.
-        // - brutal: Simulate the worst case where all ops arrive at the
-        //           beginning of each second. This is the default.
-        // - uniform: Simulate the best case where ops arrive at fixed rate.
-        if (mode.equals("brutal")) {
-            Refill refill = Refill.intervally(rps, Duration.ofSeconds(1));
-            return Bandwidth.classic(rps, refill).withInitialTokens(rps);
+        if (ns.getString("output_dir") != null) {
+            try {
+                driver.resultsWriter = new ResultsWriter(ns.getString("output_dir"));
+            } catch (IOException ex) {
+                logger.error("error opening output dir: {}", ex.getMessage());
+                System.exit(1);
+            }
         }
-        else {
-            return Bandwidth.simple(rps, Duration.ofSeconds(1)).withInitialTokens(0);
+
+        if (ns.getString("archive") != null) {
+            try {
+                driver.archive = new RunArchive(
+                        ns.getString("archive"), "http-get", RunArchive.parseLabels(ns.getString("label")), ns.getAttrs());
+            } catch (IllegalArgumentException ex) {
+                parser.handleError(new ArgumentParserException(ex.getMessage(), parser));
+                System.exit(1);
+            } catch (IOException ex) {
+                logger.error("error opening archive: {}", ex.getMessage());
+                System.exit(1);
+            }
+        }
+
+        if (ns.getInt("metrics_port") != null && ns.getString("workers") == null) {
+            try {
+                driver.metricsEndpoint = new MetricsEndpoint(ns.getInt("metrics_port").intValue());
+            } catch (IOException ex) {
+                logger.error("error starting metrics endpoint: {}", ex.getMessage());
+                System.exit(1);
+            }
+        }
+
+        if (ns.getString("envoy_admin") != null && ns.getString("workers") == null) {
+            try {
+                driver.envoyStats = new EnvoyStats(
+                        logger, ns.getString("envoy_admin"), ns.getString("envoy_stats_filter"), ns.getString("output_dir"));
+            } catch (Exception ex) {
+                logger.error("error starting envoy stats client: {}", ex.getMessage());
+                System.exit(1);
+            }
+        }
+
+        if (ns.getString("workers") != null) {
+            final List<String> workers = Arrays.asList(ns.getString("workers").split(","));
+            try {
+                new Coordinator(logger, driver::logMetrics, driver.resultsWriter, workers)
+                        .run(mode, driver.burstPeriod, rps, warmUpDuration, stressDuration);
+            } catch (IOException | InterruptedException ex) {
+                logger.error("error coordinating workers: {}", ex.getMessage());
+                System.exit(1);
+            }
+            System.exit(0);
+        }
+
+        url = ns.getString("url");
+        if (calibrate) {
+            driver.calibration = new CalibrationServer(calibrationDelay);
+            try {
+                url = "http://127.0.0.1:" + driver.calibration.startHttp(0) + "/local";
+            } catch (Exception ex) {
+                logger.error("error starting calibration server: {}", ex.getMessage());
+                System.exit(1);
+            }
+            logger.info("Calibrating against the in-process server at {}, with delay {}", url, calibrationDelay.spec);
+        }
+        churnEvery = ns.getInt("churn_every") == null ? 0 : ns.getInt("churn_every").intValue();
+
+        final URI uri = URI.create(url);
+        final boolean https = "https".equals(uri.getScheme());
+        if (https && http2) {
+            parser.handleError(new ArgumentParserException(
+                    "argument --http2 is for http URLs only, i.e. h2c without TLS", parser));
+            System.exit(1);
+        }
+        SSLContext sslContext = null;
+        if (https && (ns.getString("ca_cert") != null || ns.getString("client_cert") != null)) {
+            try {
+                sslContext = Tls.sslContext(ns.getString("ca_cert"), ns.getString("client_cert"), ns.getString("client_key"));
+            } catch (GeneralSecurityException | IOException ex) {
+                logger.error("error loading certs: {}", ex.getMessage());
+                System.exit(1);
+            }
         }
-    }
 
-    private static void warmUp(final String mode, final int rps, final int duration) {
-        logger.info("Warming up...");
+        if (!async && executorType.equals("virtual")) {
+            driver.virtualThreadStats = new VirtualThreadStats();
+            driver.virtualThreadStats.start();
+        }
+
+        // Each shard gets its own http client, and so its own connection
+        // pool, with its share of the connections.
+        final Shard[] shards = new Shard[dispatchers];
+        for (int i = 0; i < dispatchers; i++) {
+            HttpClient httpClient = http2 ? newHttp2Client(maxConcurrentStreams) : newHttpClient(sslContext);
+            try {
+                httpClient.setMaxRequestsQueuedPerDestination(102400);
+                if (connections != null) {
+                    httpClient.setMaxConnectionsPerDestination(Math.max(1, LoadDriver.split(connections, dispatchers, i)));
+                }
+                if (requestBreakdown != null) {
+                    // Added to each connection as a listener
+                    httpClient.addBean(requestBreakdown);
+                }
+                httpClient.start();
+            } catch (Exception ex) {
+                logger.error("error starting httpClient: {}", ex.getMessage());
+                System.exit(1);
+            }
+
+            shards[i] = new Shard(
+                    httpClient,
+                    async || executorType.equals("ring") ? null : newExecutor(executorType, LoadDriver.split(threadPoolSize, dispatchers, i)),
+                    LoadDriver.split(maxInFlight, dispatchers, i));
+            if (!async && executorType.equals("ring")) {
+                shards[i].startRing(LoadDriver.split(threadPoolSize, dispatchers, i), LoadDriver.split(ringSize, dispatchers, i));
+            }
+        }
+        driver.shards = shards;
+
+        if (ns.getInt("churn_rate") != null) {
+            try {
+                driver.churn = new ConnectionChurn(
+                        logger,
+                        driver::logMetrics,
+                        driver.failureStats,
+                        uri.getHost(),
+                        uri.getPort() != -1 ? uri.getPort() : https ? 443 : 80,
+                        !https ? null : sslContext != null ? sslContext : Tls.sslContext(null, null, null),
+                        null,
+                        "http/1.1");
+            } catch (GeneralSecurityException | IOException ex) {
+                logger.error("error loading certs: {}", ex.getMessage());
+                System.exit(1);
+            }
+        }
+
+        if (driver.workerLink != null) {
+            try {
+                driver.workerLink.awaitStart();
+            } catch (InterruptedException ex) {
+                logger.error("Interrupted: {}", ex.getMessage());
+                System.exit(1);
+            }
+        }
 
-        final ScheduledExecutorService ses = Executors.newSingleThreadScheduledExecutor((Runnable r) -> {
-            return new Thread(r, "warm");
-        });
-        ses.scheduleAtFixedRate(() -> recordMetrics(), 1, 1, TimeUnit.SECONDS);
+        if (driver.churn != null) {
+            driver.churn.start(ns.getInt("churn_rate").intValue());
+        }
 
-        final Bucket timerBucket = Bucket4j.builder().addLimit(getLimit("uniform", 1)).build();
-        final double rampUpRate = (double) rps / duration;
-        int warmUpOps = 0;
+        driver.health.start();
 
-        for (int i = 0; i < duration; i++) {
-            final int warmUpRps = (int) Math.ceil((i + 1) * rampUpRate);
-            final Bucket warmUpBucket = Bucket4j.builder().addLimit(getLimit(mode, warmUpRps)).build();
-            warmUpOps += warmUpRps;
+        if (driver.scenario != null) {
+            driver.runScenario();
+        }
 
-            for (int j = 0; j < warmUpRps; j++) {
-                warmUpBucket.asScheduler().consumeUninterruptibly(1);
-                executor.submit(new HttpTask());
+        if (ns.getString("find_max") != null) {
+            final MaxThroughputSearch search = new MaxThroughputSearch(
+                    logger,
+                    ns.getString("find_max"),
+                    rps,
+                    ns.getInt("find_max_step").intValue(),
+                    ns.getDouble("slo_p99").doubleValue(),
+                    ns.getDouble("slo_failures").doubleValue());
+
+            if (warmUpDuration > 0) {
+                driver.warmUp(mode, search.firstLevel(), warmUpDuration);
             }
 
-            timerBucket.asScheduler().consumeUninterruptibly(1);
+            driver.findMax(search, mode, ns.getInt("hold_duration").intValue());
         }
 
-        while (responseTimes.getTotalCount() + failures.get() < warmUpOps) {
-            quietlySleep(100);
+        if (users != null) {
+            // Each user sticks to a shard, and so to its connections
+            final ClosedLoop.Op[] ops = new ClosedLoop.Op[shards.length];
+            for (int i = 0; i < shards.length; i++) {
+                final Shard shard = shards[i];
+                ops[i] = createdAt -> HttpTask.call(shard, createdAt);
+            }
+            driver.closedLoop = new ClosedLoop(logger, users, thinkTime, ops);
+            driver.runClosedLoop(warmUpDuration, ns.getInt("hold_duration").intValue());
         }
 
-        ses.shutdown();
+        if (warmUpDuration > 0) {
+            driver.warmUp(mode, rps, warmUpDuration);
+        }
 
-        resetMetrics();
+        driver.stress(mode, rps, stressDuration);
+    }
 
-        logger.info("Warmed up, wait awhile first...");
-        quietlySleep(1000);
+    private static ExecutorService newExecutor(final String executorType, final int threadPoolSize) {
+        if (executorType.equals("virtual")) {
+            return Executors.newVirtualThreadPerTaskExecutor();
+        }
+        else {
+            return Executors.newFixedThreadPool(Math.max(1, threadPoolSize));
+        }
     }
 
-    private static void stress(final String mode, final int rps, final int duration) {
-        final ScheduledExecutorService ses = Executors.newSingleThreadScheduledExecutor((Runnable r) -> {
-            return new Thread(r, "stat");
-        });
-        ses.scheduleAtFixedRate(() -> recordMetrics(), 1, 1, TimeUnit.SECONDS);
+    private static HttpClient newHttpClient(final SSLContext sslContext) {
+        if (sslContext == null) {
+            return new HttpClient();
+        }
 
-        final long startTime = System.nanoTime();
+        // The client takes its SslContextFactory from the connector
+        SslContextFactory.Client sslContextFactory = new SslContextFactory.Client();
+        sslContextFactory.setSslContext(sslContext);
+        ClientConnector connector = new ClientConnector();
+        connector.setSslContextFactory(sslContextFactory);
+        return new HttpClient(new HttpClientTransportOverHTTP(connector));
+    }
 
-        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-            final long endTime = System.nanoTime();
-            final double actualRps = (double) serviceTimes.getTotalCount() / (endTime - startTime) * 1_000_000_000;
+    /**
+     * @param maxConcurrentStreams null to take the server's SETTINGS value
+     */
+    private static HttpClient newHttp2Client(final Integer maxConcurrentStreams) {
+        HttpClientTransportOverHTTP2 transport = maxConcurrentStreams == null
+                ? new HttpClientTransportOverHTTP2(new HTTP2Client())
+                // The pool asks each connection for its max concurrent
+                // streams, which is the server's SETTINGS value, so cap it
+                // there.
+                : new HttpClientTransportOverHTTP2(new HTTP2Client()) {
+                    @Override
+                    protected HttpConnectionOverHTTP2 newHttpConnection(HttpDestination destination, Session session) {
+                        return new HttpConnectionOverHTTP2(destination, session) {
+                            @Override
+                            public int getMaxMultiplex() {
+                                return Math.min(super.getMaxMultiplex(), maxConcurrentStreams.intValue());
+                            }
+                        };
+                    }
+                };
+        transport.setUseALPN(false);
+        return new HttpClient(transport);
+    }
 
-            ses.shutdown();
-            executor.shutdown();
+    static class Shard extends LoadDriver.Shard {
+        private final HttpClient httpClient;
+        private final AtomicInteger requests = new AtomicInteger();
 
-            logMetrics("(overall service time in ms)", serviceTimes, failures.get());
-            logMetrics("(overall response time in ms)", responseTimes, failures.get());
-            logger.info("approximate rps: {}", actualRps);
-        }, "last"));
+        Shard(HttpClient httpClient, ExecutorService executor, int maxInFlight) {
+            super(HttpGet.driver, executor, maxInFlight);
+            this.httpClient = httpClient;
+        }
 
-        logger.info("Starting for real...");
+        /**
+         * Runs the ops on a pool of the given size, fed through a ring of the
+         * given capacity, instead of on the executor.
+         */
+        void startRing(int threads, int capacity) {
+            ring = new RingPool("ring-worker", Math.max(1, threads), capacity, createdAt -> HttpTask.call(this, createdAt),
+                    HttpGet::fail);
+        }
 
-        final Bucket actualBucket = Bucket4j.builder().addLimit(getLimit(mode, rps)).build();
-        final int actualOps = rps * duration;
+        @Override
+        void dispatch(final long createdAt) {
+            if (async) {
+                new AsyncHttpCall(this, createdAt).start();
+            }
+            else if (ring != null) {
+                offerToRing(createdAt);
+            }
+            else {
+                executor.submit(new HttpTask(this, createdAt));
+            }
+        }
 
-        for (int i = 0; i < actualOps; i++) {
-            actualBucket.asScheduler().consumeUninterruptibly(1);
-            executor.submit(new HttpTask());
+        Request newRequest() {
+            final Request request = httpClient.newRequest(url);
+            if (churnEvery > 0 && requests.incrementAndGet() % churnEvery == 0) {
+                // Jetty closes the connection once the response is in, and
+                // the pool opens a new one when needed
+                request.headers(headers -> headers.put(HttpHeader.CONNECTION, "close"));
+            }
+            if (requestBreakdown != null) {
+                requestBreakdown.instrument(request);
+            }
+            return request;
+        }
+    }
+
+    /**
+     * Logs the breakdown of each request into its phases along with the
+     * shared metrics.
+     */
+    private static final class RequestBreakdownExtras implements LoadDriver.Extras {
+        @Override
+        public void reset() {
+            requestBreakdown.reset();
         }
 
-        while (responseTimes.getTotalCount() + failures.get() < actualOps) {
-            quietlySleep(100);
+        @Override
+        public void recordMetrics(boolean counts) {
+            requestBreakdown.recordMetrics(counts);
+            requestBreakdown.logInterval(logger);
         }
 
-        System.exit(0);
+        @Override
+        public void logOverall(long elapsed) {
+            requestBreakdown.logOverall(logger);
+        }
     }
 
-    private static void resetMetrics() {
-        serviceTimesSnapshot = null;
-        responseTimesSnapshot = null;
+    /**
+     * Counts a failed op by its exception type, and logs it if still within
+     * the log limit.
+     */
+    private static void fail(Throwable ex) {
+        if (driver.failureStats.sample()) {
+            logger.error("http error: {}", ex.getMessage());
+            logger.debug("http error stacktrace:", ex);
+        }
+
+        driver.failureStats.record(ex.getClass().getSimpleName());
+        driver.failures.incrementAndGet();
+    }
 
-        failures.set(0);
-        currentFailures = 0;
+    /**
+     * Counts a response with an error status, e.g. a 503 from the proxy
+     * under overload, as a failed op.
+     */
+    private static void failHttpStatus(int status) {
+        if (driver.failureStats.sample()) {
+            logger.error("http error: status {}", status);
+        }
 
-        serviceTimes.reset();
-        responseTimes.reset();
+        driver.failureStats.record("HTTP " + status);
+        driver.failures.incrementAndGet();
     }
 
-    private static void recordMetrics() {
-        serviceTimesSnapshot = serviceTimesRecorder.getIntervalHistogram(serviceTimesSnapshot);
-        responseTimesSnapshot = responseTimesRecorder.getIntervalHistogram(responseTimesSnapshot);
-
-        int prevFailures = currentFailures;
-        currentFailures = failures.get();
-        int failed = currentFailures - prevFailures;
-
-        logMetrics("(interval service time in ms)", serviceTimesSnapshot, failed);
-        logMetrics("(interval response time in ms)", responseTimesSnapshot, failed);
-
-        serviceTimes.add(serviceTimesSnapshot);
-        responseTimes.add(responseTimesSnapshot);
-    };
-
-    private static void logMetrics(String prefix, Histogram histogram, int failed) {
-        logger.printf(
-                Level.INFO,
-                "%30s count: %5d, min: %8.2f, mean: %8.2f, p99: %8.2f, max: %8.2f, stddev: %6.2f, failed: %5d",
-                prefix,
-                histogram.getTotalCount(),
-                histogram.getMinValue() == Long.MAX_VALUE ? 0 : histogram.getMinValue() / 1_000_000.0,
-                histogram.getMean() / 1_000_000.0,
-                histogram.getValueAtPercentile(99) / 1_000_000.0,
-                histogram.getMaxValue() / 1_000_000.0,
-                histogram.getStdDeviation() / 1_000_000.0,
-                failed);
+    /**
+     * Records the timings in the headers of a successful response, if asked
+     * to, against its service time.
+     */
+    private static void recordUpstreamTimes(Response response, long serviceTime) {
+        if (driver.upstreamTimes != null) {
+            final HttpFields headers = response.getHeaders();
+            driver.upstreamTimes.record(serviceTime, headers.get(UpstreamTimes.UPSTREAM_TIME), headers.get(UpstreamTimes.HANDLER_TIME));
+        }
     }
 
     static class HttpTask implements Runnable {
+        private final Shard shard;
         private final long createdAt;
 
-        HttpTask() {
-            createdAt = System.nanoTime();
+        HttpTask(Shard shard, long createdAt) {
+            this.shard = shard;
+            this.createdAt = createdAt;
             //logger.debug("task arrives at {}", createdAt);
         }
 
         public void run() {
+            call(shard, createdAt);
+        }
+
+        /**
+         * Runs an op, without a task of its own, as the ring workers do.
+         */
+        static void call(final Shard shard, final long createdAt) {
             long runningAt = System.nanoTime();
+            shard.queueWaitsRecorder.recordValue(Math.max(0, runningAt - createdAt));
 
             try {
-                httpClient.GET(url).getStatus();
+                final ContentResponse response = shard.newRequest().send();
                 long doneAt = System.nanoTime();
 
-                serviceTimesRecorder.recordValue(doneAt - runningAt);
-                responseTimesRecorder.recordValue(doneAt - createdAt);
+                if (response.getStatus() >= 400) {
+                    failHttpStatus(response.getStatus());
+                    return;
+                }
+
+                shard.serviceTimesRecorder.recordValue(doneAt - runningAt);
+                shard.responseTimesRecorder.recordValue(doneAt - createdAt);
+                recordUpstreamTimes(response, doneAt - runningAt);
             }
             catch (TimeoutException ex) {
-                logger.error("http error: {}", ex.getMessage());
-                logger.debug("http error stacktrace:", ex);
-
-                failures.incrementAndGet();
+                fail(ex);
             }
             catch (ExecutionException ex) {
-                logger.error("http error: {}", ex.getMessage());
-                logger.debug("http error stacktrace:", ex);
-
-                failures.incrementAndGet();
+                fail(ex.getCause() != null ? ex.getCause() : ex);
             }
             catch (InterruptedException ex) {
                 logger.error("Interrupted: {}", ex.getMessage());
 
-                failures.incrementAndGet();
+                driver.failureStats.record(ex.getClass().getSimpleName());
+                driver.failures.incrementAndGet();
             }
         }
     }
+
+    static class AsyncHttpCall implements Response.CompleteListener {
+        private final Shard shard;
+        private final long createdAt;
+        private long runningAt;
+
+        AsyncHttpCall(Shard shard, long createdAt) {
+            this.shard = shard;
+            this.createdAt = createdAt;
+        }
+
+        void start() {
+            if (!shard.admit()) {
+                return;
+            }
+
+            runningAt = System.nanoTime();
+            shard.queueWaitsRecorder.recordValue(Math.max(0, runningAt - createdAt));
+
+            shard.newRequest().send(this);
+        }
+
+        public void onComplete(Result result) {
+            long doneAt = System.nanoTime();
+            shard.inFlight.decrementAndGet();
+
+            if (result.isFailed()) {
+                fail(result.getFailure());
+                return;
+            }
+
+            if (result.getResponse().getStatus() >= 400) {
+                failHttpStatus(result.getResponse().getStatus());
+                return;
+            }
+
+            shard.serviceTimesRecorder.recordValue(doneAt - runningAt);
+            shard.responseTimesRecorder.recordValue(doneAt - createdAt);
+            recordUpstreamTimes(result.getResponse(), doneAt - runningAt);
+        }
+    }
 }
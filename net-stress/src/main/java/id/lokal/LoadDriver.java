@@ -0,0 +1,713 @@
+package id.lokal;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.Logger;
+
+import static com.zaxxer.hikari.util.UtilityElf.quietlySleep;
+
+/**
+ * The part of a load generator that HttpGet and GrpcGet share, i.e. offering
+ * the ops over the shards, running the phases of a run, and merging, logging
+ * and publishing the metrics of the shards once per interval.
+ *
+ * The tools only differ in how a shard runs an op, and in the few metrics of
+ * their own, which they add via {@link Extras}. The optional parts, e.g. the
+ * scenario or the archive, are set up by the tool's main, and are null if not
+ * asked for.
+ */
+class LoadDriver {
+    /**
+     * The metrics a tool adds to the shared ones, e.g. per connection.
+     */
+    interface Extras {
+        default void reset() {
+        }
+
+        /**
+         * Called on the stat thread, after the shards are merged.
+         *
+         * @param counts whether the interval counts towards the overall
+         *               metrics, i.e. it is not in an uncounted phase of a
+         *               scenario
+         */
+        default void recordMetrics(boolean counts) {
+        }
+
+        /**
+         * @param elapsed the ns the overall metrics are over
+         */
+        default void logOverall(long elapsed) {
+        }
+    }
+
+    private final Logger logger;
+
+    final Histogram serviceTimes = new Histogram(2);
+    final Histogram responseTimes = new Histogram(2);
+    private final Histogram dispatchLags = new Histogram(2);
+    private final Histogram queueWaits = new Histogram(2);
+
+    // Merged from the interval histograms of all shards
+    final Histogram serviceTimesSnapshot = new Histogram(2);
+    final Histogram responseTimesSnapshot = new Histogram(2);
+    private final Histogram dispatchLagsSnapshot = new Histogram(2);
+    private final Histogram queueWaitsSnapshot = new Histogram(2);
+
+    // The intervals merged into the overall histograms since the reset
+    private int ticks = 0;
+
+    final AtomicInteger failures = new AtomicInteger();
+    private int currentFailures = 0;
+    final AtomicInteger rejected = new AtomicInteger();
+    private int currentRejected = 0;
+    FailureStats failureStats;
+    GeneratorHealth health;
+    // The intended rps of the second being offered, for the metrics endpoint
+    private volatile int offeredRps = 0;
+    private volatile boolean warmingUp = false;
+
+    int burstPeriod;
+    Shard[] shards;
+    // Whether the shards admit ops up to an in-flight limit, rather than
+    // queue them for worker threads
+    boolean limitsInFlight;
+    // What an op is, for the throughput, e.g. msg/s for stream messages
+    String opUnit = "rps";
+    Extras extras = new Extras() {
+    };
+
+    EnvoyStats envoyStats;
+    MetricsEndpoint metricsEndpoint;
+    VirtualThreadStats virtualThreadStats;
+    ConnectionChurn churn;
+    CalibrationServer calibration;
+    Scenario scenario;
+    RunArchive archive;
+    ClosedLoop closedLoop;
+    UpstreamTimes upstreamTimes;
+    WorkerLink workerLink;
+    ResultsWriter resultsWriter;
+
+    LoadDriver(Logger logger) {
+        this.logger = logger;
+    }
+
+    static int split(final int total, final int parts, final int part) {
+        // Spread the remainder over the first few parts
+        return total / parts + (part < total % parts ? 1 : 0);
+    }
+
+    private void offer(final String mode, final int rps, final long startTime, final int duration) {
+        if (shards.length == 1) {
+            shards[0].offer(mode, rps, startTime, duration);
+            return;
+        }
+
+        final Thread[] dispatchers = new Thread[shards.length];
+        for (int i = 0; i < shards.length; i++) {
+            final Shard shard = shards[i];
+            final int shardRps = split(rps, shards.length, i);
+            dispatchers[i] = new Thread(() -> shard.offer(mode, shardRps, startTime, duration), "dispatch-" + i);
+            dispatchers[i].start();
+        }
+
+        for (Thread dispatcher : dispatchers) {
+            try {
+                dispatcher.join();
+            }
+            catch (InterruptedException ex) {
+                logger.error("Interrupted: {}", ex.getMessage());
+                return;
+            }
+        }
+    }
+
+    void warmUp(final String mode, final int rps, final int duration) {
+        logger.info("Warming up...");
+        warmingUp = true;
+
+        final ScheduledExecutorService ses = Executors.newSingleThreadScheduledExecutor((Runnable r) -> {
+            return new Thread(r, "warm");
+        });
+        ses.scheduleAtFixedRate(() -> recordMetrics(), 1, 1, TimeUnit.SECONDS);
+
+        final long warmUpStart = System.nanoTime();
+        final double rampUpRate = (double) rps / duration;
+        int warmUpOps = 0;
+
+        for (int i = 0; i < duration; i++) {
+            final int warmUpRps = (int) Math.ceil((i + 1) * rampUpRate);
+            warmUpOps += warmUpRps;
+
+            offeredRps = warmUpRps;
+            offer(mode, warmUpRps, warmUpStart + i * 1_000_000_000L, 1);
+        }
+
+        // Let the last second of ops run its course before checking for
+        // completion, same as the stress test.
+        quietlySleep(Math.max(0, (warmUpStart + duration * 1_000_000_000L - System.nanoTime()) / 1_000_000));
+
+        while (responseTimes.getTotalCount() + failures.get() + rejected.get() < warmUpOps) {
+            quietlySleep(100);
+        }
+
+        onStatThread(ses, () -> resetMetrics());
+        ses.shutdown();
+        warmingUp = false;
+
+        logger.info("Warmed up, wait awhile first...");
+        quietlySleep(1000);
+    }
+
+    void stress(final String mode, final int rps, final int duration) {
+        final ScheduledExecutorService ses = Executors.newSingleThreadScheduledExecutor((Runnable r) -> {
+            return new Thread(r, "stat");
+        });
+        if (workerLink != null) {
+            workerLink.startInterval();
+        }
+        ses.scheduleAtFixedRate(() -> recordMetrics(), 1, 1, TimeUnit.SECONDS);
+
+        logOverallOnExit(ses, System.nanoTime());
+
+        logger.info("Starting for real...");
+
+        final int actualOps = rps * duration;
+
+        offeredRps = rps;
+        offer(mode, rps, System.nanoTime(), duration);
+
+        while (responseTimes.getTotalCount() + failures.get() + rejected.get() < actualOps) {
+            quietlySleep(100);
+        }
+
+        if (workerLink != null) {
+            // Send whatever was recorded after the last tick, then sign off
+            ses.shutdown();
+            try {
+                ses.awaitTermination(1, TimeUnit.SECONDS);
+                recordMetrics();
+                workerLink.sendDone();
+            } catch (IOException | InterruptedException ex) {
+                logger.error("error signing off from coordinator: {}", ex.getMessage());
+            }
+        }
+
+        System.exit(0);
+    }
+
+    private void logOverallOnExit(final ScheduledExecutorService ses, final long startTime) {
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            // Only the counted phases of a scenario make it into the overall
+            // histograms
+            final long elapsed = scenario != null
+                    ? scenario.countedDuration() * 1_000_000_000L : System.nanoTime() - startTime;
+            final int failed = scenario != null ? (int) scenario.countedFailed() : failures.get();
+            final double actualRps = (double) serviceTimes.getTotalCount() / elapsed * 1_000_000_000;
+
+            ses.shutdown();
+            for (Shard shard : shards) {
+                if (shard.executor != null) {
+                    shard.executor.shutdown();
+                }
+                if (shard.ring != null) {
+                    shard.ring.shutdown();
+                }
+            }
+            if (virtualThreadStats != null) {
+                virtualThreadStats.close();
+            }
+            if (resultsWriter != null) {
+                resultsWriter.close();
+            }
+            if (envoyStats != null) {
+                envoyStats.close();
+            }
+            if (metricsEndpoint != null) {
+                metricsEndpoint.close();
+            }
+            if (calibration != null) {
+                calibration.close();
+            }
+
+            if (scenario != null) {
+                scenario.logOverall(logger);
+            }
+            logMetrics("(overall service time in ms)", serviceTimes, failed);
+            logMetrics("(overall response time in ms)", responseTimes, failed);
+            logMetrics("(overall dispatch lag in ms)", dispatchLags, 0);
+            logMetrics("(overall queue wait in ms)", queueWaits, 0);
+            if (upstreamTimes != null) {
+                upstreamTimes.logOverall(logger);
+            }
+            extras.logOverall(elapsed);
+            failureStats.logOverall(logger);
+            if (limitsInFlight) {
+                logger.info("rejected by in-flight limit: {}", rejected.get());
+            }
+            else if (shards[0].ring != null) {
+                logger.info("rejected by full ring: {}", rejected.get());
+            }
+            if (virtualThreadStats != null) {
+                virtualThreadStats.logOverall(logger);
+            }
+            if (churn != null) {
+                churn.logOverall();
+            }
+            logger.info("approximate {}: {}", opUnit, actualRps);
+            if (calibration != null) {
+                calibration.logOverall(logger, responseTimes, actualRps);
+            }
+            health.logOverall();
+            if (archive != null) {
+                try {
+                    archive.write(scenario != null ? "scenario" : "stress", elapsed / 1_000_000_000.0, actualRps,
+                            failed, rejected.get(), health.verdict(), serviceTimes, responseTimes);
+                    logger.info("Saved run record to {}", archive.file());
+                } catch (IOException ex) {
+                    logger.error("error saving run record: {}", ex.getMessage());
+                }
+            }
+        }, "last"));
+    }
+
+    void runScenario() {
+        final ScheduledExecutorService ses = Executors.newSingleThreadScheduledExecutor((Runnable r) -> {
+            return new Thread(r, "stat");
+        });
+        ses.scheduleAtFixedRate(() -> recordMetrics(), 1, 1, TimeUnit.SECONDS);
+
+        logOverallOnExit(ses, System.nanoTime());
+
+        scenario.run(logger, (String mode, int rps, long startTime, int duration) -> {
+            offeredRps = rps;
+            offer(mode, rps, startTime, duration);
+        });
+
+        while (scenario.completed() < scenario.ops()) {
+            quietlySleep(100);
+        }
+
+        System.exit(0);
+    }
+
+    void findMax(final MaxThroughputSearch search, final String mode, final int duration) {
+        final ScheduledExecutorService ses = Executors.newSingleThreadScheduledExecutor((Runnable r) -> {
+            return new Thread(r, "stat");
+        });
+        ses.scheduleAtFixedRate(() -> recordMetrics(), 1, 1, TimeUnit.SECONDS);
+
+        final long searchStartTime = System.nanoTime();
+        final int best = search.run((int levelRps) -> {
+            logger.info("Holding {} rps for {} seconds...", levelRps, duration);
+            onStatThread(ses, () -> resetMetrics());
+
+            final long startTime = System.nanoTime();
+            final int ops = levelRps * duration;
+
+            offeredRps = levelRps;
+            offer(mode, levelRps, startTime, duration);
+
+            while (responseTimes.getTotalCount() + failures.get() + rejected.get() < ops) {
+                quietlySleep(100);
+            }
+
+            // The ops are only seen as done at the next tick, so take off
+            // up to a second, unless the backlog took longer than that to
+            // drain.
+            final long elapsed = Math.max(duration * 1_000_000_000L, System.nanoTime() - startTime - 1_000_000_000L);
+            return onStatThread(ses, () -> new MaxThroughputSearch.Result(
+                    levelRps,
+                    (double) responseTimes.getTotalCount() / elapsed * 1_000_000_000,
+                    responseTimes.copy(),
+                    failures.get() + rejected.get(),
+                    ops));
+        });
+
+        if (calibration != null) {
+            logger.info("max rps of the load generator alone: {}", best);
+        }
+        if (archive != null) {
+            // Each level has its own histograms, which are in the intervals
+            try {
+                archive.write("find-max", (System.nanoTime() - searchStartTime) / 1_000_000_000.0, best,
+                        0, 0, health.verdict(), null, null);
+                logger.info("Saved run record to {}", archive.file());
+            } catch (IOException ex) {
+                logger.error("error saving run record: {}", ex.getMessage());
+            }
+        }
+
+        ses.shutdown();
+        if (resultsWriter != null) {
+            resultsWriter.close();
+        }
+        System.exit(0);
+    }
+
+    void runClosedLoop(final int warmUpDuration, final int duration) {
+        final ScheduledExecutorService ses = Executors.newSingleThreadScheduledExecutor((Runnable r) -> {
+            return new Thread(r, "stat");
+        });
+        ses.scheduleAtFixedRate(() -> recordMetrics(), 1, 1, TimeUnit.SECONDS);
+
+        offeredRps = 0;
+        if (warmUpDuration > 0) {
+            logger.info("Warming up with {} users...", closedLoop.levels.get(0));
+            warmingUp = true;
+            closedLoop.setUsers(closedLoop.levels.get(0).intValue());
+            quietlySleep(warmUpDuration * 1000L);
+            warmingUp = false;
+        }
+
+        final long sweepStartTime = System.nanoTime();
+        final List<ClosedLoop.Result> curve = closedLoop.run((int levelUsers) -> {
+            logger.info("Holding {} users for {} seconds...", levelUsers, duration);
+            // The interval in progress has ops of the level before, so wait
+            // for the next one
+            quietlySleep(1000);
+            onStatThread(ses, () -> resetMetrics());
+            quietlySleep(duration * 1000L);
+
+            // Each tick merges a second of ops, and as many ticks as fit
+            // in the duration, give or take one, have been merged by now
+            return onStatThread(ses, () -> new ClosedLoop.Result(
+                    levelUsers,
+                    ticks > 0 ? (double) responseTimes.getTotalCount() / ticks : 0,
+                    responseTimes.copy(),
+                    failures.get()));
+        });
+
+        double best = 0;
+        long failed = 0;
+        for (ClosedLoop.Result result : curve) {
+            best = Math.max(best, result.achieved);
+            failed += result.failed;
+        }
+        if (calibration != null) {
+            logger.printf(Level.INFO, "max rps of the load generator alone: %.2f", best);
+        }
+        if (archive != null) {
+            // Each level has its own histograms, which are in the intervals
+            try {
+                archive.write("closed-loop", (System.nanoTime() - sweepStartTime) / 1_000_000_000.0, best,
+                        failed, 0, health.verdict(), null, null);
+                logger.info("Saved run record to {}", archive.file());
+            } catch (IOException ex) {
+                logger.error("error saving run record: {}", ex.getMessage());
+            }
+        }
+
+        ses.shutdown();
+        if (resultsWriter != null) {
+            resultsWriter.close();
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Runs a task on the stat thread, in between its ticks, since the
+     * overall histograms and counts that the ticks merge into are not
+     * thread-safe, e.g. to reset them for the next phase.
+     */
+    private static <T> T onStatThread(final ScheduledExecutorService ses, final Callable<T> task) {
+        try {
+            return ses.submit(task).get();
+        }
+        catch (ExecutionException ex) {
+            throw new IllegalStateException(ex.getCause());
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static void onStatThread(final ScheduledExecutorService ses, final Runnable task) {
+        onStatThread(ses, () -> {
+            task.run();
+            return null;
+        });
+    }
+
+    private void resetMetrics() {
+        failures.set(0);
+        currentFailures = 0;
+        failureStats.reset();
+        health.reset();
+
+        rejected.set(0);
+        currentRejected = 0;
+        ticks = 0;
+
+        if (virtualThreadStats != null) {
+            virtualThreadStats.reset();
+        }
+        if (churn != null) {
+            churn.reset();
+        }
+        if (calibration != null) {
+            calibration.reset();
+        }
+        if (upstreamTimes != null) {
+            upstreamTimes.reset();
+        }
+        extras.reset();
+
+        serviceTimes.reset();
+        responseTimes.reset();
+        dispatchLags.reset();
+        queueWaits.reset();
+    }
+
+    private void recordMetrics() {
+        if (envoyStats != null) {
+            // Logged when it completes, right after the lines below
+            envoyStats.scrape();
+        }
+
+        serviceTimesSnapshot.reset();
+        responseTimesSnapshot.reset();
+        dispatchLagsSnapshot.reset();
+        queueWaitsSnapshot.reset();
+
+        int inFlight = 0;
+        int queued = 0;
+        int active = 0;
+        int poolSize = 0;
+        boolean pooled = false;
+        for (Shard shard : shards) {
+            shard.recordMetrics();
+            inFlight += shard.inFlight.get();
+
+            // Only the fixed pools and the rings queue, virtual threads start
+            // right away
+            if (shard.executor instanceof ThreadPoolExecutor) {
+                final ThreadPoolExecutor executor = (ThreadPoolExecutor) shard.executor;
+                queued += executor.getQueue().size();
+                active += executor.getActiveCount();
+                poolSize += executor.getPoolSize();
+                pooled = true;
+            }
+            else if (shard.ring != null) {
+                // Ops in the ring count as in flight, same as those admitted
+                // by the in-flight limit
+                queued += shard.ring.queued();
+                active += shard.ring.active();
+                poolSize += shard.ring.threads();
+                inFlight += shard.ring.queued() + shard.ring.active();
+                pooled = true;
+            }
+        }
+
+        int prevFailures = currentFailures;
+        currentFailures = failures.get();
+        int failed = currentFailures - prevFailures;
+
+        final boolean counts = scenario == null || scenario.current().counts;
+
+        logMetrics("(interval service time in ms)", serviceTimesSnapshot, failed);
+        logMetrics("(interval response time in ms)", responseTimesSnapshot, failed);
+        logMetrics("(interval dispatch lag in ms)", dispatchLagsSnapshot, 0);
+        logMetrics("(interval queue wait in ms)", queueWaitsSnapshot, 0);
+        if (upstreamTimes != null) {
+            upstreamTimes.recordMetrics(counts);
+            upstreamTimes.logInterval(logger, responseTimesSnapshot.getTotalCount());
+        }
+        extras.recordMetrics(counts);
+        failureStats.logInterval(logger);
+
+        // A gauge at the tick, rather than over the interval
+        if (pooled) {
+            logger.printf(
+                    Level.INFO,
+                    "%30s queued: %7d, active: %5d, threads: %5d",
+                    "(interval executor)",
+                    queued,
+                    active,
+                    poolSize);
+        }
+
+        int prevRejected = currentRejected;
+        currentRejected = rejected.get();
+        int rejectedOps = currentRejected - prevRejected;
+
+        if (limitsInFlight || shards[0].ring != null) {
+            logger.printf(
+                    Level.INFO,
+                    "%30s count: %5d, in-flight: %6d",
+                    "(interval rejected)",
+                    rejectedOps,
+                    inFlight);
+        }
+
+        final String verdict = health.logInterval(dispatchLagsSnapshot, queued > 0 || rejectedOps > 0);
+
+        final String phase = scenario != null ? scenario.current().name
+                : warmingUp ? "warm-up" : closedLoop != null ? closedLoop.phase() : "stress";
+        if (resultsWriter != null) {
+            resultsWriter.writeInterval(phase, serviceTimesSnapshot, responseTimesSnapshot, failed, rejectedOps, verdict);
+        }
+        if (archive != null) {
+            archive.recordInterval(phase, responseTimesSnapshot, failed, rejectedOps, verdict);
+        }
+
+        if (workerLink != null) {
+            try {
+                workerLink.sendInterval(warmingUp, serviceTimesSnapshot, responseTimesSnapshot, failed, rejectedOps);
+            } catch (IOException ex) {
+                logger.error("error sending interval to coordinator: {}", ex.getMessage());
+            }
+        }
+
+        if (virtualThreadStats != null) {
+            virtualThreadStats.logInterval(logger);
+        }
+
+        if (churn != null) {
+            churn.recordMetrics();
+        }
+
+        if (scenario != null) {
+            scenario.recordInterval(serviceTimesSnapshot, responseTimesSnapshot, failed, rejectedOps);
+        }
+        if (counts) {
+            serviceTimes.add(serviceTimesSnapshot);
+            responseTimes.add(responseTimesSnapshot);
+            dispatchLags.add(dispatchLagsSnapshot);
+            queueWaits.add(queueWaitsSnapshot);
+            ticks++;
+        }
+
+        if (metricsEndpoint != null) {
+            // The ops running on a worker thread are in flight as well,
+            // which for the rings they already count in
+            publishMetrics(shards[0].ring != null ? inFlight : inFlight + active, verdict);
+        }
+    }
+
+    private void publishMetrics(int inFlight, String verdict) {
+        metricsEndpoint.publish(metricsEndpoint.newPage()
+                .gauge("warming_up", "1 during the warm-up, 0 after", warmingUp ? 1 : 0)
+                .gauge("offered_rps", "The intended rps of the current second", offeredRps)
+                .gauge("achieved_rps", "The ops completed in the last interval", responseTimesSnapshot.getTotalCount())
+                .gauge("in_flight", "The ops in flight at the end of the last interval", inFlight)
+                .gauge("generator_bound", "1 if the load generator was the bottleneck in the last interval",
+                       GeneratorHealth.GENERATOR_BOUND.equals(verdict) ? 1 : 0)
+                .summary("interval_service_time_seconds", "Service time in the last interval", serviceTimesSnapshot)
+                .summary("interval_response_time_seconds", "Response time in the last interval", responseTimesSnapshot)
+                .summary("service_time_seconds", "Service time since the start of the phase", serviceTimes)
+                .summary("response_time_seconds", "Response time since the start of the phase", responseTimes)
+                .counter("failures", "Failed ops since the start of the phase", "reason", failureStats.totals())
+                .counter("rejected", "Ops rejected by the in-flight limit or a full ring since the start of the phase", rejected.get()));
+    }
+
+    void logMetrics(String prefix, Histogram histogram, int failed) {
+        logger.printf(
+                Level.INFO,
+                "%30s count: %5d, min: %8.2f, mean: %8.2f, p99: %8.2f, max: %8.2f, stddev: %6.2f, failed: %5d",
+                prefix,
+                histogram.getTotalCount(),
+                histogram.getMinValue() == Long.MAX_VALUE ? 0 : histogram.getMinValue() / 1_000_000.0,
+                histogram.getMean() / 1_000_000.0,
+                histogram.getValueAtPercentile(99) / 1_000_000.0,
+                histogram.getMaxValue() / 1_000_000.0,
+                histogram.getStdDeviation() / 1_000_000.0,
+                failed);
+    }
+
+    /**
+     * A dispatcher thread's share of the ops, with recorders of its own, so
+     * that the dispatchers do not contend on them. How an op runs is up to
+     * the tool.
+     */
+    abstract static class Shard {
+        final Recorder serviceTimesRecorder = new Recorder(2);
+        final Recorder responseTimesRecorder = new Recorder(2);
+        final Recorder dispatchLagsRecorder = new Recorder(2);
+        // From when an op is due until it runs, i.e. the time spent waiting
+        // for a worker thread, or for the in-flight limit to admit it
+        final Recorder queueWaitsRecorder = new Recorder(2);
+
+        private Histogram serviceTimesSnapshot = null;
+        private Histogram responseTimesSnapshot = null;
+        private Histogram dispatchLagsSnapshot = null;
+        private Histogram queueWaitsSnapshot = null;
+
+        final LoadDriver driver;
+        final ExecutorService executor;
+        RingPool ring = null;
+
+        final int maxInFlight;
+        final AtomicInteger inFlight = new AtomicInteger();
+
+        Shard(LoadDriver driver, ExecutorService executor, int maxInFlight) {
+            this.driver = driver;
+            this.executor = executor;
+            this.maxInFlight = maxInFlight;
+        }
+
+        void offer(final String mode, final int rps, final long startTime, final int duration) {
+            final ArrivalScheduler scheduler = new ArrivalScheduler(
+                    mode, rps, driver.burstPeriod, startTime, dispatchLagsRecorder);
+            final int ops = rps * duration;
+
+            for (int i = 0; i < ops; i++) {
+                dispatch(scheduler.next());
+            }
+        }
+
+        abstract void dispatch(long createdAt);
+
+        /**
+         * Hands an op over to the ring, counting it as rejected if full.
+         */
+        void offerToRing(final long createdAt) {
+            // A full ring means the workers are behind, same as the
+            // in-flight limit in async mode
+            if (!ring.offer(createdAt)) {
+                driver.rejected.incrementAndGet();
+            }
+        }
+
+        /**
+         * Admits an op under the in-flight limit, or counts it as rejected.
+         * The limit replaces the thread pool size as the bound on
+         * concurrency. Ops beyond the limit are not queued, since that would
+         * hide the backlog, but counted as rejected instead.
+         */
+        boolean admit() {
+            if (inFlight.incrementAndGet() > maxInFlight) {
+                inFlight.decrementAndGet();
+                driver.rejected.incrementAndGet();
+                return false;
+            }
+            return true;
+        }
+
+        private void recordMetrics() {
+            serviceTimesSnapshot = serviceTimesRecorder.getIntervalHistogram(serviceTimesSnapshot);
+            responseTimesSnapshot = responseTimesRecorder.getIntervalHistogram(responseTimesSnapshot);
+            dispatchLagsSnapshot = dispatchLagsRecorder.getIntervalHistogram(dispatchLagsSnapshot);
+            queueWaitsSnapshot = queueWaitsRecorder.getIntervalHistogram(queueWaitsSnapshot);
+
+            driver.serviceTimesSnapshot.add(serviceTimesSnapshot);
+            driver.responseTimesSnapshot.add(responseTimesSnapshot);
+            driver.dispatchLagsSnapshot.add(dispatchLagsSnapshot);
+            driver.queueWaitsSnapshot.add(queueWaitsSnapshot);
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package id.lokal;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import org.HdrHistogram.Histogram;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Searches for the highest offered RPS that still meets a latency SLO.
+ *
+ * Each level is held for a fixed duration, and passes if the p99 response
+ * time and the share of failed (or rejected) ops are both within the SLO.
+ * Currently, 2 kinds of search are supported, i.e.
+ * - step: Raise the RPS by a fixed step until a level fails.
+ * - binary: Bisect between 0 and the max RPS, down to the step size.
+ */
+class MaxThroughputSearch {
+    interface Levels {
+        Result run(int rps);
+    }
+
+    static class Result {
+        final int offered;
+        final double achieved;
+        final Histogram responseTimes;
+        final long failed;
+        final long ops;
+
+        Result(int offered, double achieved, Histogram responseTimes, long failed, long ops) {
+            this.offered = offered;
+            this.achieved = achieved;
+            this.responseTimes = responseTimes;
+            this.failed = failed;
+            this.ops = ops;
+        }
+
+        double failedPercent() {
+            return ops == 0 ? 0 : 100.0 * failed / ops;
+        }
+    }
+
+    private final Logger logger;
+    private final String search;
+    private final int maxRps;
+    private final int step;
+    private final double sloP99;
+    private final double sloFailures;
+
+    private final List<Result> curve = new ArrayList<Result>();
+
+    MaxThroughputSearch(Logger logger, String search, int maxRps, int step, double sloP99, double sloFailures) {
+        this.logger = logger;
+        this.search = search;
+        this.maxRps = maxRps;
+        this.step = step;
+        this.sloP99 = sloP99;
+        this.sloFailures = sloFailures;
+    }
+
+    /**
+     * The first level to be run, e.g. to warm up to.
+     */
+    int firstLevel() {
+        return search.equals("step") ? Math.min(step, maxRps) : bisect(0, maxRps + 1);
+    }
+
+    /**
+     * Runs the search, and returns the highest passing RPS, or 0 if none.
+     */
+    int run(Levels levels) {
+        int best = 0;
+
+        if (search.equals("step")) {
+            for (int rps = firstLevel(); rps <= maxRps; rps += step) {
+                if (!passed(levels.run(rps))) {
+                    break;
+                }
+                best = rps;
+            }
+        }
+        else {
+            // lo always passes (trivially for 0), hi always fails (or is
+            // just beyond the max RPS). While they are more than a step
+            // apart, bisect() has a level strictly between them.
+            int lo = 0;
+            int hi = maxRps + 1;
+            while (hi - lo > step) {
+                final int rps = bisect(lo, hi);
+                if (passed(levels.run(rps))) {
+                    lo = rps;
+                }
+                else {
+                    hi = rps;
+                }
+            }
+            best = lo;
+        }
+
+        logger.info("latency vs throughput:");
+        curve.sort(Comparator.comparingInt((Result result) -> result.offered));
+        for (Result result : curve) {
+            log(result);
+        }
+        logger.info("max sustainable rps: {} (p99 <= {} ms, failures <= {}%)", best, sloP99, sloFailures);
+
+        return best;
+    }
+
+    private int bisect(int lo, int hi) {
+        // Round to a multiple of the step, but at least a step above lo and
+        // below hi, i.e. never above the max RPS
+        final int mid = Math.round((lo + hi) / 2.0f / step) * step;
+        return Math.max(lo + step, Math.min(hi - 1, mid));
+    }
+
+    private boolean passed(Result result) {
+        curve.add(result);
+        log(result);
+        return isPassed(result);
+    }
+
+    private boolean isPassed(Result result) {
+        return result.responseTimes.getValueAtPercentile(99) / 1_000_000.0 <= sloP99
+            && result.failedPercent() <= sloFailures;
+    }
+
+    private void log(Result result) {
+        logger.printf(
+                Level.INFO,
+                "%30s offered: %6d, achieved: %9.2f, p50: %8.2f, p99: %8.2f, p99.9: %8.2f, failed: %6.2f%%, %s",
+                "(level)",
+                result.offered,
+                result.achieved,
+                result.responseTimes.getValueAtPercentile(50) / 1_000_000.0,
+                result.responseTimes.getValueAtPercentile(99) / 1_000_000.0,
+                result.responseTimes.getValueAtPercentile(99.9) / 1_000_000.0,
+                result.failedPercent(),
+                isPassed(result) ? "pass" : "fail");
+    }
+}
@@ -0,0 +1,131 @@
+package id.lokal;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.HdrHistogram.Histogram;
+
+/**
+ * Serves the metrics of a run in progress at /metrics, in the OpenMetrics
+ * text format, so that long runs can be watched on a dashboard and aborted
+ * early.
+ *
+ * The page is rendered by the stat thread once per interval, from the same
+ * snapshots that it logs, and then swapped in whole. A scrape only copies out
+ * the last page, so it never touches the Recorders, nor waits for the stat
+ * thread.
+ */
+class MetricsEndpoint {
+    private static final String CONTENT_TYPE = "application/openmetrics-text; version=1.0.0; charset=utf-8";
+    private static final String PREFIX = "netstress_";
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999, 1.0};
+
+    private final HttpServer server;
+    private volatile byte[] page = "# EOF\n".getBytes(StandardCharsets.UTF_8);
+
+    MetricsEndpoint(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/metrics", this::handle);
+        // The default executor runs each exchange on the one dispatcher
+        // thread, which is plenty for a scrape every few seconds
+        server.start();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        final byte[] body = page;
+        exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    Page newPage() {
+        return new Page();
+    }
+
+    void publish(Page page) {
+        this.page = page.text.append("# EOF\n").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    void close() {
+        server.stop(0);
+    }
+
+    /**
+     * The metric families of one interval, in the order they are added.
+     */
+    static class Page {
+        private final StringBuilder text = new StringBuilder();
+
+        /**
+         * A summary in seconds of a histogram in ns, with its quantiles,
+         * count and sum.
+         */
+        Page summary(String name, String help, Histogram histogram) {
+            family(name, "summary", help);
+            text.append("# UNIT ").append(PREFIX).append(name).append(" seconds\n");
+            for (double quantile : QUANTILES) {
+                sample(name, "quantile", String.valueOf(quantile),
+                       histogram.getValueAtPercentile(quantile * 100) / 1e9);
+            }
+            sample(name + "_count", histogram.getTotalCount());
+            sample(name + "_sum", histogram.getMean() * histogram.getTotalCount() / 1e9);
+            return this;
+        }
+
+        Page gauge(String name, String help, double value) {
+            family(name, "gauge", help);
+            sample(name, value);
+            return this;
+        }
+
+        Page counter(String name, String help, long value) {
+            family(name, "counter", help);
+            sample(name + "_total", value);
+            return this;
+        }
+
+        /**
+         * A counter with one sample per value of the label, e.g. failures
+         * per reason.
+         */
+        Page counter(String name, String help, String label, Map<String, Long> values) {
+            family(name, "counter", help);
+            for (Map.Entry<String, Long> value : values.entrySet()) {
+                sample(name + "_total", label, value.getKey(), value.getValue());
+            }
+            return this;
+        }
+
+        private void family(String name, String type, String help) {
+            text.append("# TYPE ").append(PREFIX).append(name).append(' ').append(type).append('\n');
+            text.append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n');
+        }
+
+        private void sample(String name, double value) {
+            text.append(PREFIX).append(name).append(' ').append(format(value)).append('\n');
+        }
+
+        private void sample(String name, String label, String labelValue, double value) {
+            text.append(PREFIX).append(name)
+                .append('{').append(label).append("=\"").append(escape(labelValue)).append("\"} ")
+                .append(format(value)).append('\n');
+        }
+
+        private static String format(double value) {
+            return value == Math.rint(value) && !Double.isInfinite(value)
+                    ? String.valueOf((long) value)
+                    : String.valueOf(value);
+        }
+
+        private static String escape(String value) {
+            return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package id.lokal;
+
+import org.HdrHistogram.Histogram;
+
+/**
+ * Logs a histogram of times in ns, with the failures alongside, in the format
+ * of the tool, e.g. GrpcGet::logMetrics.
+ */
+interface MetricsLog {
+    void log(String prefix, Histogram histogram, int failed);
+}
@@ -0,0 +1,164 @@
+package id.lokal;
+
+import id.lokal.time.TimeGrpc;
+import id.lokal.time.TimeOuterClass;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.google.protobuf.ByteString;
+import io.grpc.Drainable;
+import io.grpc.KnownLength;
+import io.grpc.MethodDescriptor;
+
+/**
+ * Pre-serialized requests to the Time service, built once and reused by every
+ * op, so that the load generator is not the one allocating per request.
+ *
+ * Without any sizes, the request is the empty LocalTime request. With request
+ * or response sizes, there is a Payload request for each combination of them,
+ * and each op picks one at random, e.g. sizes of 1024,1024,1024,65536 send
+ * 1 KB 3 times as often as 64 KB.
+ *
+ * Responses are not parsed, only counted in bytes, for the MB/s.
+ */
+class Payloads {
+    final MethodDescriptor<byte[], Integer> method;
+
+    private final byte[][] requests;
+    private final List<Integer> responseSizes;
+
+    private Payloads(MethodDescriptor<?, ?> method, List<byte[]> requests, List<Integer> responseSizes) {
+        this.method = counted(method);
+        this.requests = requests.toArray(new byte[0][]);
+        this.responseSizes = responseSizes;
+    }
+
+    /**
+     * The given method, but sending pre-serialized requests, and counting the
+     * bytes of the responses instead of parsing them.
+     */
+    static MethodDescriptor<byte[], Integer> counted(MethodDescriptor<?, ?> method) {
+        return method.toBuilder(new RequestMarshaller(), new ResponseMarshaller()).build();
+    }
+
+    static Payloads localTime() {
+        final List<byte[]> requests = new ArrayList<byte[]>();
+        requests.add(TimeOuterClass.LocalTimeRequest.getDefaultInstance().toByteArray());
+        return new Payloads(TimeGrpc.getLocalTimeMethod(), requests, List.of(0));
+    }
+
+    static Payloads of(List<Integer> requestSizes, List<Integer> responseSizes) {
+        // Random rather than zeroed bytes, in case anything on the path
+        // compresses
+        final SplittableRandom random = new SplittableRandom();
+        final List<byte[]> requests = new ArrayList<byte[]>();
+
+        for (int requestSize : requestSizes) {
+            final byte[] payload = new byte[requestSize];
+            random.nextBytes(payload);
+
+            for (int responseSize : responseSizes) {
+                requests.add(TimeOuterClass.PayloadRequest.newBuilder()
+                        .setPayload(ByteString.copyFrom(payload))
+                        .setResponseSize(responseSize)
+                        .build()
+                        .toByteArray());
+            }
+        }
+
+        return new Payloads(TimeGrpc.getPayloadMethod(), requests, responseSizes);
+    }
+
+    /**
+     * Parses comma-separated sizes in bytes, e.g. 1024,65536.
+     */
+    static List<Integer> parseSizes(String sizes) {
+        final List<Integer> parsed = new ArrayList<Integer>();
+        for (String size : sizes.split(",")) {
+            final int value = Integer.parseInt(size.trim());
+            if (value < 0) {
+                throw new NumberFormatException("negative size: " + value);
+            }
+            parsed.add(value);
+        }
+        return parsed;
+    }
+
+    byte[] next() {
+        return requests.length == 1 ? requests[0] : requests[ThreadLocalRandom.current().nextInt(requests.length)];
+    }
+
+    int nextResponseSize() {
+        return responseSizes.get(ThreadLocalRandom.current().nextInt(responseSizes.size()));
+    }
+
+    int maxResponseSize() {
+        return Collections.max(responseSizes);
+    }
+
+    private static final class RequestMarshaller implements MethodDescriptor.Marshaller<byte[]> {
+        public InputStream stream(byte[] value) {
+            return new RequestStream(value);
+        }
+
+        public byte[] parse(InputStream stream) {
+            throw new UnsupportedOperationException("requests are only sent");
+        }
+    }
+
+    private static final class ResponseMarshaller implements MethodDescriptor.Marshaller<Integer> {
+        public InputStream stream(Integer value) {
+            throw new UnsupportedOperationException("responses are only received");
+        }
+
+        public Integer parse(InputStream stream) {
+            // Skip rather than read, which spares copying out of the
+            // transport buffers
+            int size = 0;
+            try {
+                while (true) {
+                    final long skipped = stream.skip(Integer.MAX_VALUE);
+                    if (skipped > 0) {
+                        size = Math.toIntExact(size + skipped);
+                    }
+                    else if (stream.read() != -1) {
+                        size++;
+                    }
+                    else {
+                        break;
+                    }
+                }
+            }
+            catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            return size;
+        }
+    }
+
+    /**
+     * Lets gRPC copy the shared request bytes straight into its framer,
+     * instead of buffering them through a stream first.
+     */
+    private static final class RequestStream extends ByteArrayInputStream implements KnownLength, Drainable {
+        RequestStream(byte[] request) {
+            super(request);
+        }
+
+        public int drainTo(OutputStream target) throws IOException {
+            final int length = count - pos;
+            target.write(buf, pos, length);
+            pos = count;
+            return length;
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package id.lokal;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.Logger;
+import org.eclipse.jetty.client.api.Request;
+import org.eclipse.jetty.client.api.Response;
+import org.eclipse.jetty.client.api.Result;
+import org.eclipse.jetty.io.Connection;
+
+/**
+ * Breaks the service time of each successful HTTP op down by the events of
+ * Jetty's request and response listeners, i.e.
+ * - queued: From when the request is queued in the destination until it
+ *   begins on a connection, i.e. waiting for the pool, including connecting
+ *   when the pool opens a new connection for it.
+ * - sent: From then until the request headers are committed to the
+ *   connection.
+ * - first byte: From then until the response headers are in, i.e. the
+ *   network, the proxies and the app, up to the response headers.
+ * - content: From then until the response is complete, i.e. the transfer of
+ *   the body.
+ *
+ * The connections opened and closed are counted alongside, so that a
+ * queued time that is spent connecting can be told apart from one that is
+ * spent waiting for a busy pool.
+ */
+class RequestBreakdown implements Connection.Listener {
+    private final Recorder queuedRecorder = new Recorder(2);
+    private final Recorder sentRecorder = new Recorder(2);
+    private final Recorder firstByteRecorder = new Recorder(2);
+    private final Recorder contentRecorder = new Recorder(2);
+    private final AtomicInteger opened = new AtomicInteger();
+    private final AtomicInteger closed = new AtomicInteger();
+
+    private Histogram queuedSnapshot = null;
+    private Histogram sentSnapshot = null;
+    private Histogram firstByteSnapshot = null;
+    private Histogram contentSnapshot = null;
+
+    // Only touched by the stat thread
+    private final Histogram queued = new Histogram(2);
+    private final Histogram sent = new Histogram(2);
+    private final Histogram firstByte = new Histogram(2);
+    private final Histogram content = new Histogram(2);
+    private int openedOps = 0;
+    private int closedOps = 0;
+    private int totalOpened = 0;
+    private int totalClosed = 0;
+
+    /**
+     * The timestamps of one request, recorded once it completes.
+     */
+    private class Timings implements Request.Listener, Response.HeadersListener, Response.CompleteListener {
+        private long queuedAt;
+        private long beganAt;
+        private long committedAt;
+        private long headersAt;
+
+        @Override
+        public void onQueued(Request request) {
+            queuedAt = System.nanoTime();
+        }
+
+        @Override
+        public void onBegin(Request request) {
+            beganAt = System.nanoTime();
+        }
+
+        @Override
+        public void onCommit(Request request) {
+            committedAt = System.nanoTime();
+        }
+
+        @Override
+        public void onHeaders(Response response) {
+            headersAt = System.nanoTime();
+        }
+
+        @Override
+        public void onComplete(Result result) {
+            final long completedAt = System.nanoTime();
+            if (result.isFailed() || headersAt == 0) {
+                return;
+            }
+            queuedRecorder.recordValue(Math.max(0, beganAt - queuedAt));
+            sentRecorder.recordValue(Math.max(0, committedAt - beganAt));
+            firstByteRecorder.recordValue(Math.max(0, headersAt - committedAt));
+            contentRecorder.recordValue(Math.max(0, completedAt - headersAt));
+        }
+    }
+
+    /**
+     * Adds the listeners to a request, before it is sent.
+     */
+    void instrument(Request request) {
+        final Timings timings = new Timings();
+        request.listener(timings).onResponseHeaders(timings).onComplete(timings);
+    }
+
+    @Override
+    public void onOpened(Connection connection) {
+        opened.incrementAndGet();
+    }
+
+    @Override
+    public void onClosed(Connection connection) {
+        closed.incrementAndGet();
+    }
+
+    /**
+     * Takes the interval histograms, and adds them to the overall ones if
+     * the interval counts, e.g. not in a scenario phase that does not.
+     */
+    void recordMetrics(boolean counts) {
+        queuedSnapshot = queuedRecorder.getIntervalHistogram(queuedSnapshot);
+        sentSnapshot = sentRecorder.getIntervalHistogram(sentSnapshot);
+        firstByteSnapshot = firstByteRecorder.getIntervalHistogram(firstByteSnapshot);
+        contentSnapshot = contentRecorder.getIntervalHistogram(contentSnapshot);
+        openedOps = opened.getAndSet(0);
+        closedOps = closed.getAndSet(0);
+        if (!counts) {
+            return;
+        }
+
+        queued.add(queuedSnapshot);
+        sent.add(sentSnapshot);
+        firstByte.add(firstByteSnapshot);
+        content.add(contentSnapshot);
+        totalOpened += openedOps;
+        totalClosed += closedOps;
+    }
+
+    void logInterval(Logger logger) {
+        log(logger, "(interval queued in ms)", queuedSnapshot);
+        log(logger, "(interval sent in ms)", sentSnapshot);
+        log(logger, "(interval first byte in ms)", firstByteSnapshot);
+        log(logger, "(interval content in ms)", contentSnapshot);
+        logger.printf(
+                Level.INFO,
+                "%30s opened: %5d, closed: %5d",
+                "(interval connections)",
+                openedOps,
+                closedOps);
+    }
+
+    void logOverall(Logger logger) {
+        log(logger, "(overall queued in ms)", queued);
+        log(logger, "(overall sent in ms)", sent);
+        log(logger, "(overall first byte in ms)", firstByte);
+        log(logger, "(overall content in ms)", content);
+        logger.printf(
+                Level.INFO,
+                "%30s opened: %5d, closed: %5d",
+                "(overall connections)",
+                totalOpened,
+                totalClosed);
+    }
+
+    private static void log(Logger logger, String prefix, Histogram histogram) {
+        logger.printf(
+                Level.INFO,
+                "%30s count: %5d, mean: %8.2f, p50: %8.2f, p99: %8.2f, max: %8.2f",
+                prefix,
+                histogram.getTotalCount(),
+                histogram.getMean() / 1_000_000.0,
+                histogram.getValueAtPercentile(50) / 1_000_000.0,
+                histogram.getValueAtPercentile(99) / 1_000_000.0,
+                histogram.getMaxValue() / 1_000_000.0);
+    }
+
+    void reset() {
+        queued.reset();
+        sent.reset();
+        firstByte.reset();
+        content.reset();
+        totalOpened = 0;
+        totalClosed = 0;
+    }
+}
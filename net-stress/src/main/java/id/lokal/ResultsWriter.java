@@ -0,0 +1,105 @@
+package id.lokal;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.PrintStream;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.HistogramLogWriter;
+
+/**
+ * Writes the interval histograms of a run to disk, for re-analysis after the
+ * fact, i.e.
+ * - service-times.hlog, response-times.hlog: HdrHistogram interval logs, in
+ *   ms, e.g. for HistogramLogProcessor or HdrHistogramVisualizer
+ * - intervals.csv: throughput, failures, percentiles in ms and the generator
+ *   health verdict per interval
+ *
+ * This is only called from the stat thread, once per interval, so it stays
+ * off the hot path.
+ */
+class ResultsWriter {
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9, 99.99};
+
+    private final PrintStream serviceTimesFile;
+    private final PrintStream responseTimesFile;
+    private final HistogramLogWriter serviceTimesLog;
+    private final HistogramLogWriter responseTimesLog;
+    private final PrintStream intervalsCsv;
+
+    private final long startTime;
+    private long lastIntervalAt;
+
+    ResultsWriter(final String dir) throws FileNotFoundException {
+        new File(dir).mkdirs();
+
+        startTime = System.currentTimeMillis();
+        lastIntervalAt = startTime;
+
+        serviceTimesFile = new PrintStream(new File(dir, "service-times.hlog"));
+        responseTimesFile = new PrintStream(new File(dir, "response-times.hlog"));
+        serviceTimesLog = newLog(serviceTimesFile);
+        responseTimesLog = newLog(responseTimesFile);
+
+        intervalsCsv = new PrintStream(new File(dir, "intervals.csv"));
+        StringBuilder header = new StringBuilder("timestamp,phase,count,throughput,failed,rejected");
+        for (String histogram : new String[] {"service", "response"}) {
+            for (double percentile : PERCENTILES) {
+                header.append(',').append(histogram).append("_p").append(percentileLabel(percentile));
+            }
+            header.append(',').append(histogram).append("_max");
+        }
+        header.append(",verdict");
+        intervalsCsv.println(header);
+    }
+
+    private HistogramLogWriter newLog(PrintStream file) {
+        HistogramLogWriter log = new HistogramLogWriter(file);
+        log.outputLogFormatVersion();
+        log.outputStartTime(startTime);
+        log.setBaseTime(startTime);
+        log.outputLegend();
+        return log;
+    }
+
+    private static String percentileLabel(double percentile) {
+        return percentile == Math.rint(percentile) ? String.valueOf((long) percentile) : String.valueOf(percentile);
+    }
+
+    synchronized void writeInterval(String phase, Histogram serviceTimes, Histogram responseTimes,
+                                    int failed, int rejected, String verdict) {
+        final long now = System.currentTimeMillis();
+        final double start = (lastIntervalAt - startTime) / 1000.0;
+        final double end = (now - startTime) / 1000.0;
+        lastIntervalAt = now;
+
+        serviceTimesLog.outputIntervalHistogram(start, end, serviceTimes, 1_000_000.0);
+        responseTimesLog.outputIntervalHistogram(start, end, responseTimes, 1_000_000.0);
+
+        StringBuilder row = new StringBuilder();
+        row.append(now).append(',')
+           .append(phase).append(',')
+           .append(responseTimes.getTotalCount()).append(',')
+           .append(String.format("%.2f", responseTimes.getTotalCount() / Math.max(end - start, 0.001))).append(',')
+           .append(failed).append(',')
+           .append(rejected);
+        for (Histogram histogram : new Histogram[] {serviceTimes, responseTimes}) {
+            for (double percentile : PERCENTILES) {
+                row.append(',').append(String.format("%.3f", histogram.getValueAtPercentile(percentile) / 1_000_000.0));
+            }
+            row.append(',').append(String.format("%.3f", histogram.getMaxValue() / 1_000_000.0));
+        }
+        row.append(',').append(verdict);
+        intervalsCsv.println(row);
+
+        serviceTimesFile.flush();
+        responseTimesFile.flush();
+        intervalsCsv.flush();
+    }
+
+    synchronized void close() {
+        serviceTimesFile.close();
+        responseTimesFile.close();
+        intervalsCsv.close();
+    }
+}
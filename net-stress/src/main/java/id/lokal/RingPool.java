@@ -0,0 +1,217 @@
+package id.lokal;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * A fixed pool of worker threads, fed through a bounded lock-free ring of op
+ * creation times instead of the unbounded queue of a ThreadPoolExecutor.
+ *
+ * Handing an op over allocates nothing: no task, no FutureTask and no queue
+ * node. The ring only holds the creation time, and each worker runs the same
+ * Op for every creation time it takes. A full ring is not waited on, since
+ * that would hide the backlog, but reported to the dispatcher, which counts
+ * the op as rejected.
+ *
+ * Idle workers park, and an offer unparks one of them, if any.
+ *
+ * An op that throws is handed to the failure callback, so that it is still
+ * counted, rather than lost like in an executor's Future that nobody gets.
+ */
+class RingPool {
+    interface Op {
+        void run(long createdAt);
+    }
+
+    /**
+     * A bounded multi-producer multi-consumer ring of longs, after Dmitry
+     * Vyukov's, where each slot has a sequence number that tells whether it
+     * is free to offer to or ready to poll from.
+     */
+    static final class LongRing {
+        static final long EMPTY = Long.MIN_VALUE;
+
+        private final long[] values;
+        private final AtomicLongArray sequences;
+        private final int mask;
+        private final AtomicLong tail = new AtomicLong();
+        private final AtomicLong head = new AtomicLong();
+
+        /**
+         * A ring of at least the given capacity, rounded up to a power of 2.
+         */
+        LongRing(int capacity) {
+            final int size = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1);
+            values = new long[size];
+            sequences = new AtomicLongArray(size);
+            for (int i = 0; i < size; i++) {
+                sequences.set(i, i);
+            }
+            mask = size - 1;
+        }
+
+        int capacity() {
+            return values.length;
+        }
+
+        /**
+         * Adds a value, or returns false if the ring is full.
+         */
+        boolean offer(long value) {
+            long position = tail.get();
+            while (true) {
+                final int index = (int) (position & mask);
+                final long difference = sequences.get(index) - position;
+                if (difference == 0) {
+                    if (tail.compareAndSet(position, position + 1)) {
+                        values[index] = value;
+                        sequences.set(index, position + 1);
+                        return true;
+                    }
+                    position = tail.get();
+                }
+                else if (difference < 0) {
+                    return false;
+                }
+                else {
+                    position = tail.get();
+                }
+            }
+        }
+
+        /**
+         * Takes the oldest value, or returns EMPTY if there is none.
+         */
+        long poll() {
+            long position = head.get();
+            while (true) {
+                final int index = (int) (position & mask);
+                final long difference = sequences.get(index) - (position + 1);
+                if (difference == 0) {
+                    if (head.compareAndSet(position, position + 1)) {
+                        final long value = values[index];
+                        sequences.set(index, position + mask + 1);
+                        return value;
+                    }
+                    position = head.get();
+                }
+                else if (difference < 0) {
+                    return EMPTY;
+                }
+                else {
+                    position = head.get();
+                }
+            }
+        }
+
+        int size() {
+            return (int) Math.max(0, tail.get() - head.get());
+        }
+    }
+
+    private final LongRing ops;
+    // Ids of the parked workers, each at most once, as flagged in parked
+    private final LongRing idle;
+    private final AtomicIntegerArray parked;
+    private final Thread[] workers;
+    private final Op op;
+    private final Consumer<RuntimeException> onFailure;
+    private final AtomicInteger active = new AtomicInteger();
+    private volatile boolean shutdown = false;
+
+    RingPool(String name, int threads, int capacity, Op op, Consumer<RuntimeException> onFailure) {
+        this.ops = new LongRing(capacity);
+        this.idle = new LongRing(threads);
+        this.parked = new AtomicIntegerArray(threads);
+        this.workers = new Thread[threads];
+        this.op = op;
+        this.onFailure = onFailure;
+
+        for (int i = 0; i < threads; i++) {
+            final int id = i;
+            workers[i] = new Thread(() -> work(id), name + "-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * Hands an op over to the workers, or returns false if the ring is full.
+     */
+    boolean offer(long createdAt) {
+        if (!ops.offer(createdAt)) {
+            return false;
+        }
+
+        final long id = idle.poll();
+        if (id != LongRing.EMPTY) {
+            parked.set((int) id, 0);
+            LockSupport.unpark(workers[(int) id]);
+        }
+        return true;
+    }
+
+    private void work(int id) {
+        while (!shutdown) {
+            final long createdAt = ops.poll();
+            if (createdAt != LongRing.EMPTY) {
+                active.incrementAndGet();
+                try {
+                    op.run(createdAt);
+                }
+                catch (RuntimeException ex) {
+                    onFailure.accept(ex);
+                }
+                finally {
+                    active.decrementAndGet();
+                }
+            }
+            else if (parked.compareAndSet(id, 0, 1)) {
+                // Poll once more before parking, in case an op came in before
+                // the id was in, since its offer found no one to unpark
+                idle.offer(id);
+            }
+            else {
+                // An offer after the last poll unparks this worker before it
+                // parks, and it returns right away
+                LockSupport.park(this);
+            }
+        }
+    }
+
+    /**
+     * The ops waiting in the ring.
+     */
+    int queued() {
+        return ops.size();
+    }
+
+    /**
+     * The ops being run.
+     */
+    int active() {
+        return active.get();
+    }
+
+    int threads() {
+        return workers.length;
+    }
+
+    int capacity() {
+        return ops.capacity();
+    }
+
+    /**
+     * Stops the workers, once they are done with the ops they are running.
+     */
+    void shutdown() {
+        shutdown = true;
+        for (Thread worker : workers) {
+            LockSupport.unpark(worker);
+        }
+    }
+}
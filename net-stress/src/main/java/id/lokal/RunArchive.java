@@ -0,0 +1,207 @@
+package id.lokal;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.DataFormatException;
+
+import org.HdrHistogram.Histogram;
+import org.yaml.snakeyaml.DumperOptions;
+import org.yaml.snakeyaml.LoaderOptions;
+import org.yaml.snakeyaml.Yaml;
+import org.yaml.snakeyaml.constructor.SafeConstructor;
+
+/**
+ * Saves a compact record of each run to a file of its own, so that repeated
+ * runs can be compared after the fact, see Compare. A record has
+ * - labels: Free-form key=value pairs to group runs by, e.g. the machine
+ *   type and Envoy concurrency, which the load generator cannot tell.
+ * - config: The command line arguments.
+ * - environment: JVM, OS, arch, cores and GCs of the load generator host.
+ * - result: The achieved (or max sustainable) RPS, failures, the generator
+ *   health verdict, and the merged service and response time histograms, in
+ *   the compressed base64 form of the HdrHistogram interval logs.
+ * - intervals: Per interval, the phase, count, failures, rejections, p50,
+ *   p99 and max response time in ms, and the verdict.
+ *
+ * Records are YAML, named after the start time and the labels.
+ */
+class RunArchive {
+    private static final DateTimeFormatter FILE_TIME =
+            DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss").withZone(ZoneOffset.UTC);
+
+    private final File file;
+    private final Map<String, Object> record = new LinkedHashMap<String, Object>();
+    private final long startTime = System.currentTimeMillis();
+    // Appended to by the stat thread, and written out by the shutdown hook
+    private final List<List<Object>> intervals = new ArrayList<List<Object>>();
+
+    RunArchive(String dir, String tool, Map<String, String> labels, Map<String, Object> config) throws IOException {
+        new File(dir).mkdirs();
+
+        final StringBuilder name = new StringBuilder(FILE_TIME.format(Instant.ofEpochMilli(startTime)));
+        for (String value : labels.values()) {
+            name.append('-').append(value.replaceAll("[^A-Za-z0-9_.]", "_"));
+        }
+        file = new File(dir, name.append(".yaml").toString());
+
+        // Only the arguments that were given or have a default, as plain
+        // scalars
+        final Map<String, Object> args = new TreeMap<String, Object>();
+        for (Map.Entry<String, Object> entry : config.entrySet()) {
+            final Object value = entry.getValue();
+            if (value != null) {
+                args.put(entry.getKey(), value instanceof Number || value instanceof Boolean ? value : value.toString());
+            }
+        }
+
+        record.put("tool", tool);
+        record.put("started", Instant.ofEpochMilli(startTime).toString());
+        record.put("labels", new LinkedHashMap<String, String>(labels));
+        record.put("config", args);
+        record.put("environment", environment());
+    }
+
+    private static Map<String, Object> environment() {
+        final Map<String, Object> environment = new LinkedHashMap<String, Object>();
+        environment.put("java_version", System.getProperty("java.version"));
+        environment.put("java_vm", System.getProperty("java.vm.name"));
+        environment.put("os", System.getProperty("os.name") + " " + System.getProperty("os.version"));
+        environment.put("arch", System.getProperty("os.arch"));
+        environment.put("cores", Runtime.getRuntime().availableProcessors());
+        environment.put("max_heap_mb", Runtime.getRuntime().maxMemory() / 1024 / 1024);
+        final List<String> gcs = new ArrayList<String>();
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            gcs.add(gc.getName());
+        }
+        environment.put("gc", gcs);
+        try {
+            environment.put("host", InetAddress.getLocalHost().getHostName());
+        }
+        catch (IOException ex) {
+            environment.put("host", "unknown");
+        }
+        return environment;
+    }
+
+    /**
+     * Parses labels of the form key=value,key=value.
+     */
+    static Map<String, String> parseLabels(String labels) {
+        final Map<String, String> parsed = new LinkedHashMap<String, String>();
+        if (labels == null) {
+            return parsed;
+        }
+        for (String label : labels.split(",")) {
+            final int equals = label.indexOf('=');
+            if (equals <= 0) {
+                throw new IllegalArgumentException("invalid label: " + label);
+            }
+            parsed.put(label.substring(0, equals).trim(), label.substring(equals + 1).trim());
+        }
+        return parsed;
+    }
+
+    void recordInterval(String phase, Histogram responseTimes, int failed, int rejected, String verdict) {
+        final List<Object> interval = new ArrayList<Object>();
+        interval.add(Math.round((System.currentTimeMillis() - startTime) / 100.0) / 10.0);
+        interval.add(phase);
+        interval.add(responseTimes.getTotalCount());
+        interval.add(failed);
+        interval.add(rejected);
+        interval.add(millis(responseTimes.getValueAtPercentile(50)));
+        interval.add(millis(responseTimes.getValueAtPercentile(99)));
+        interval.add(millis(responseTimes.getMaxValue()));
+        interval.add(verdict);
+        synchronized (intervals) {
+            intervals.add(interval);
+        }
+    }
+
+    private static double millis(long nanos) {
+        return Math.round(nanos / 1_000.0) / 1_000.0;
+    }
+
+    /**
+     * Writes the record, with the result of the run. The histograms may be
+     * null, e.g. for a search, whose levels each have their own.
+     */
+    void write(String kind, double duration, double rps, long failed, long rejected, String verdict,
+               Histogram serviceTimes, Histogram responseTimes) throws IOException {
+        final Map<String, Object> result = new LinkedHashMap<String, Object>();
+        result.put("kind", kind);
+        result.put("duration_s", Math.round(duration * 10) / 10.0);
+        result.put("rps", Math.round(rps * 100) / 100.0);
+        result.put("failed", failed);
+        result.put("rejected", rejected);
+        result.put("verdict", verdict);
+        if (responseTimes != null) {
+            result.put("response_p50_ms", millis(responseTimes.getValueAtPercentile(50)));
+            result.put("response_p99_ms", millis(responseTimes.getValueAtPercentile(99)));
+            result.put("response_p999_ms", millis(responseTimes.getValueAtPercentile(99.9)));
+            result.put("service_times", encode(serviceTimes));
+            result.put("response_times", encode(responseTimes));
+        }
+        record.put("result", result);
+        synchronized (intervals) {
+            record.put("intervals", intervals);
+
+            final DumperOptions options = new DumperOptions();
+            // Nested blocks for the maps, but one line per interval
+            options.setDefaultFlowStyle(DumperOptions.FlowStyle.AUTO);
+            options.setWidth(Integer.MAX_VALUE);
+            try (Writer writer = new FileWriter(file)) {
+                new Yaml(options).dump(record, writer);
+            }
+        }
+    }
+
+    File file() {
+        return file;
+    }
+
+    private static String encode(Histogram histogram) {
+        final ByteBuffer buffer = ByteBuffer.allocate(histogram.getNeededByteBufferCapacity());
+        final int length = histogram.encodeIntoCompressedByteBuffer(buffer);
+        return Base64.getEncoder().encodeToString(Arrays.copyOf(buffer.array(), length));
+    }
+
+    static Histogram decode(String encoded) {
+        try {
+            return Histogram.decodeFromCompressedByteBuffer(ByteBuffer.wrap(Base64.getDecoder().decode(encoded)), 0);
+        }
+        catch (DataFormatException ex) {
+            throw new IllegalArgumentException("invalid histogram: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Reads a record back, as nested maps and lists.
+     */
+    static Map<?, ?> read(File file) throws IOException {
+        try (Reader reader = new FileReader(file)) {
+            final Object record = new Yaml(new SafeConstructor(new LoaderOptions())).load(reader);
+            if (!(record instanceof Map) || !(((Map<?, ?>) record).get("result") instanceof Map)) {
+                throw new IllegalArgumentException(file + " is not a run record");
+            }
+            return (Map<?, ?>) record;
+        }
+    }
+}
@@ -0,0 +1,378 @@
+package id.lokal;
+
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.HdrHistogram.Histogram;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.Logger;
+import org.yaml.snakeyaml.LoaderOptions;
+import org.yaml.snakeyaml.Yaml;
+import org.yaml.snakeyaml.constructor.SafeConstructor;
+import org.yaml.snakeyaml.error.YAMLException;
+
+/**
+ * A sequence of load phases, read from a YAML (or JSON) file, e.g.
+ *
+ * <pre>
+ * mode: poisson
+ * phases:
+ *   - {type: ramp, from: 0, to: 2000, duration: 30, counts: false}
+ *   - {type: hold, rps: 2000, duration: 60}
+ *   - {name: morning, type: spike, rps: 2000, peak: 8000, at: 10, length: 5, duration: 30}
+ *   - {type: sine, rps: 2000, amplitude: 1000, period: 60, duration: 120}
+ * </pre>
+ *
+ * Each phase sets the RPS of every second of its duration, i.e.
+ * - hold: rps throughout.
+ * - ramp: Linearly from `from` to `to`.
+ * - step: From `from` to `to` in `steps` equal stairs.
+ * - spike: rps, except for peak from second `at` for `length` seconds.
+ * - sine: rps plus a sine wave of amplitude and period (in seconds).
+ * - pause: No ops at all.
+ *
+ * Each phase has its own arrival mode (the top-level mode or the one from
+ * the command line if omitted), and may be left out of the overall results
+ * with counts: false, e.g. a ramp up to warm up with.
+ *
+ * The phases run back to back, a second at a time, same as the warm-up. The
+ * stat thread adds each interval to the phase that its midpoint falls in, so
+ * an op is counted towards the phase it completed in.
+ */
+class Scenario {
+    interface Offer {
+        void offer(String mode, int rps, long startTime, int duration);
+    }
+
+    static class Phase {
+        final String name;
+        final String type;
+        final String mode;
+        final int duration;
+        final boolean counts;
+
+        private final double rps;
+        private final double from;
+        private final double to;
+        private final int steps;
+        private final double peak;
+        private final int at;
+        private final int length;
+        private final double amplitude;
+        private final double period;
+
+        // Only touched by the stat thread
+        final Histogram serviceTimes = new Histogram(2);
+        final Histogram responseTimes = new Histogram(2);
+        long failed = 0;
+        long rejected = 0;
+
+        private Phase(String name, String mode, Map<?, ?> spec) {
+            this.name = name;
+            this.type = string(spec, "type", null);
+            this.mode = string(spec, "mode", mode);
+            this.duration = (int) number(spec, "duration", -1);
+            this.counts = !Boolean.FALSE.equals(spec.get("counts"));
+
+            if (type == null) {
+                throw new IllegalArgumentException("phase " + name + " has no type");
+            }
+            if (duration <= 0) {
+                throw new IllegalArgumentException("phase " + name + " needs a positive duration");
+            }
+            if (!List.of("brutal", "burst", "uniform", "poisson").contains(this.mode)) {
+                throw new IllegalArgumentException("phase " + name + " has an unknown mode: " + this.mode);
+            }
+
+            switch (type) {
+                case "hold":
+                    rps = number(spec, "rps", -1);
+                    from = to = peak = amplitude = period = 0;
+                    steps = at = length = 0;
+                    break;
+                case "ramp":
+                case "step":
+                    from = number(spec, "from", 0);
+                    to = number(spec, "to", -1);
+                    steps = type.equals("step") ? (int) number(spec, "steps", -1) : 0;
+                    rps = peak = amplitude = period = 0;
+                    at = length = 0;
+                    if (type.equals("step") && (steps < 2 || steps > duration)) {
+                        throw new IllegalArgumentException("phase " + name + " needs 2 to duration steps");
+                    }
+                    break;
+                case "spike":
+                    rps = number(spec, "rps", -1);
+                    peak = number(spec, "peak", -1);
+                    at = (int) number(spec, "at", 0);
+                    length = (int) number(spec, "length", -1);
+                    from = to = amplitude = period = 0;
+                    steps = 0;
+                    if (at + length > duration) {
+                        throw new IllegalArgumentException("phase " + name + " spikes past its duration");
+                    }
+                    break;
+                case "sine":
+                    rps = number(spec, "rps", -1);
+                    amplitude = number(spec, "amplitude", -1);
+                    period = number(spec, "period", -1);
+                    from = to = peak = 0;
+                    steps = at = length = 0;
+                    if (period == 0) {
+                        throw new IllegalArgumentException("phase " + name + " needs a positive period");
+                    }
+                    break;
+                case "pause":
+                    rps = from = to = peak = amplitude = period = 0;
+                    steps = at = length = 0;
+                    break;
+                default:
+                    throw new IllegalArgumentException("phase " + name + " has an unknown type: " + type);
+            }
+        }
+
+        private static String string(Map<?, ?> spec, String key, String defaultValue) {
+            final Object value = spec.get(key);
+            return value == null ? defaultValue : value.toString();
+        }
+
+        /**
+         * The value of a non-negative number, or the default if omitted. A
+         * negative default makes it required.
+         */
+        private double number(Map<?, ?> spec, String key, double defaultValue) {
+            final Object value = spec.get(key);
+            if (value == null && defaultValue >= 0) {
+                return defaultValue;
+            }
+            if (!(value instanceof Number) || ((Number) value).doubleValue() < 0) {
+                throw new IllegalArgumentException(
+                        "phase " + name + " needs " + key + " to be a non-negative number");
+            }
+            return ((Number) value).doubleValue();
+        }
+
+        /**
+         * The RPS of the given second of the phase, from 0.
+         */
+        int rpsAt(int second) {
+            switch (type) {
+                case "ramp":
+                    // Ends at the target, same as the warm-up
+                    return (int) Math.round(from + (to - from) * (second + 1) / duration);
+                case "step":
+                    return (int) Math.round(from + (to - from) * (second * steps / duration) / (steps - 1));
+                case "spike":
+                    return (int) Math.round(second >= at && second < at + length ? peak : rps);
+                case "sine":
+                    // Sampled mid-second, so that a whole period averages out
+                    // to rps
+                    return (int) Math.max(0, Math.round(rps + amplitude * Math.sin(2 * Math.PI * (second + 0.5) / period)));
+                case "pause":
+                    return 0;
+                default:
+                    return (int) Math.round(rps);
+            }
+        }
+
+        long ops() {
+            long ops = 0;
+            for (int i = 0; i < duration; i++) {
+                ops += rpsAt(i);
+            }
+            return ops;
+        }
+
+        private void log(Logger logger) {
+            logger.printf(
+                    Level.INFO,
+                    "%30s %-6s %s, offered: %9.2f, achieved: %9.2f, p50: %8.2f, p99: %8.2f, p99.9: %8.2f, max: %8.2f, failed: %6d, rejected: %6d",
+                    "(phase " + name + " in ms)",
+                    type,
+                    counts ? "counted " : "excluded",
+                    (double) ops() / duration,
+                    (double) responseTimes.getTotalCount() / duration,
+                    responseTimes.getValueAtPercentile(50) / 1_000_000.0,
+                    responseTimes.getValueAtPercentile(99) / 1_000_000.0,
+                    responseTimes.getValueAtPercentile(99.9) / 1_000_000.0,
+                    responseTimes.getMaxValue() / 1_000_000.0,
+                    failed,
+                    rejected);
+        }
+    }
+
+    final List<Phase> phases;
+    // When the first phase starts, or 0 until then
+    private volatile long startTime = 0;
+    private final AtomicLong completed = new AtomicLong();
+
+    private Scenario(List<Phase> phases) {
+        this.phases = Collections.unmodifiableList(phases);
+    }
+
+    /**
+     * Reads a scenario, either a map with the phases (and optionally a mode)
+     * or just the list of phases. Any phase without a mode takes the given
+     * one.
+     */
+    static Scenario load(String path, String mode) throws IOException {
+        final Object root;
+        try (Reader reader = new FileReader(path)) {
+            root = new Yaml(new SafeConstructor(new LoaderOptions())).load(reader);
+        }
+        catch (YAMLException ex) {
+            throw new IllegalArgumentException("invalid scenario: " + ex.getMessage());
+        }
+
+        Object specs = root;
+        if (root instanceof Map) {
+            final Map<?, ?> map = (Map<?, ?>) root;
+            if (map.get("mode") != null) {
+                mode = map.get("mode").toString();
+            }
+            specs = map.get("phases");
+        }
+        if (!(specs instanceof List) || ((List<?>) specs).isEmpty()) {
+            throw new IllegalArgumentException("invalid scenario: no phases");
+        }
+
+        final List<Phase> phases = new ArrayList<Phase>();
+        for (Object spec : (List<?>) specs) {
+            if (!(spec instanceof Map)) {
+                throw new IllegalArgumentException("invalid scenario: phase " + (phases.size() + 1) + " is not a map");
+            }
+            final Object name = ((Map<?, ?>) spec).get("name");
+            phases.add(new Phase(name == null ? String.valueOf(phases.size() + 1) : name.toString(), mode, (Map<?, ?>) spec));
+        }
+        return new Scenario(phases);
+    }
+
+    /**
+     * The total number of ops over all phases.
+     */
+    long ops() {
+        long ops = 0;
+        for (Phase phase : phases) {
+            ops += phase.ops();
+        }
+        return ops;
+    }
+
+    /**
+     * The highest RPS of any second, e.g. to size the worker pool for.
+     */
+    int maxRps() {
+        int max = 0;
+        for (Phase phase : phases) {
+            for (int i = 0; i < phase.duration; i++) {
+                max = Math.max(max, phase.rpsAt(i));
+            }
+        }
+        return max;
+    }
+
+    /**
+     * The total duration of the counted phases, in seconds.
+     */
+    int countedDuration() {
+        int duration = 0;
+        for (Phase phase : phases) {
+            if (phase.counts) {
+                duration += phase.duration;
+            }
+        }
+        return duration;
+    }
+
+    /**
+     * The failed ops of the counted phases.
+     */
+    long countedFailed() {
+        long failed = 0;
+        for (Phase phase : phases) {
+            if (phase.counts) {
+                failed += phase.failed;
+            }
+        }
+        return failed;
+    }
+
+    /**
+     * The number of ops completed, failed or rejected so far, over all phases.
+     */
+    long completed() {
+        return completed.get();
+    }
+
+    /**
+     * The phase of the interval that ends now. The stat thread ticks every
+     * second from about the start of the first phase, so half a second back
+     * is well clear of the phase boundaries.
+     */
+    Phase current() {
+        if (startTime == 0) {
+            return phases.get(0);
+        }
+        long elapsed = (System.nanoTime() - 500_000_000L - startTime) / 1_000_000_000L;
+        for (Phase phase : phases) {
+            if (elapsed < phase.duration) {
+                return phase;
+            }
+            elapsed -= phase.duration;
+        }
+        return phases.get(phases.size() - 1);
+    }
+
+    /**
+     * Offers the phases one after another, and returns at the end of the
+     * last one.
+     */
+    void run(Logger logger, Offer offer) {
+        long startTime = System.nanoTime();
+        this.startTime = startTime;
+        for (Phase phase : phases) {
+            parkUntil(startTime);
+            logger.info("Phase {}: {} for {} seconds{}...",
+                    phase.name, phase.type, phase.duration, phase.counts ? "" : ", not counted");
+
+            for (int i = 0; i < phase.duration; i++) {
+                offer.offer(phase.mode, phase.rpsAt(i), startTime, 1);
+                startTime += 1_000_000_000L;
+            }
+        }
+        parkUntil(startTime);
+    }
+
+    private static void parkUntil(final long deadline) {
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(remaining);
+        }
+    }
+
+    /**
+     * Adds an interval to the phase in progress. Only called from the stat
+     * thread.
+     */
+    void recordInterval(Histogram serviceTimes, Histogram responseTimes, int failed, int rejected) {
+        final Phase phase = current();
+        phase.serviceTimes.add(serviceTimes);
+        phase.responseTimes.add(responseTimes);
+        phase.failed += failed;
+        phase.rejected += rejected;
+        completed.addAndGet(responseTimes.getTotalCount() + failed + rejected);
+    }
+
+    void logOverall(Logger logger) {
+        for (Phase phase : phases) {
+            phase.log(logger);
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package id.lokal;
+
+import io.grpc.CallOptions;
+import io.grpc.Channel;
+import io.grpc.ClientCall;
+import io.grpc.ClientInterceptor;
+import io.grpc.ForwardingClientCall;
+import io.grpc.ForwardingClientCallListener;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.Status;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Splits the client time of each successful op by the timings that come
+ * back in its response headers, i.e.
+ * - upstream time: x-envoy-upstream-service-time, set by the Envoy in front
+ *   of the load generator, i.e. the client sidecar, from when it sent the
+ *   request upstream until the response headers, in whole ms.
+ * - handler time: x-handler-time-us, set by the app (and the calibration
+ *   server), i.e. the time in its handler, in us.
+ * - proxy overhead: The client time minus the upstream time, i.e. what the
+ *   client sidecar adds on top of everything upstream of it. Only good to a
+ *   ms, since the upstream time is.
+ * - outside handler: The client time minus the handler time, i.e. what both
+ *   sidecars, the network and the app's own server add.
+ *
+ * A response without a header is left out of the histograms that need it,
+ * and the header values are parsed by hand, so that a run without them costs
+ * little more than the lookups.
+ */
+class UpstreamTimes {
+    static final String UPSTREAM_TIME = "x-envoy-upstream-service-time";
+    static final String HANDLER_TIME = "x-handler-time-us";
+
+    private static final Metadata.Key<String> UPSTREAM_TIME_KEY =
+            Metadata.Key.of(UPSTREAM_TIME, Metadata.ASCII_STRING_MARSHALLER);
+    private static final Metadata.Key<String> HANDLER_TIME_KEY =
+            Metadata.Key.of(HANDLER_TIME, Metadata.ASCII_STRING_MARSHALLER);
+
+    private final Recorder upstreamTimesRecorder = new Recorder(2);
+    private final Recorder handlerTimesRecorder = new Recorder(2);
+    private final Recorder proxyOverheadsRecorder = new Recorder(2);
+    private final Recorder outsideHandlerRecorder = new Recorder(2);
+
+    private Histogram upstreamTimesSnapshot = null;
+    private Histogram handlerTimesSnapshot = null;
+    private Histogram proxyOverheadsSnapshot = null;
+    private Histogram outsideHandlerSnapshot = null;
+
+    // Only touched by the stat thread
+    private final Histogram upstreamTimes = new Histogram(2);
+    private final Histogram handlerTimes = new Histogram(2);
+    private final Histogram proxyOverheads = new Histogram(2);
+    private final Histogram outsideHandler = new Histogram(2);
+    private boolean warned = false;
+
+    /**
+     * Records the timings of a successful op, from the values of the headers,
+     * either of which may be null.
+     */
+    void record(long clientTime, String upstreamTime, String handlerTime) {
+        final long upstreamMillis = parse(upstreamTime);
+        if (upstreamMillis >= 0) {
+            upstreamTimesRecorder.recordValue(upstreamMillis * 1_000_000);
+            proxyOverheadsRecorder.recordValue(Math.max(0, clientTime - upstreamMillis * 1_000_000));
+        }
+
+        final long handlerMicros = parse(handlerTime);
+        if (handlerMicros >= 0) {
+            handlerTimesRecorder.recordValue(handlerMicros * 1_000);
+            outsideHandlerRecorder.recordValue(Math.max(0, clientTime - handlerMicros * 1_000));
+        }
+    }
+
+    /**
+     * The value of a header of decimal digits, or -1 if missing or malformed.
+     */
+    private static long parse(String value) {
+        if (value == null || value.isEmpty() || value.length() > 18) {
+            return -1;
+        }
+        long parsed = 0;
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            parsed = parsed * 10 + (c - '0');
+        }
+        return parsed;
+    }
+
+    /**
+     * An interceptor that records the timings of each successful unary call,
+     * with the client time from its start until it closes. The headers are
+     * looked for in the response headers and then in the trailers, where a
+     * trailers-only response has them.
+     */
+    ClientInterceptor interceptor() {
+        return new ClientInterceptor() {
+            @Override
+            public <ReqT, RespT> ClientCall<ReqT, RespT> interceptCall(
+                    MethodDescriptor<ReqT, RespT> method, CallOptions callOptions, Channel next) {
+                final ClientCall<ReqT, RespT> call = next.newCall(method, callOptions);
+                if (method.getType() != MethodDescriptor.MethodType.UNARY) {
+                    return call;
+                }
+
+                return new ForwardingClientCall.SimpleForwardingClientCall<ReqT, RespT>(call) {
+                    @Override
+                    public void start(Listener<RespT> listener, Metadata headers) {
+                        final long startedAt = System.nanoTime();
+                        super.start(new ForwardingClientCallListener.SimpleForwardingClientCallListener<RespT>(listener) {
+                            private Metadata responseHeaders = null;
+
+                            @Override
+                            public void onHeaders(Metadata headers) {
+                                responseHeaders = headers;
+                                super.onHeaders(headers);
+                            }
+
+                            @Override
+                            public void onClose(Status status, Metadata trailers) {
+                                if (status.isOk()) {
+                                    record(System.nanoTime() - startedAt,
+                                           header(UPSTREAM_TIME_KEY, trailers),
+                                           header(HANDLER_TIME_KEY, trailers));
+                                }
+                                super.onClose(status, trailers);
+                            }
+
+                            private String header(Metadata.Key<String> key, Metadata trailers) {
+                                final String value = responseHeaders == null ? null : responseHeaders.get(key);
+                                return value != null ? value : trailers.get(key);
+                            }
+                        }, headers);
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Takes the interval histograms, and adds them to the overall ones if
+     * the interval counts, e.g. not in a scenario phase that does not.
+     */
+    void recordMetrics(boolean counts) {
+        upstreamTimesSnapshot = upstreamTimesRecorder.getIntervalHistogram(upstreamTimesSnapshot);
+        handlerTimesSnapshot = handlerTimesRecorder.getIntervalHistogram(handlerTimesSnapshot);
+        proxyOverheadsSnapshot = proxyOverheadsRecorder.getIntervalHistogram(proxyOverheadsSnapshot);
+        outsideHandlerSnapshot = outsideHandlerRecorder.getIntervalHistogram(outsideHandlerSnapshot);
+        if (!counts) {
+            return;
+        }
+
+        upstreamTimes.add(upstreamTimesSnapshot);
+        handlerTimes.add(handlerTimesSnapshot);
+        proxyOverheads.add(proxyOverheadsSnapshot);
+        outsideHandler.add(outsideHandlerSnapshot);
+    }
+
+    /**
+     * Logs the interval just recorded, given the number of successful ops in
+     * it, to warn once if none of them had either header.
+     */
+    void logInterval(Logger logger, long ops) {
+        if (upstreamTimesSnapshot.getTotalCount() == 0 && handlerTimesSnapshot.getTotalCount() == 0) {
+            if (ops > 0 && !warned) {
+                logger.warn("No {} or {} in the responses, no Envoy or app in front?", UPSTREAM_TIME, HANDLER_TIME);
+                warned = true;
+            }
+            return;
+        }
+
+        log(logger, "(interval upstream time in ms)", upstreamTimesSnapshot);
+        log(logger, "(interval proxy overhead in ms)", proxyOverheadsSnapshot);
+        log(logger, "(interval handler time in ms)", handlerTimesSnapshot);
+        log(logger, "(interval outside handler in ms)", outsideHandlerSnapshot);
+    }
+
+    void logOverall(Logger logger) {
+        log(logger, "(overall upstream time in ms)", upstreamTimes);
+        log(logger, "(overall proxy overhead in ms)", proxyOverheads);
+        log(logger, "(overall handler time in ms)", handlerTimes);
+        log(logger, "(overall outside handler in ms)", outsideHandler);
+    }
+
+    private static void log(Logger logger, String prefix, Histogram histogram) {
+        if (histogram.getTotalCount() == 0) {
+            return;
+        }
+        logger.printf(
+                Level.INFO,
+                "%30s count: %5d, mean: %8.2f, p50: %8.2f, p99: %8.2f, max: %8.2f",
+                prefix,
+                histogram.getTotalCount(),
+                histogram.getMean() / 1_000_000.0,
+                histogram.getValueAtPercentile(50) / 1_000_000.0,
+                histogram.getValueAtPercentile(99) / 1_000_000.0,
+                histogram.getMaxValue() / 1_000_000.0);
+    }
+
+    void reset() {
+        upstreamTimes.reset();
+        handlerTimes.reset();
+        proxyOverheads.reset();
+        outsideHandler.reset();
+    }
+}
@@ -0,0 +1,111 @@
+package id.lokal;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jdk.jfr.consumer.RecordingStream;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Carrier thread and pinning statistics for the virtual thread executor.
+ *
+ * Pinning is observed via the jdk.VirtualThreadPinned JFR event, which fires
+ * when a virtual thread blocks while holding a monitor (or inside a native
+ * frame), and so keeps its carrier thread from running other virtual threads.
+ */
+class VirtualThreadStats {
+    private static final String CARRIER_THREAD_CLASS = "jdk.internal.misc.CarrierThread";
+
+    private final AtomicLong pinned = new AtomicLong();
+    private final AtomicLong pinnedNanos = new AtomicLong();
+    private final AtomicLong submitFailed = new AtomicLong();
+
+    private long currentPinned = 0;
+    private long currentPinnedNanos = 0;
+
+    private RecordingStream stream;
+
+    void start() {
+        stream = new RecordingStream();
+        // The default threshold of 20ms would hide the short pinning that
+        // matters at this request rate.
+        stream.enable("jdk.VirtualThreadPinned").withThreshold(Duration.ofMillis(1));
+        stream.enable("jdk.VirtualThreadSubmitFailed");
+        stream.onEvent("jdk.VirtualThreadPinned", event -> {
+            pinned.incrementAndGet();
+            pinnedNanos.addAndGet(event.getDuration().toNanos());
+        });
+        stream.onEvent("jdk.VirtualThreadSubmitFailed", event -> submitFailed.incrementAndGet());
+        stream.startAsync();
+    }
+
+    void close() {
+        if (stream != null) {
+            stream.close();
+        }
+    }
+
+    void reset() {
+        pinned.set(0);
+        pinnedNanos.set(0);
+        submitFailed.set(0);
+        currentPinned = 0;
+        currentPinnedNanos = 0;
+    }
+
+    void logInterval(Logger logger) {
+        int carriers = 0;
+        int busyCarriers = 0;
+        for (Thread thread : allThreads()) {
+            if (thread != null && thread.getClass().getName().equals(CARRIER_THREAD_CLASS)) {
+                carriers++;
+                if (thread.getState() == Thread.State.RUNNABLE) {
+                    busyCarriers++;
+                }
+            }
+        }
+
+        long prevPinned = currentPinned;
+        long prevPinnedNanos = currentPinnedNanos;
+        currentPinned = pinned.get();
+        currentPinnedNanos = pinnedNanos.get();
+
+        logger.printf(
+                Level.INFO,
+                "%30s carriers: %4d, busy: %4d, pinned: %5d, pinned time: %8.2f ms",
+                "(interval virtual threads)",
+                carriers,
+                busyCarriers,
+                currentPinned - prevPinned,
+                (currentPinnedNanos - prevPinnedNanos) / 1_000_000.0);
+    }
+
+    /**
+     * The live platform threads, from the root thread group, which unlike
+     * Thread.getAllStackTraces() neither captures their stacks nor stops
+     * them at a safepoint. The array may have unused slots at the end.
+     */
+    private static Thread[] allThreads() {
+        ThreadGroup root = Thread.currentThread().getThreadGroup();
+        while (root.getParent() != null) {
+            root = root.getParent();
+        }
+        Thread[] threads = new Thread[root.activeCount() * 2];
+        // Threads may start in between, so grow until they all fit
+        while (root.enumerate(threads, true) == threads.length) {
+            threads = new Thread[threads.length * 2];
+        }
+        return threads;
+    }
+
+    void logOverall(Logger logger) {
+        logger.printf(
+                Level.INFO,
+                "%30s pinned: %5d, pinned time: %8.2f ms, submit failed: %5d",
+                "(overall virtual threads)",
+                pinned.get(),
+                pinnedNanos.get() / 1_000_000.0,
+                submitFailed.get());
+    }
+}
@@ -0,0 +1,121 @@
+package id.lokal;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+import org.HdrHistogram.Histogram;
+
+/**
+ * Worker side of the connection to a {@link Coordinator}.
+ *
+ * The worker waits for the coordinator to connect and send its share of the
+ * load, and then streams its interval histograms back every second.
+ */
+class WorkerLink {
+    static final byte INTERVAL = 1;
+    static final byte DONE = 2;
+
+    final String mode;
+    final int burstPeriod;
+    final int rps;
+    final int warmUpDuration;
+    final int stressDuration;
+    final long startAt;
+
+    private final Socket socket;
+    private final DataOutputStream out;
+
+    private ByteBuffer buffer = ByteBuffer.allocate(1024);
+    // When the previous interval ended, so that the coordinator can tell how
+    // long each one actually was
+    private long intervalStart;
+
+    private WorkerLink(Socket socket, DataInputStream in) throws IOException {
+        this.socket = socket;
+        this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+        mode = in.readUTF();
+        burstPeriod = in.readInt();
+        rps = in.readInt();
+        warmUpDuration = in.readInt();
+        stressDuration = in.readInt();
+        startAt = in.readLong();
+    }
+
+    static WorkerLink accept(final int port) throws IOException {
+        try (ServerSocket serverSocket = new ServerSocket(port)) {
+            Socket socket = serverSocket.accept();
+            socket.setTcpNoDelay(true);
+            return new WorkerLink(socket, new DataInputStream(new BufferedInputStream(socket.getInputStream())));
+        }
+    }
+
+    /**
+     * Sleeps until the start time agreed with the other workers. This relies
+     * on the clocks of the hosts being in sync, e.g. via NTP.
+     */
+    void awaitStart() throws InterruptedException {
+        final long delay = startAt - System.currentTimeMillis();
+        if (delay > 0) {
+            Thread.sleep(delay);
+        }
+        startInterval();
+    }
+
+    /**
+     * Starts timing the next interval afresh, e.g. after the pause between
+     * the warm-up and the stress, which no interval covers.
+     */
+    synchronized void startInterval() {
+        intervalStart = System.nanoTime();
+    }
+
+    synchronized void sendInterval(boolean warmUp, Histogram serviceTimes, Histogram responseTimes,
+                                   int failed, int rejected) throws IOException {
+        final long now = System.nanoTime();
+        out.writeByte(INTERVAL);
+        out.writeBoolean(warmUp);
+        out.writeLong(now - intervalStart);
+        out.writeInt(failed);
+        out.writeInt(rejected);
+        writeHistogram(serviceTimes);
+        writeHistogram(responseTimes);
+        out.flush();
+        intervalStart = now;
+    }
+
+    synchronized void sendDone() throws IOException {
+        out.writeByte(DONE);
+        out.flush();
+        socket.close();
+    }
+
+    private void writeHistogram(Histogram histogram) throws IOException {
+        final int capacity = histogram.getNeededByteBufferCapacity();
+        if (buffer.capacity() < capacity) {
+            buffer = ByteBuffer.allocate(capacity);
+        }
+        buffer.clear();
+
+        final int length = histogram.encodeIntoCompressedByteBuffer(buffer);
+        out.writeInt(length);
+        out.write(buffer.array(), 0, length);
+    }
+
+    static Histogram readHistogram(DataInputStream in) throws IOException {
+        final byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        try {
+            return Histogram.decodeFromCompressedByteBuffer(ByteBuffer.wrap(bytes), 0);
+        }
+        catch (java.util.zip.DataFormatException ex) {
+            throw new IOException("invalid histogram: " + ex.getMessage(), ex);
+        }
+    }
+}
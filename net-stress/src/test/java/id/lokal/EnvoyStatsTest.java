@@ -0,0 +1,141 @@
+package id.lokal;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.apache.logging.log4j.LogManager;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class EnvoyStatsTest {
+    private static final String FILTER = "(upstream_rq_total|upstream_rq_active|downstream_rq_total|rq_time)$";
+
+    // What /stats serves on each scrape, the last one from then on
+    private static final String[] BODIES = {
+        "cluster.app.upstream_rq_total: 10\n"
+            + "cluster.app.upstream_rq_active: 2\n"
+            + "cluster.app.upstream_cx_connect_fail: 3\n"
+            + "http.ingress.downstream_rq_time: P0(nan,0) P25(nan,0)\n",
+        "cluster.app.upstream_rq_total: 25\n"
+            + "cluster.app.upstream_rq_active: 0\n"
+            + "cluster.app.upstream_cx_connect_fail: 7\n"
+            + "http.ingress.downstream_rq_total: 4\n"
+            + "http.ingress.downstream_rq_time: P0(1,1) P25(2,2)\n",
+    };
+
+    private final List<String> queries = new CopyOnWriteArrayList<>();
+    private Server server;
+    private int port;
+
+    @TempDir
+    Path dir;
+
+    @BeforeEach
+    void startServer() throws Exception {
+        server = new Server();
+        final ServerConnector connector = new ServerConnector(server);
+        connector.setPort(0);
+        server.addConnector(connector);
+        server.setHandler(new AbstractHandler() {
+            @Override
+            public void handle(String target, Request baseRequest, HttpServletRequest request,
+                               HttpServletResponse response) throws IOException {
+                final int scrape = queries.size();
+                queries.add(request.getQueryString());
+
+                response.setContentType("text/plain");
+                response.getOutputStream().write(
+                        BODIES[Math.min(scrape, BODIES.length - 1)].getBytes(StandardCharsets.UTF_8));
+                baseRequest.setHandled(true);
+            }
+        });
+        server.start();
+        port = connector.getLocalPort();
+    }
+
+    @AfterEach
+    void stopServer() throws Exception {
+        server.stop();
+    }
+
+    @Test
+    void writesTheDeltasBetweenScrapes() throws Exception {
+        final EnvoyStats stats = new EnvoyStats(
+                LogManager.getLogger(EnvoyStatsTest.class), "http://127.0.0.1:" + port + "/", FILTER, dir.toString());
+        final Path csv = dir.resolve("envoy-stats.csv");
+        try {
+            scrape(stats, 1);
+            // The first scrape is only the base to take deltas from
+            await(() -> Files.readAllLines(csv).size() == 1 && queries.size() == 1, "the first scrape");
+
+            scrape(stats, 2);
+            await(() -> Files.readAllLines(csv).size() == 4, "the rows of the second scrape");
+        }
+        finally {
+            stats.close();
+        }
+
+        assertEquals(2, queries.size());
+        assertTrue(queries.get(0).startsWith("usedonly&filter="), queries.get(0));
+
+        final List<String> lines = Files.readAllLines(csv);
+        assertEquals("timestamp,name,value,delta", lines.get(0));
+
+        final List<String> rows = new ArrayList<>();
+        for (String line : lines.subList(1, lines.size())) {
+            final int comma = line.indexOf(',');
+            Long.parseLong(line.substring(0, comma));
+            rows.add(line.substring(comma + 1));
+        }
+        // Sorted by name, without the stats the filter drops, nor the
+        // histogram, and with a stat new in the second scrape counted from 0
+        assertEquals(List.of(
+                "cluster.app.upstream_rq_active,0,-2",
+                "cluster.app.upstream_rq_total,25,15",
+                "http.ingress.downstream_rq_total,4,4"), rows);
+    }
+
+    /**
+     * Scrapes until the stub has served the given number of scrapes, since a
+     * scrape is skipped while the previous one is still running.
+     */
+    private void scrape(EnvoyStats stats, int served) throws Exception {
+        await(() -> {
+            if (queries.size() < served) {
+                stats.scrape();
+            }
+            return queries.size() >= served;
+        }, "scrape " + served);
+    }
+
+    private interface Condition {
+        boolean met() throws Exception;
+    }
+
+    private static void await(Condition condition, String what) throws Exception {
+        final long deadline = System.currentTimeMillis() + 10_000;
+        while (!condition.met()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("timed out waiting for " + what);
+            }
+            Thread.sleep(10);
+        }
+    }
+}
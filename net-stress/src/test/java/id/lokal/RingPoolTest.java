@@ -0,0 +1,162 @@
+package id.lokal;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.BooleanSupplier;
+
+import org.junit.jupiter.api.Test;
+
+class RingPoolTest {
+    private static final long TIMEOUT_MILLIS = 30_000;
+
+    @Test
+    void everyOfferedValueRunsExactlyOnce() throws InterruptedException {
+        final int producers = 4;
+        final int perProducer = 50_000;
+        final AtomicIntegerArray runs = new AtomicIntegerArray(producers * perProducer);
+        final CountDownLatch done = new CountDownLatch(producers * perProducer);
+
+        final RingPool pool = new RingPool("test-worker", 3, 64, createdAt -> {
+            runs.incrementAndGet((int) createdAt);
+            done.countDown();
+        }, ex -> fail(ex));
+        try {
+            final List<Thread> threads = new ArrayList<>();
+            for (int p = 0; p < producers; p++) {
+                final int first = p * perProducer;
+                threads.add(new Thread(() -> {
+                    for (int i = first; i < first + perProducer; i++) {
+                        // A full ring is the workers being behind, so wait
+                        // for them here instead of dropping the value
+                        while (!pool.offer(i)) {
+                            Thread.yield();
+                        }
+                    }
+                }, "test-producer-" + p));
+            }
+            threads.forEach(Thread::start);
+            for (Thread thread : threads) {
+                thread.join(TIMEOUT_MILLIS);
+            }
+
+            assertTrue(done.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS),
+                    () -> done.getCount() + " values never ran, with " + pool.queued() + " queued");
+            for (int i = 0; i < runs.length(); i++) {
+                assertEquals(1, runs.get(i), "runs of " + i);
+            }
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    void offerReturnsFalseWhenFull() throws InterruptedException {
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger ran = new AtomicInteger();
+
+        final RingPool pool = new RingPool("test-worker", 1, 4, createdAt -> {
+            try {
+                release.await();
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            ran.incrementAndGet();
+        }, ex -> fail(ex));
+        try {
+            // Keep the only worker busy, so that the ring fills up
+            assertTrue(pool.offer(0));
+            await(() -> pool.active() == 1 && pool.queued() == 0, "the worker to take the first op");
+
+            for (int i = 1; i <= pool.capacity(); i++) {
+                assertTrue(pool.offer(i), "offer " + i);
+            }
+            assertFalse(pool.offer(pool.capacity() + 1));
+            assertEquals(pool.capacity(), pool.queued());
+
+            release.countDown();
+            await(() -> ran.get() == pool.capacity() + 1, "the queued ops to run");
+        }
+        finally {
+            release.countDown();
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    void noWorkerStaysParkedWhileOpsAreQueued() throws InterruptedException {
+        final int producers = 2;
+        final int rounds = 10_000;
+        final AtomicInteger ran = new AtomicInteger();
+
+        final RingPool pool = new RingPool("test-worker", 2, 16, createdAt -> ran.incrementAndGet(),
+                ex -> fail(ex));
+        try {
+            // Each round offers to a pool whose workers have gone idle, which
+            // is where a lost unpark would leave an op in the ring for good
+            for (int round = 0; round < rounds; round++) {
+                final List<Thread> threads = new ArrayList<>();
+                for (int p = 0; p < producers; p++) {
+                    threads.add(new Thread(() -> assertTrue(pool.offer(System.nanoTime()))));
+                }
+                threads.forEach(Thread::start);
+                for (Thread thread : threads) {
+                    thread.join(TIMEOUT_MILLIS);
+                }
+
+                final int expected = (round + 1) * producers;
+                await(() -> ran.get() == expected, "round " + round + " to run");
+                assertEquals(0, pool.queued());
+            }
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    void opThatThrowsIsCountedAsFailed() throws InterruptedException {
+        final int ops = 1_000;
+        final AtomicInteger ran = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+
+        final RingPool pool = new RingPool("test-worker", 2, ops, createdAt -> {
+            if (createdAt % 2 == 1) {
+                throw new IllegalStateException("op " + createdAt);
+            }
+            ran.incrementAndGet();
+        }, ex -> failed.incrementAndGet());
+        try {
+            for (int i = 0; i < ops; i++) {
+                assertTrue(pool.offer(i));
+            }
+
+            await(() -> ran.get() + failed.get() == ops, "every op to be accounted for");
+            assertEquals(ops / 2, ran.get());
+            assertEquals(ops / 2, failed.get());
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    private static void await(BooleanSupplier condition, String what) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("timed out waiting for " + what);
+            }
+            Thread.sleep(1);
+        }
+    }
+}